@@ -0,0 +1,64 @@
+package org.roguenet.simpler.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.microtome.Library;
+import com.microtome.Microtome;
+import com.microtome.MicrotomeCtx;
+import com.microtome.Page;
+import com.microtome.error.MicrotomeError;
+import com.microtome.json.JsonUtil;
+import java.util.Collections;
+import org.roguenet.simpler.MicrotomeSimplerServlet;
+import org.roguenet.simpler.RestGet;
+
+/**
+ * A servlet whose endpoints return real Microtome pages and a library of them, loaded by
+ * Microtome from JSON when the servlet is created, so the benchmarks measure the same
+ * serialization that serves them in production.
+ */
+public class BenchMicrotomeServlet extends MicrotomeSimplerServlet {
+    public BenchMicrotomeServlet (int librarySize, boolean caching) {
+        super("/api", new Gson(), newCtx());
+        JsonObject json = new JsonObject();
+        for (int ii = 0; ii < librarySize; ii++) json.add("item" + ii, item(ii));
+        try {
+            _microtome.load(_library, JsonUtil.createReaders(json));
+        } catch (MicrotomeError me) {
+            throw new IllegalStateException("Failed to load benchmark pages", me);
+        }
+        _page = (Page)_library.getItem("item0");
+        setMicrotomeCaching(caching);
+    }
+
+    @RestGet protected Page page () {
+        return _page;
+    }
+
+    @RestGet(name="page") protected Page wrappedPage () {
+        return _page;
+    }
+
+    @RestGet protected Library library () {
+        return _library;
+    }
+
+    protected static MicrotomeCtx newCtx () {
+        MicrotomeCtx ctx = Microtome.createCtx();
+        ctx.registerPageClasses(Collections.<Class<? extends Page>>singletonList(ItemPage.class));
+        return ctx;
+    }
+
+    protected static JsonObject item (int id) {
+        JsonObject page = new JsonObject();
+        page.addProperty("typeName", "ItemPage");
+        page.addProperty("id", id);
+        page.addProperty("title", "item-" + id);
+        page.addProperty("score", id * 1.5);
+        page.addProperty("active", id % 2 == 0);
+        return page;
+    }
+
+    protected final Library _library = new Library();
+    protected final Page _page;
+}
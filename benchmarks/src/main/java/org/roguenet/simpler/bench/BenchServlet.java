@@ -0,0 +1,90 @@
+package org.roguenet.simpler.bench;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.roguenet.simpler.RestException;
+import org.roguenet.simpler.RestGet;
+import org.roguenet.simpler.RestPost;
+import org.roguenet.simpler.SimplerServlet;
+
+/** A servlet with one endpoint for each shape of call the benchmarks exercise. */
+public class BenchServlet extends SimplerServlet {
+    public static class Item {
+        public int id;
+        public String name;
+        public double score;
+        public boolean active;
+        public List<String> tags;
+
+        public Item (int id) {
+            this.id = id;
+            this.name = "item-" + id;
+            this.score = id * 1.5;
+            this.active = id % 2 == 0;
+            this.tags = Arrays.asList("alpha", "beta", "gamma");
+        }
+    }
+
+    public static class Query {
+        public String name;
+        public int limit;
+        public List<Integer> ids;
+    }
+
+    /** The body sent to {@link #count}. */
+    public static final String QUERY_BODY =
+        "{\"name\":\"bench\",\"limit\":25,\"ids\":[1,2,3,4,5,6,7,8,9,10]}";
+
+    public BenchServlet () {
+        this(LARGE_SIZE);
+    }
+
+    public BenchServlet (int largeSize) {
+        super("/api", new Gson());
+        for (int ii = 0; ii < largeSize; ii++) _large.add(new Item(ii));
+    }
+
+    @RestGet protected String ping () {
+        return "pong";
+    }
+
+    @RestPost protected int count (Query query) {
+        return query.ids.size();
+    }
+
+    @RestGet protected Item small () {
+        return _small;
+    }
+
+    @RestGet protected List<Item> large () {
+        return _large;
+    }
+
+    @RestGet(name="items") protected List<Item> wrapped () {
+        return _large;
+    }
+
+    @RestGet(path="/users/{id:int}/posts/{postId}") protected String post () {
+        return pathParam("postId");
+    }
+
+    @RestGet protected String fail () throws RestException {
+        throw new RestException(403, "Not allowed");
+    }
+
+    @RestGet protected String failStackless () throws RestException {
+        RestException.throwIf(true, 403, "Not allowed");
+        return null;
+    }
+
+    @RestGet protected String failConstant () throws RestException {
+        throw RestException.constant(403, "Not allowed");
+    }
+
+    protected final Item _small = new Item(1);
+    protected final List<Item> _large = new ArrayList<Item>();
+
+    protected static final int LARGE_SIZE = 1000;
+}
@@ -0,0 +1,30 @@
+package org.roguenet.simpler.bench;
+
+import com.google.gson.Gson;
+import org.roguenet.simpler.RestGet;
+import org.roguenet.simpler.SimplerServlet;
+
+/**
+ * A servlet whose endpoint blocks for a fixed time before answering, standing in for one that
+ * waits on a database or another service.
+ */
+public class BlockingServlet extends SimplerServlet {
+    public static class Row {
+        public int id = 42;
+        public String name = "row-42";
+    }
+
+    public BlockingServlet (long blockMillis) {
+        // no reset signal, so virtual threads do not each get one
+        super("/api", new Gson(), null);
+        _blockMillis = blockMillis;
+    }
+
+    @RestGet protected Row query () throws InterruptedException {
+        Thread.sleep(_blockMillis);
+        return _row;
+    }
+
+    protected final long _blockMillis;
+    protected final Row _row = new Row();
+}
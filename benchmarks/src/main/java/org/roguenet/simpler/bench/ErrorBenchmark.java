@@ -0,0 +1,63 @@
+package org.roguenet.simpler.bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Error responses: a RestException thrown by the method (with a stack trace, without one, and
+ * with a constant pre-encoded body), a malformed request body, and a path that no method is
+ * routed to. Simpler's info logging is turned off so that the benchmark measures the cost of
+ * building and writing errors, including the (disabled) log calls, rather than the console.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class ErrorBenchmark extends ServletBenchmark {
+    @Setup public void setup () {
+        _log.setLevel(Level.WARNING);
+    }
+
+    @Benchmark public long restException () throws Exception {
+        return serve(_servlet, _fail);
+    }
+
+    @Benchmark public long stacklessException () throws Exception {
+        return serve(_servlet, _failStackless);
+    }
+
+    @Benchmark public long constantException () throws Exception {
+        return serve(_servlet, _failConstant);
+    }
+
+    @Benchmark public long malformedBody () throws Exception {
+        return serve(_servlet, _malformed);
+    }
+
+    @Benchmark public long notFound () throws Exception {
+        return serve(_servlet, _notFound);
+    }
+
+    protected final BenchServlet _servlet = new BenchServlet();
+    protected final StubRequest _fail = new StubRequest("GET", "/fail");
+    protected final StubRequest _failStackless = new StubRequest("GET", "/failStackless");
+    protected final StubRequest _failConstant = new StubRequest("GET", "/failConstant");
+    protected final StubRequest _malformed = new StubRequest("POST", "/count").body("{\"ids\":[1,");
+    protected final StubRequest _notFound = new StubRequest("DELETE", "/nothing");
+
+    /** Held so that the level set on it sticks. */
+    protected static final Logger _log = Logger.getLogger("org.roguenet.simpler");
+}
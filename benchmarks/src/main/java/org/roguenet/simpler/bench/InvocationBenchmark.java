@@ -0,0 +1,61 @@
+package org.roguenet.simpler.bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.roguenet.simpler.MethodInvoker;
+
+/**
+ * Serving no-argument and body-argument calls, with metrics off and on, and the invocation of a
+ * method through a {@link MethodInvoker} compared to reflection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class InvocationBenchmark extends ServletBenchmark {
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    @Setup public void setup () throws Exception {
+        if (metrics) _servlet.enableMetrics(false);
+        _ping = BenchServlet.class.getDeclaredMethod("ping");
+        _ping.setAccessible(true);
+        _invoker = MethodInvoker.create(_ping);
+    }
+
+    @Benchmark public long noArg () throws Exception {
+        return serve(_servlet, _noArg);
+    }
+
+    @Benchmark public long bodyArg () throws Exception {
+        return serve(_servlet, _bodyArg);
+    }
+
+    @Benchmark public Object reflective () throws Exception {
+        return _ping.invoke(_servlet);
+    }
+
+    @Benchmark public Object invoker () throws Exception {
+        return _invoker.invoke(_servlet, null);
+    }
+
+    protected final BenchServlet _servlet = new BenchServlet();
+    protected final StubRequest _noArg = new StubRequest("GET", "/ping");
+    protected final StubRequest _bodyArg =
+        new StubRequest("POST", "/count").body(BenchServlet.QUERY_BODY);
+    protected Method _ping;
+    protected MethodInvoker _invoker;
+}
@@ -0,0 +1,41 @@
+package org.roguenet.simpler.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import com.microtome.MutablePage;
+import com.microtome.prop.BoolProp;
+import com.microtome.prop.FloatProp;
+import com.microtome.prop.IntProp;
+import com.microtome.prop.ObjectProp;
+import com.microtome.prop.Prop;
+import com.microtome.prop.PropSpec;
+
+/**
+ * A Microtome page for the benchmarks, written as Microtome's code generator would write it from
+ * a schema declaring {@code id}, {@code title}, {@code score} and {@code active}.
+ */
+public class ItemPage extends MutablePage {
+    public int id () { return _id.value(); }
+    public String title () { return _title.value(); }
+    public float score () { return _score.value(); }
+    public boolean active () { return _active.value(); }
+
+    @Override public Class<?> pageClass () {
+        return ItemPage.class;
+    }
+
+    @Override public List<Prop<?>> props () {
+        return Arrays.<Prop<?>>asList(_id, _title, _score, _active);
+    }
+
+    protected final IntProp _id = new IntProp(this, s_idSpec);
+    protected final ObjectProp<String> _title = new ObjectProp<String>(this, s_titleSpec);
+    protected final FloatProp _score = new FloatProp(this, s_scoreSpec);
+    protected final BoolProp _active = new BoolProp(this, s_activeSpec);
+
+    protected static final PropSpec s_idSpec = new PropSpec("id", null, null);
+    protected static final PropSpec s_titleSpec =
+        new PropSpec("title", null, new Class<?>[] { String.class });
+    protected static final PropSpec s_scoreSpec = new PropSpec("score", null, null);
+    protected static final PropSpec s_activeSpec = new PropSpec("active", null, null);
+}
@@ -0,0 +1,145 @@
+package org.roguenet.simpler.bench;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.http.HttpServletResponse;
+import org.roguenet.simpler.util.LatencyHistogram;
+
+/**
+ * Compares running a blocking endpoint on the container's threads with running it on virtual
+ * threads (see {@code SimplerServlet.useVirtualThreads}). A fixed pool of platform threads plays
+ * the container, and a fixed number of clients each send a request as soon as their last one is
+ * answered, for a set time after a warmup. Each mode reports its throughput and latency
+ * percentiles, measured from when a request is handed to the container to when it is complete.
+ *
+ * Every response is checked, and the run fails, exiting with status 1, if any call failed or
+ * was answered with anything but the endpoint's row, if a mode answered nothing, or if there are
+ * more clients than container threads and moving calls off the container did not raise the
+ * throughput.
+ *
+ * Run with {@code java -cp target/benchmarks.jar org.roguenet.simpler.bench.LoadTest
+ * [clients] [seconds] [blockMillis] [containerThreads]}. Virtual threads need JDK 21 or newer;
+ * on older JDKs the second mode runs calls on a growing thread pool instead.
+ */
+public class LoadTest {
+    public static void main (String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        int containerThreads = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        System.out.println("clients=" + clients + " seconds=" + seconds + " blockMillis=" +
+            blockMillis + " containerThreads=" + containerThreads);
+        long expectedBytes = new Gson().toJson(new BlockingServlet.Row()).length();
+        List<String> problems = new ArrayList<String>();
+        double[] throughput = new double[2];
+        for (int ii = 0; ii < 2; ii++) {
+            BlockingServlet servlet = new BlockingServlet(blockMillis);
+            String mode = "platform";
+            if (ii == 1) mode = servlet.useVirtualThreads() ? "virtual" : "pooled";
+            LoadTest test = new LoadTest(servlet, clients, containerThreads, expectedBytes);
+            throughput[ii] = test.run(mode, seconds);
+            servlet.destroy();
+            if (test._failed.sum() > 0) {
+                problems.add(mode + ": " + test._failed.sum() + " calls failed");
+            }
+            if (test._latency.count() == 0) problems.add(mode + ": no calls were answered");
+        }
+        if (clients > containerThreads && throughput[1] <= throughput[0]) {
+            problems.add("offloading did not raise throughput: " + Math.round(throughput[1]) +
+                " req/s against " + Math.round(throughput[0]));
+        }
+        for (String problem : problems) System.out.println("FAILED " + problem);
+        if (!problems.isEmpty()) System.exit(1);
+    }
+
+    public LoadTest (BlockingServlet servlet, int clients, int containerThreads,
+            long expectedBytes) {
+        _servlet = servlet;
+        _clients = clients;
+        _container = Executors.newFixedThreadPool(containerThreads);
+        _expectedBytes = expectedBytes;
+    }
+
+    /**
+     * Runs a warmup of a fifth of the given time, then measures for the given time. Returns the
+     * throughput measured, in requests per second.
+     */
+    public double run (String mode, int seconds) throws InterruptedException {
+        long warmupNanos = TimeUnit.SECONDS.toNanos(seconds) / 5;
+        _measureFrom = System.nanoTime() + warmupNanos;
+        _deadline = _measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        _running.set(_clients);
+        for (int ii = 0; ii < _clients; ii++) send();
+        _done.await();
+        _container.shutdown();
+
+        double throughput = _latency.count() / (double)seconds;
+        System.out.printf("%-8s %10.0f req/s  p50 %7.1f ms  p99 %7.1f ms  max %7.1f ms" +
+            "  failed %d%n", mode, throughput, millis(_latency.percentile(0.5)),
+            millis(_latency.percentile(0.99)), millis(_latency.max()), _failed.sum());
+        return throughput;
+    }
+
+    /** Sends a client's next request, or retires the client if time is up. */
+    protected void send () {
+        if (System.nanoTime() >= _deadline) {
+            if (_running.decrementAndGet() == 0) _done.countDown();
+            return;
+        }
+        final long start = System.nanoTime();
+        final StubRequest req = new StubRequest("GET", "/query").asyncSupported();
+        final StubResponse rsp = new StubResponse();
+        _container.execute(new Runnable() {
+            public void run () {
+                try {
+                    _servlet.service(req, rsp);
+                } catch (Exception e) {
+                    _failed.increment();
+                }
+                StubAsyncContext async = req.asyncContext();
+                if (async == null) {
+                    answered(start, rsp);
+                } else {
+                    async.completion().thenRun(new Runnable() {
+                        public void run () {
+                            answered(start, rsp);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    protected void answered (long start, StubResponse rsp) {
+        // the endpoint always answers with the same row, so anything else is a failure
+        if (rsp.getStatus() != HttpServletResponse.SC_OK || rsp.bytesWritten() != _expectedBytes) {
+            _failed.increment();
+        }
+        long now = System.nanoTime();
+        if (start >= _measureFrom && now < _deadline) {
+            _latency.record(now - start);
+        }
+        send();
+    }
+
+    protected static double millis (long nanos) {
+        return nanos / 1e6;
+    }
+
+    protected final BlockingServlet _servlet;
+    protected final int _clients;
+    protected final ExecutorService _container;
+    protected final long _expectedBytes;
+    protected final LatencyHistogram _latency = new LatencyHistogram();
+    protected final LongAdder _failed = new LongAdder();
+    protected final AtomicInteger _running = new AtomicInteger();
+    protected final CountDownLatch _done = new CountDownLatch(1);
+    protected volatile long _measureFrom, _deadline;
+}
@@ -0,0 +1,53 @@
+package org.roguenet.simpler.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serving a Microtome page, bare and wrapped in a named member, and a library of
+ * {@value #LIBRARY_SIZE} pages, each with the serialized form cache off and on.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class MicrotomeBenchmark extends ServletBenchmark {
+    @Benchmark public long page () throws Exception {
+        return serve(_servlet, _page);
+    }
+
+    @Benchmark public long wrappedPage () throws Exception {
+        return serve(_servlet, _wrappedPage);
+    }
+
+    @Benchmark public long library () throws Exception {
+        return serve(_servlet, _library);
+    }
+
+    @Benchmark public long cachedPage () throws Exception {
+        return serve(_cached, _page);
+    }
+
+    @Benchmark public long cachedLibrary () throws Exception {
+        return serve(_cached, _library);
+    }
+
+    protected final BenchMicrotomeServlet _servlet =
+        new BenchMicrotomeServlet(LIBRARY_SIZE, false);
+    protected final BenchMicrotomeServlet _cached = new BenchMicrotomeServlet(LIBRARY_SIZE, true);
+    protected final StubRequest _page = new StubRequest("GET", "/page");
+    protected final StubRequest _wrappedPage = new StubRequest("GET", "/wrappedPage");
+    protected final StubRequest _library = new StubRequest("GET", "/library");
+
+    protected static final int LIBRARY_SIZE = 100;
+}
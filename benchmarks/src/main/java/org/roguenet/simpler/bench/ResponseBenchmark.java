@@ -0,0 +1,47 @@
+package org.roguenet.simpler.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing a single small object, a list of {@value BenchServlet#LARGE_SIZE} objects, the same
+ * list wrapped in a named member, and the list compressed with gzip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class ResponseBenchmark extends ServletBenchmark {
+    @Benchmark public long small () throws Exception {
+        return serve(_servlet, _small);
+    }
+
+    @Benchmark public long large () throws Exception {
+        return serve(_servlet, _large);
+    }
+
+    @Benchmark public long wrapped () throws Exception {
+        return serve(_servlet, _wrapped);
+    }
+
+    @Benchmark public long largeGzip () throws Exception {
+        return serve(_servlet, _largeGzip);
+    }
+
+    protected final BenchServlet _servlet = new BenchServlet();
+    protected final StubRequest _small = new StubRequest("GET", "/small");
+    protected final StubRequest _large = new StubRequest("GET", "/large");
+    protected final StubRequest _wrapped = new StubRequest("GET", "/wrapped");
+    protected final StubRequest _largeGzip =
+        new StubRequest("GET", "/large").header("Accept-Encoding", "gzip");
+}
@@ -0,0 +1,61 @@
+package org.roguenet.simpler.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.roguenet.simpler.util.Router;
+
+/**
+ * Route lookups in a router of {@value #ROUTES} methods plus a template per method, alone and as
+ * part of serving a request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+public class RoutingBenchmark extends ServletBenchmark {
+    @Setup public void setup () {
+        for (int ii = 0; ii < ROUTES; ii++) {
+            _router.addPrefix("method" + ii, "method" + ii);
+            _router.add("/things" + ii + "/{id:int}/parts/{part}", "template" + ii);
+        }
+        _router.addPrefix("", "_find");
+        _match = _router.newMatch();
+    }
+
+    @Benchmark public Object prefix () {
+        _router.route("/method25/extra", _match);
+        return _match.target;
+    }
+
+    @Benchmark public Object template () {
+        _router.route("/things25/12345/parts/wheel", _match);
+        return _match.target;
+    }
+
+    @Benchmark public Object fallback () {
+        _router.route("/nothing/here", _match);
+        return _match.target;
+    }
+
+    @Benchmark public long servletTemplate () throws Exception {
+        return serve(_servlet, _post);
+    }
+
+    protected final Router<String> _router = new Router<String>();
+    protected Router.Match<String> _match;
+    protected final BenchServlet _servlet = new BenchServlet();
+    protected final StubRequest _post = new StubRequest("GET", "/users/42/posts/hello");
+
+    protected static final int ROUTES = 50;
+}
@@ -0,0 +1,18 @@
+package org.roguenet.simpler.bench;
+
+import javax.servlet.http.HttpServlet;
+
+/** Serves stub requests through a servlet, reusing a single response. */
+public abstract class ServletBenchmark {
+    /**
+     * Serves the given request and returns the number of bytes written, for the benchmark to
+     * return so the work cannot be optimized away.
+     */
+    protected long serve (HttpServlet servlet, StubRequest req) throws Exception {
+        _rsp.reset();
+        servlet.service(req.reset(), _rsp);
+        return _rsp.bytesWritten();
+    }
+
+    protected final StubResponse _rsp = new StubResponse();
+}
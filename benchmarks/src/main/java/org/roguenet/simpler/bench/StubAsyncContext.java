@@ -0,0 +1,106 @@
+package org.roguenet.simpler.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * The async context of a {@link StubRequest}. Completing it tells its listeners, and completes
+ * a future that a load test can wait on in place of the container writing the response.
+ */
+public class StubAsyncContext implements AsyncContext {
+    public StubAsyncContext (ServletRequest req, ServletResponse rsp) {
+        _req = req;
+        _rsp = rsp;
+    }
+
+    /** Returns a future completed when the request is. */
+    public CompletableFuture<Void> completion () {
+        return _completion;
+    }
+
+    public boolean isComplete () {
+        return _completion.isDone();
+    }
+
+    @Override public void complete () {
+        if (!_completion.complete(null)) throw new IllegalStateException("Already complete");
+        for (AsyncListener listener : _listeners) {
+            try {
+                listener.onComplete(new AsyncEvent(this, _req, _rsp));
+            } catch (IOException ioe) {
+                // nothing to tell
+            }
+        }
+    }
+
+    @Override public ServletRequest getRequest () {
+        return _req;
+    }
+
+    @Override public ServletResponse getResponse () {
+        return _rsp;
+    }
+
+    @Override public boolean hasOriginalRequestAndResponse () {
+        return true;
+    }
+
+    @Override public void start (Runnable task) {
+        new Thread(task).start();
+    }
+
+    @Override public void addListener (AsyncListener listener) {
+        _listeners.add(listener);
+    }
+
+    @Override public void addListener (AsyncListener listener, ServletRequest req,
+            ServletResponse rsp) {
+        _listeners.add(listener);
+    }
+
+    @Override public <T extends AsyncListener> T createListener (Class<T> cls)
+        throws ServletException {
+        try {
+            return cls.newInstance();
+        } catch (Exception e) {
+            throw new ServletException(e);
+        }
+    }
+
+    @Override public void setTimeout (long timeout) {
+        _timeout = timeout;
+    }
+
+    @Override public long getTimeout () {
+        return _timeout;
+    }
+
+    // the stubs never time out or dispatch
+
+    @Override public void dispatch () {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override public void dispatch (String path) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override public void dispatch (ServletContext context, String path) {
+        throw new UnsupportedOperationException();
+    }
+
+    protected final ServletRequest _req;
+    protected final ServletResponse _rsp;
+    protected final List<AsyncListener> _listeners = new CopyOnWriteArrayList<AsyncListener>();
+    protected final CompletableFuture<Void> _completion = new CompletableFuture<Void>();
+    protected long _timeout;
+}
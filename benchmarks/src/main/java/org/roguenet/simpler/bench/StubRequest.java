@@ -0,0 +1,367 @@
+package org.roguenet.simpler.bench;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+/**
+ * An in-memory request that can be replayed: the body is re-read from the start each time
+ * {@link #reset} is called, so a benchmark can serve the same request over and over without
+ * allocating a new one per call.
+ */
+public class StubRequest implements HttpServletRequest {
+    public StubRequest (String method, String pathInfo) {
+        _method = method;
+        _pathInfo = pathInfo;
+    }
+
+    public StubRequest body (String body) {
+        _body = body.getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+
+    public StubRequest param (String name, String value) {
+        _params.put(name, new String[] { value });
+        return this;
+    }
+
+    public StubRequest header (String name, String value) {
+        _headers.put(name.toLowerCase(Locale.ROOT), value);
+        return this;
+    }
+
+    /** Lets the request be put into async mode, as if the servlet were mapped to allow that. */
+    public StubRequest asyncSupported () {
+        _asyncSupported = true;
+        return this;
+    }
+
+    /** Returns the request's async context, or null if it was never put into async mode. */
+    public StubAsyncContext asyncContext () {
+        return _async;
+    }
+
+    /** Prepares the request to be served again. */
+    public StubRequest reset () {
+        _in.reset();
+        _async = null;
+        return this;
+    }
+
+    @Override public String getMethod () {
+        return _method;
+    }
+
+    @Override public String getPathInfo () {
+        return _pathInfo;
+    }
+
+    @Override public String getServletPath () {
+        return "/api";
+    }
+
+    @Override public String getContextPath () {
+        return "";
+    }
+
+    @Override public String getRequestURI () {
+        return "/api" + _pathInfo;
+    }
+
+    @Override public StringBuffer getRequestURL () {
+        return new StringBuffer("http://localhost").append(getRequestURI());
+    }
+
+    @Override public String getQueryString () {
+        return null;
+    }
+
+    @Override public String getProtocol () {
+        return "HTTP/1.1";
+    }
+
+    @Override public String getScheme () {
+        return "http";
+    }
+
+    @Override public String getServerName () {
+        return "localhost";
+    }
+
+    @Override public int getServerPort () {
+        return 80;
+    }
+
+    @Override public String getHeader (String name) {
+        return _headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    @Override public Enumeration<String> getHeaders (String name) {
+        String value = getHeader(name);
+        return Collections.enumeration(value == null ? Collections.<String>emptyList() :
+            Collections.singletonList(value));
+    }
+
+    @Override public Enumeration<String> getHeaderNames () {
+        return Collections.enumeration(_headers.keySet());
+    }
+
+    @Override public long getDateHeader (String name) {
+        String value = getHeader(name);
+        return value == null ? -1 : Long.parseLong(value);
+    }
+
+    @Override public int getIntHeader (String name) {
+        String value = getHeader(name);
+        return value == null ? -1 : Integer.parseInt(value);
+    }
+
+    @Override public String getParameter (String name) {
+        String[] values = _params.get(name);
+        return values == null ? null : values[0];
+    }
+
+    @Override public String[] getParameterValues (String name) {
+        return _params.get(name);
+    }
+
+    @Override public Map<String, String[]> getParameterMap () {
+        return _params;
+    }
+
+    @Override public Enumeration<String> getParameterNames () {
+        return Collections.enumeration(_params.keySet());
+    }
+
+    @Override public int getContentLength () {
+        return _body.length;
+    }
+
+    @Override public String getContentType () {
+        return getHeader("Content-Type");
+    }
+
+    @Override public String getCharacterEncoding () {
+        return "UTF-8";
+    }
+
+    @Override public void setCharacterEncoding (String encoding) {}
+
+    @Override public ServletInputStream getInputStream () {
+        return _in;
+    }
+
+    @Override public BufferedReader getReader () {
+        return new BufferedReader(new InputStreamReader(_in, StandardCharsets.UTF_8));
+    }
+
+    @Override public Object getAttribute (String name) {
+        return _attrs.get(name);
+    }
+
+    @Override public Enumeration<String> getAttributeNames () {
+        return Collections.enumeration(_attrs.keySet());
+    }
+
+    @Override public void setAttribute (String name, Object value) {
+        _attrs.put(name, value);
+    }
+
+    @Override public void removeAttribute (String name) {
+        _attrs.remove(name);
+    }
+
+    @Override public boolean isAsyncSupported () {
+        return _asyncSupported;
+    }
+
+    @Override public boolean isAsyncStarted () {
+        return _async != null && !_async.isComplete();
+    }
+
+    @Override public AsyncContext startAsync () {
+        throw new IllegalStateException("Async is not supported");
+    }
+
+    @Override public AsyncContext startAsync (ServletRequest req, ServletResponse rsp) {
+        if (!_asyncSupported) throw new IllegalStateException("Async is not supported");
+        if (_async != null) throw new IllegalStateException("Async already started");
+        return _async = new StubAsyncContext(req, rsp);
+    }
+
+    @Override public AsyncContext getAsyncContext () {
+        if (_async == null) throw new IllegalStateException("Async not started");
+        return _async;
+    }
+
+    @Override public DispatcherType getDispatcherType () {
+        return DispatcherType.REQUEST;
+    }
+
+    // the remainder are not used by Simpler
+
+    @Override public String getAuthType () {
+        return null;
+    }
+
+    @Override public Cookie[] getCookies () {
+        return null;
+    }
+
+    @Override public String getPathTranslated () {
+        return null;
+    }
+
+    @Override public String getRemoteUser () {
+        return null;
+    }
+
+    @Override public boolean isUserInRole (String role) {
+        return false;
+    }
+
+    @Override public Principal getUserPrincipal () {
+        return null;
+    }
+
+    @Override public String getRequestedSessionId () {
+        return null;
+    }
+
+    @Override public HttpSession getSession (boolean create) {
+        return null;
+    }
+
+    @Override public HttpSession getSession () {
+        return null;
+    }
+
+    @Override public boolean isRequestedSessionIdValid () {
+        return false;
+    }
+
+    @Override public boolean isRequestedSessionIdFromCookie () {
+        return false;
+    }
+
+    @Override public boolean isRequestedSessionIdFromURL () {
+        return false;
+    }
+
+    @Deprecated @Override public boolean isRequestedSessionIdFromUrl () {
+        return false;
+    }
+
+    @Override public boolean authenticate (HttpServletResponse rsp) {
+        return false;
+    }
+
+    @Override public void login (String user, String password) {}
+
+    @Override public void logout () {}
+
+    @Override public Collection<Part> getParts () {
+        return Collections.emptyList();
+    }
+
+    @Override public Part getPart (String name) {
+        return null;
+    }
+
+    @Override public String getRemoteAddr () {
+        return "127.0.0.1";
+    }
+
+    @Override public String getRemoteHost () {
+        return "localhost";
+    }
+
+    @Override public int getRemotePort () {
+        return 0;
+    }
+
+    @Override public String getLocalName () {
+        return "localhost";
+    }
+
+    @Override public String getLocalAddr () {
+        return "127.0.0.1";
+    }
+
+    @Override public int getLocalPort () {
+        return 80;
+    }
+
+    @Override public Locale getLocale () {
+        return Locale.US;
+    }
+
+    @Override public Enumeration<Locale> getLocales () {
+        return Collections.enumeration(Collections.singletonList(Locale.US));
+    }
+
+    @Override public boolean isSecure () {
+        return false;
+    }
+
+    @Override public RequestDispatcher getRequestDispatcher (String path) {
+        return null;
+    }
+
+    @Deprecated @Override public String getRealPath (String path) {
+        return null;
+    }
+
+    @Override public ServletContext getServletContext () {
+        return null;
+    }
+
+    /** Replays the body from a fixed array. */
+    protected class BodyStream extends ServletInputStream {
+        public void reset () {
+            _pos = 0;
+        }
+
+        @Override public int read () {
+            return _pos < _body.length ? _body[_pos++] & 0xff : -1;
+        }
+
+        @Override public int read (byte[] b, int off, int len) {
+            if (_pos >= _body.length) return -1;
+            int count = Math.min(len, _body.length - _pos);
+            System.arraycopy(_body, _pos, b, off, count);
+            _pos += count;
+            return count;
+        }
+
+        protected int _pos;
+    }
+
+    protected final String _method, _pathInfo;
+    protected boolean _asyncSupported;
+    protected volatile StubAsyncContext _async;
+    protected byte[] _body = new byte[0];
+    protected final BodyStream _in = new BodyStream();
+    protected final Map<String, String[]> _params = new HashMap<String, String[]>();
+    protected final Map<String, String> _headers = new HashMap<String, String>();
+    protected final Map<String, Object> _attrs = new HashMap<String, Object>();
+}
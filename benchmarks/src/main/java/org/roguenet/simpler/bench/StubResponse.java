@@ -0,0 +1,194 @@
+package org.roguenet.simpler.bench;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * An in-memory response that counts the bytes written to it and otherwise discards them, so that
+ * benchmarks measure Simpler rather than the cost of buffering output. It can be reused across
+ * calls with {@link #reset}; closing its writer or stream only flushes them, as a container
+ * would keep them around.
+ */
+public class StubResponse implements HttpServletResponse {
+    /** Returns the number of bytes written since the last reset. */
+    public long bytesWritten () {
+        _writer.flush();
+        return _count;
+    }
+
+    @Override public int getStatus () {
+        return _status;
+    }
+
+    @Override public void reset () {
+        _writer.flush();
+        _count = 0;
+        _status = SC_OK;
+        _headers.clear();
+    }
+
+    @Override public PrintWriter getWriter () {
+        return _writer;
+    }
+
+    @Override public ServletOutputStream getOutputStream () {
+        return _out;
+    }
+
+    @Override public void setHeader (String name, String value) {
+        _headers.put(name, value);
+    }
+
+    @Override public void addHeader (String name, String value) {
+        _headers.put(name, value);
+    }
+
+    @Override public void setIntHeader (String name, int value) {
+        _headers.put(name, String.valueOf(value));
+    }
+
+    @Override public void addIntHeader (String name, int value) {
+        _headers.put(name, String.valueOf(value));
+    }
+
+    @Override public void setDateHeader (String name, long value) {
+        _headers.put(name, String.valueOf(value));
+    }
+
+    @Override public void addDateHeader (String name, long value) {
+        _headers.put(name, String.valueOf(value));
+    }
+
+    @Override public boolean containsHeader (String name) {
+        return _headers.containsKey(name);
+    }
+
+    @Override public String getHeader (String name) {
+        return _headers.get(name);
+    }
+
+    @Override public Collection<String> getHeaders (String name) {
+        Collection<String> values = new ArrayList<String>();
+        if (_headers.containsKey(name)) values.add(_headers.get(name));
+        return values;
+    }
+
+    @Override public Collection<String> getHeaderNames () {
+        return _headers.keySet();
+    }
+
+    @Override public void setStatus (int status) {
+        _status = status;
+    }
+
+    @Deprecated @Override public void setStatus (int status, String message) {
+        _status = status;
+    }
+
+    @Override public void sendError (int status, String message) {
+        _status = status;
+    }
+
+    @Override public void sendError (int status) {
+        _status = status;
+    }
+
+    @Override public void sendRedirect (String location) {
+        _status = SC_FOUND;
+    }
+
+    @Override public void setContentType (String type) {
+        _headers.put("Content-Type", type);
+    }
+
+    @Override public String getContentType () {
+        return _headers.get("Content-Type");
+    }
+
+    @Override public void setContentLength (int length) {
+        _headers.put("Content-Length", String.valueOf(length));
+    }
+
+    @Override public void setCharacterEncoding (String encoding) {}
+
+    @Override public String getCharacterEncoding () {
+        return "UTF-8";
+    }
+
+    @Override public boolean isCommitted () {
+        return false;
+    }
+
+    @Override public void flushBuffer () {
+        _writer.flush();
+    }
+
+    @Override public void resetBuffer () {}
+
+    @Override public void setBufferSize (int size) {}
+
+    @Override public int getBufferSize () {
+        return 0;
+    }
+
+    @Override public void setLocale (Locale locale) {}
+
+    @Override public Locale getLocale () {
+        return Locale.US;
+    }
+
+    @Override public void addCookie (Cookie cookie) {}
+
+    @Override public String encodeURL (String url) {
+        return url;
+    }
+
+    @Override public String encodeRedirectURL (String url) {
+        return url;
+    }
+
+    @Deprecated @Override public String encodeUrl (String url) {
+        return url;
+    }
+
+    @Deprecated @Override public String encodeRedirectUrl (String url) {
+        return url;
+    }
+
+    protected final ServletOutputStream _out = new ServletOutputStream() {
+        @Override public void write (int b) {
+            _count++;
+        }
+        @Override public void write (byte[] b, int off, int len) {
+            _count += len;
+        }
+        @Override public void close () {}
+    };
+    protected final PrintWriter _writer = new PrintWriter(
+        new OutputStreamWriter(new OutputStream() {
+            @Override public void write (int b) {
+                _count++;
+            }
+            @Override public void write (byte[] b, int off, int len) {
+                _count += len;
+            }
+        }, StandardCharsets.UTF_8)) {
+        @Override public void close () {
+            flush();
+        }
+    };
+
+    protected long _count;
+    protected int _status = SC_OK;
+    protected final Map<String, String> _headers = new HashMap<String, String>();
+}
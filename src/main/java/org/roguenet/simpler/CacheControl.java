@@ -0,0 +1,43 @@
+package org.roguenet.simpler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Configures HTTP caching for a method's responses: the Cache-Control header sent with them, and
+ * optionally conditional requests, where a client that already has the current response is sent
+ * a 304 Not Modified instead of the body. Conditional requests are only answered for GET methods;
+ * for other methods ETags are not computed, and If-None-Match and If-Modified-Since are ignored.
+ */
+@Target({ElementType.METHOD})
+@Retention(value=RetentionPolicy.RUNTIME)
+public @interface CacheControl
+{
+    /** The Cache-Control header sent with the method's responses. */
+    String value () default "no-cache";
+
+    /**
+     * If true, each response is tagged with an ETag computed from a hash of its serialized body,
+     * and requests whose If-None-Match header matches it are answered with a 304. The method
+     * still runs, but the body is not sent.
+     */
+    boolean etag () default false;
+
+    /**
+     * The name of a method on the servlet, taking no arguments, that returns the current version
+     * of the resource. It is called before the method itself, with the same request context, and
+     * its result is used as the ETag. If the request's If-None-Match header matches it, a 304 is
+     * sent without running the method at all.
+     */
+    String version () default "";
+
+    /**
+     * The name of a method on the servlet, taking no arguments, that returns the time the
+     * resource was last modified, as a long in milliseconds or a Date. It is called before the
+     * method itself, and if the resource has not been modified since the request's
+     * If-Modified-Since header, a 304 is sent without running the method at all.
+     */
+    String lastModified () default "";
+}
@@ -0,0 +1,32 @@
+package org.roguenet.simpler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Caches the serialized responses of a GET method in memory, so that repeated calls for the same
+ * path and parameters are answered without invoking the method or serializing its result. Only
+ * successful responses are cached. Entries can be dropped early with
+ * {@link SimplerServlet#invalidateCache}.
+ */
+@Target({ElementType.METHOD})
+@Retention(value=RetentionPolicy.RUNTIME)
+public @interface Cached
+{
+    /** How long a cached response may be served, in seconds. */
+    int ttl ();
+
+    /** The maximum number of responses cached for the method. */
+    int maxEntries () default 1000;
+
+    /** The maximum total size of the responses cached for the method, in bytes, or 0 for none. */
+    long maxBytes () default 0;
+
+    /**
+     * The request parameters that distinguish one response from another. Parameters not listed
+     * here do not affect the cache key.
+     */
+    String[] params () default {};
+}
@@ -0,0 +1,34 @@
+package org.roguenet.simpler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Coalesces concurrent identical calls to a GET method: while one call for a given path and
+ * parameters is running, others that arrive for the same path and parameters wait for it and are
+ * sent the same serialized response, or the same error, instead of running the method again.
+ * Unlike {@link Cached}, nothing is kept once the call completes.
+ *
+ * A coalesced method must not depend on anything but its path and the {@link #params} listed
+ * here: not on the caller's session, cookies or headers, nor on any other parameter, since a
+ * call is answered with whatever the call it waited for produced. Of the headers the running call
+ * sets, only Content-Type, ETag and Cache-Control are sent to those that waited for it.
+ */
+@Target({ElementType.METHOD})
+@Retention(value=RetentionPolicy.RUNTIME)
+public @interface Coalesce
+{
+    /**
+     * The request parameters that distinguish one call from another. Parameters not listed here
+     * do not affect which calls are coalesced.
+     */
+    String[] params () default {};
+
+    /**
+     * The longest a call waits for the one it is coalesced with, in milliseconds, before it is
+     * sent a timeout error.
+     */
+    long maxWait () default 5000;
+}
@@ -0,0 +1,88 @@
+package org.roguenet.simpler;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * An encoding of request and response bodies. JSON is always available; other codecs are added to
+ * a servlet with {@link SimplerServlet#addCodec} and chosen per call: responses are encoded with a
+ * codec named in the request's Accept header, and request bodies are decoded with the codec named
+ * by their Content-Type.
+ *
+ * Responses are written through Gson's streaming {@link JsonWriter} API, so a codec encodes values
+ * as Gson produces them and no intermediate text or tree is built.
+ */
+public abstract class Codec {
+    /** Returns the media type of bodies in this encoding. */
+    public abstract String contentType ();
+
+    /** Returns true if bodies in this encoding are binary, rather than UTF-8 text. */
+    public abstract boolean binary ();
+
+    /**
+     * Returns a writer that encodes what is written to it onto the given stream. The writer is
+     * flushed, but not closed, once the response has been written.
+     */
+    public abstract JsonWriter newWriter (OutputStream out) throws IOException;
+
+    /**
+     * Decodes a whole body as a value of the given type, returning null if the body is empty.
+     *
+     * @throws com.google.gson.JsonSyntaxException if the body is malformed.
+     */
+    public abstract Object read (Gson gson, InputStream in, Type type) throws IOException;
+
+    /**
+     * Returns an iterator that decodes the records of a body one at a time, as they are consumed.
+     * The body is either a single array of records or a sequence of top-level records.
+     */
+    public abstract Iterator<Object> readRecords (Gson gson, InputStream in, Type type)
+        throws IOException;
+
+    /**
+     * Returns the quality an Accept header gives a media type: the q value of the most specific
+     * media range in it that matches the type, or 0 if none does. If {@code exact}, only a range
+     * naming the type itself matches it, and wildcards such as {@code *}{@code /*} do not.
+     */
+    public static float acceptQuality (String accept, String type, boolean exact) {
+        float quality = 0;
+        int matched = -1; // the specificity of the range that set the quality
+        for (String range : accept.split(",")) {
+            String[] params = range.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+            int specificity;
+            if (name.equals(type)) {
+                specificity = 2;
+            } else if (exact) {
+                continue;
+            } else if (name.equals("*/*")) {
+                specificity = 0;
+            } else if (name.endsWith("/*") &&
+                       type.startsWith(name.substring(0, name.length() - 1))) {
+                specificity = 1;
+            } else {
+                continue;
+            }
+            if (specificity < matched) continue;
+            float q = 1;
+            for (int ii = 1; ii < params.length; ii++) {
+                String param = params[ii].trim();
+                if (!param.regionMatches(true, 0, "q=", 0, 2)) continue;
+                try {
+                    q = Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException nfe) {
+                    q = 0; // a malformed q value accepts nothing rather than everything
+                }
+            }
+            quality = specificity > matched ? q : Math.max(quality, q);
+            matched = specificity;
+        }
+        return quality;
+    }
+}
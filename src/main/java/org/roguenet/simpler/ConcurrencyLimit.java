@@ -0,0 +1,31 @@
+package org.roguenet.simpler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limits how many calls of a method may run at once, and sets the method's priority against the
+ * servlet's own limit, if it has one (see {@link SimplerServlet#setConcurrencyLimit}). Calls over
+ * either limit are rejected immediately rather than queued.
+ */
+@Target({ElementType.METHOD})
+@Retention(value=RetentionPolicy.RUNTIME)
+public @interface ConcurrencyLimit
+{
+    /**
+     * The maximum number of calls of the method that may run at once, or 0 for no limit beyond
+     * the servlet's.
+     */
+    int value () default 0;
+
+    /**
+     * If set, the limit adapts to the method's latency in milliseconds: it grows while calls
+     * complete within this time and backs off when they do not, never exceeding {@link #value}.
+     */
+    long targetLatency () default 0;
+
+    /** The method's priority against the servlet's limit. */
+    Priority priority () default Priority.NORMAL;
+}
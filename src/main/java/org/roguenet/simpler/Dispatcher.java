@@ -0,0 +1,126 @@
+package org.roguenet.simpler;
+
+import com.samskivert.util.Logger;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The REST methods of a servlet, listed at compile time. When Simpler is on the annotation
+ * processor path, {@link org.roguenet.simpler.processor.RestProcessor} generates a dispatcher
+ * named {@code <Servlet>_Dispatcher} next to each servlet with mapped methods, and the servlet
+ * maps the endpoints it lists instead of scanning its own methods. Each endpoint comes with an
+ * invoker that calls the method directly, and with the method's signature and annotations, so
+ * mapping it needs no reflection.
+ */
+public abstract class Dispatcher {
+    /** Appended to the binary name of a servlet class to get the name of its dispatcher. */
+    public static final String SUFFIX = "_Dispatcher";
+
+    /** One mapping of a method, as declared by one of its REST annotations. */
+    public static class Endpoint {
+        public final String name;
+        public final Class<?> returnType;
+        public final Class<?>[] parameterTypes;
+        /** The type of each record read from the body, if the method takes an Iterator. */
+        public final Type elementType;
+        public final RequestMethod requestMethod;
+        public final String responseName;
+        public final String path;
+        public final boolean compress;
+        /** The method's annotations, such as {@link Cached} and {@link CacheControl}. */
+        public final Annotation[] annotations;
+        /** Calls the method, or null if it is private and must be called through a handle. */
+        public final MethodInvoker invoker;
+        /**
+         * Call the methods named by the method's {@link CacheControl}. Either is null if no
+         * method is named, or if the named one cannot be called from the dispatcher and must be
+         * looked up by name.
+         */
+        public final MethodInvoker versionInvoker, lastModifiedInvoker;
+        /** The method itself, for an endpoint found by reflection rather than generated. */
+        public final Method method;
+
+        /** Creates an endpoint for a method found by scanning its servlet. */
+        public static Endpoint of (Method method, RequestMethod requestMethod,
+            String responseName, String path, boolean compress) {
+            Class<?>[] params = method.getParameterTypes();
+            Type elementType = null;
+            if (params.length == 1 && params[0] == Iterator.class) {
+                Type param = method.getGenericParameterTypes()[0];
+                elementType = param instanceof ParameterizedType ?
+                    ((ParameterizedType)param).getActualTypeArguments()[0] : null;
+            }
+            return new Endpoint(method.getName(), method.getReturnType(), params, elementType,
+                requestMethod, responseName, path, compress, method.getAnnotations(), null, null,
+                null, method);
+        }
+
+        public Endpoint (String name, Class<?> returnType, Class<?>[] parameterTypes,
+            Type elementType, RequestMethod requestMethod, String responseName, String path,
+            boolean compress, Annotation[] annotations, MethodInvoker invoker,
+            MethodInvoker versionInvoker, MethodInvoker lastModifiedInvoker) {
+            this(name, returnType, parameterTypes, elementType, requestMethod, responseName, path,
+                compress, annotations, invoker, versionInvoker, lastModifiedInvoker, null);
+        }
+
+        /** Returns the method's annotation of the given type, or null if it has none. */
+        public <A extends Annotation> A annotation (Class<A> type) {
+            for (Annotation annotation : annotations) {
+                if (annotation.annotationType() == type) return type.cast(annotation);
+            }
+            return null;
+        }
+
+        protected Endpoint (String name, Class<?> returnType, Class<?>[] parameterTypes,
+            Type elementType, RequestMethod requestMethod, String responseName, String path,
+            boolean compress, Annotation[] annotations, MethodInvoker invoker,
+            MethodInvoker versionInvoker, MethodInvoker lastModifiedInvoker, Method method) {
+            this.name = name;
+            this.returnType = returnType;
+            this.parameterTypes = parameterTypes;
+            this.elementType = elementType;
+            this.requestMethod = requestMethod;
+            this.responseName = responseName;
+            this.path = path;
+            this.compress = compress;
+            this.annotations = annotations;
+            this.invoker = invoker;
+            this.versionInvoker = versionInvoker;
+            this.lastModifiedInvoker = lastModifiedInvoker;
+            this.method = method;
+        }
+    }
+
+    /**
+     * Returns the generated dispatcher of the given servlet class, or null if it has none, in
+     * which case the servlet's methods are found by reflection. A servlet has none if the
+     * processor did not run when it was compiled, which is the default from JDK 23 on unless
+     * javac is given {@code -proc:full} or {@code -processor}.
+     */
+    public static Dispatcher forClass (Class<?> cls) {
+        Class<?> dcls;
+        try {
+            dcls = Class.forName(cls.getName() + SUFFIX, true, cls.getClassLoader());
+        } catch (ClassNotFoundException cnfe) {
+            // the servlet was compiled without the processor, which javac no longer runs by
+            // default on JDK 23 and later; reflection still finds the same methods
+            return null;
+        }
+        try {
+            return (Dispatcher)dcls.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            log.warning("Unable to create generated dispatcher, falling back on reflection",
+                "class", dcls, e);
+            return null;
+        }
+    }
+
+    /** Returns the endpoints of the servlet, in the order its methods were declared. */
+    public abstract List<Endpoint> endpoints ();
+
+    private static final Logger log = Logger.getLogger(Dispatcher.class);
+}
@@ -0,0 +1,171 @@
+package org.roguenet.simpler;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+/**
+ * Calls a mapped REST method without going through {@link Method#invoke}. When the servlet is
+ * constructed, {@link LambdaMetafactory} spins a small class for each method whose body calls it
+ * directly, just as a lambda would, so the JIT can inline the method into the call. If that is
+ * not possible, the method is resolved to a {@link MethodHandle} adapted to a fixed generic shape
+ * and called with {@code invokeExact}. Either way there are no per-call access checks and no
+ * argument array, and exceptions thrown by the method arrive unwrapped.
+ *
+ * Servlets built with the annotation processor do not use this class for their non-private
+ * methods: their generated dispatchers implement each invoker with a plain method call.
+ */
+public abstract class MethodInvoker {
+    /** Calls a method taking no arguments. Implemented by {@link LambdaMetafactory}. */
+    public interface NoArgCall {
+        Object call (Object target) throws Exception;
+    }
+
+    /** Calls a method taking one argument. Implemented by {@link LambdaMetafactory}. */
+    public interface OneArgCall {
+        Object call (Object target, Object param) throws Exception;
+    }
+
+    /**
+     * Creates an invoker for the given method, which must take zero or one parameters.
+     */
+    public static MethodInvoker create (Method method) {
+        int params = method.getParameterTypes().length;
+        if (params > 1) throw new IllegalArgumentException("Method has more than one parameter");
+        method.setAccessible(true);
+        MethodHandles.Lookup lookup = lookupIn(method.getDeclaringClass());
+        MethodHandle handle;
+        try {
+            handle = lookup.unreflect(method);
+        } catch (IllegalAccessException iae) {
+            throw new IllegalArgumentException("Unable to access method " + method, iae);
+        }
+        MethodInvoker spun = spin(lookup, handle, params);
+        if (spun != null) return spun;
+        handle = handle.asType(MethodType.genericMethodType(params + 1));
+        return params == 0 ? new NoArgHandle(handle) : new OneArgHandle(handle);
+    }
+
+    /**
+     * Invokes the method on the given target. Anything thrown by the method itself is propagated
+     * as-is.
+     */
+    public abstract Object invoke (Object target, Object param) throws Exception;
+
+    /**
+     * Returns a lookup with private access to the given class, so that the class spun for one of
+     * its methods may call it even if it is not public. That needs {@code privateLookupIn}, which
+     * is called reflectively since it first appeared in Java 9. Failing that, our own lookup is
+     * returned, which can only spin classes for public methods.
+     */
+    protected static MethodHandles.Lookup lookupIn (Class<?> cls) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        if (PRIVATE_LOOKUP_IN != null) {
+            try {
+                return (MethodHandles.Lookup)PRIVATE_LOOKUP_IN.invoke(null, cls, lookup);
+            } catch (Exception e) {
+                // fall through and use our own lookup
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * Spins a class implementing {@link NoArgCall} or {@link OneArgCall} by calling the given
+     * handle, or returns null if the lookup does not have the access needed to do so.
+     */
+    protected static MethodInvoker spin (MethodHandles.Lookup lookup, MethodHandle handle,
+        int params) {
+        Class<?> iface = params == 0 ? NoArgCall.class : OneArgCall.class;
+        MethodType erased = MethodType.genericMethodType(params + 1);
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "call",
+                MethodType.methodType(iface), erased, handle, handle.type().wrap());
+            Object call = site.getTarget().invoke();
+            return params == 0 ? new NoArg((NoArgCall)call) : new OneArg((OneArgCall)call);
+        } catch (Throwable t) {
+            // the lookup cannot see the method, or the interfaces are not visible from the
+            // method's class loader; we fall back to calling the handle
+            if (t instanceof VirtualMachineError) throw (VirtualMachineError)t;
+            return null;
+        }
+    }
+
+    protected static Exception rethrow (Throwable t) {
+        if (t instanceof Exception) return (Exception)t;
+        if (t instanceof Error) throw (Error)t;
+        return new UndeclaredThrowableException(t);
+    }
+
+    protected static class NoArg extends MethodInvoker {
+        public NoArg (NoArgCall call) {
+            _call = call;
+        }
+
+        @Override public Object invoke (Object target, Object param) throws Exception {
+            return _call.call(target);
+        }
+
+        protected final NoArgCall _call;
+    }
+
+    protected static class OneArg extends MethodInvoker {
+        public OneArg (OneArgCall call) {
+            _call = call;
+        }
+
+        @Override public Object invoke (Object target, Object param) throws Exception {
+            return _call.call(target, param);
+        }
+
+        protected final OneArgCall _call;
+    }
+
+    protected static class NoArgHandle extends MethodInvoker {
+        public NoArgHandle (MethodHandle handle) {
+            _handle = handle;
+        }
+
+        @Override public Object invoke (Object target, Object param) throws Exception {
+            try {
+                return (Object)_handle.invokeExact(target);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        protected final MethodHandle _handle;
+    }
+
+    protected static class OneArgHandle extends MethodInvoker {
+        public OneArgHandle (MethodHandle handle) {
+            _handle = handle;
+        }
+
+        @Override public Object invoke (Object target, Object param) throws Exception {
+            try {
+                return (Object)_handle.invokeExact(target, param);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        protected final MethodHandle _handle;
+    }
+
+    protected static final Method PRIVATE_LOOKUP_IN;
+    static {
+        Method privateLookupIn;
+        try {
+            privateLookupIn = MethodHandles.class.getMethod(
+                "privateLookupIn", Class.class, MethodHandles.Lookup.class);
+        } catch (NoSuchMethodException nsme) {
+            privateLookupIn = null;
+        }
+        PRIVATE_LOOKUP_IN = privateLookupIn;
+    }
+}
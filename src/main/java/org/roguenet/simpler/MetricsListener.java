@@ -0,0 +1,21 @@
+package org.roguenet.simpler;
+
+import org.roguenet.simpler.util.EndpointMetrics;
+
+/**
+ * Receives every call recorded by a servlet's metrics, for bridging them to some other metrics
+ * system. Listeners are called on the thread that completed the call, after its response has
+ * been written, so they should be quick.
+ */
+public interface MetricsListener
+{
+    /**
+     * Called when a call to the given endpoint completes.
+     *
+     * @param latencyNanos the time from the call being routed to its response being written.
+     * @param failed whether an error was sent to the client, in which case {@code errorCode} is
+     * the error's {@link RestException#code}.
+     */
+    void callCompleted (EndpointMetrics endpoint, long latencyNanos, boolean failed,
+        int errorCode, long requestBytes, long responseBytes);
+}
@@ -1,19 +1,30 @@
 package org.roguenet.simpler;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
 import com.microtome.Library;
 import com.microtome.MicrotomeCtx;
 import com.microtome.Page;
 import com.microtome.core.LibraryItem;
-import com.microtome.core.WritableObject;
 import com.microtome.error.MicrotomeError;
 import com.microtome.json.JsonUtil;
 import com.samskivert.util.Logger;
 import com.samskivert.util.StringUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletResponse;
+import org.roguenet.simpler.util.IdentityCache;
 import react.UnitSignal;
 
 /**
@@ -21,12 +32,65 @@ import react.UnitSignal;
  * POM to use MicrotomeSimplerServlet.
  */
 public class MicrotomeSimplerServlet extends SimplerServlet {
+    public MicrotomeSimplerServlet (String baseEndpoint, Gson gson, MicrotomeCtx microtome) {
+        this(baseEndpoint, gson, perThreadReset(), microtome);
+    }
+
     public MicrotomeSimplerServlet (String baseEndpoint, Gson gson,
             ThreadLocal<UnitSignal> reset, MicrotomeCtx microtome) {
         super(baseEndpoint, gson, reset);
         _microtome = microtome;
     }
 
+    /**
+     * Enables or disables caching of the serialized form of the Pages and Libraries returned by
+     * Microtome methods. Each is cached under its identity, so a method that returns the same
+     * instance again is answered without walking it, and a Library is cached both whole and item
+     * by item. Anything modified in place must be passed to {@link #invalidateMicrotome} before
+     * it is next returned.
+     */
+    public void setMicrotomeCaching (boolean enabled) {
+        _cacheMicrotome = enabled;
+        if (!enabled) invalidateMicrotome();
+    }
+
+    /**
+     * Drops the cached form of a Page, Library or library item. Libraries containing an item that
+     * was dropped are rebuilt the next time they are returned, reusing the cached forms of the
+     * items that were not.
+     */
+    public void invalidateMicrotome (Object pageOrLibrary) {
+        // the generation moves first, so that a form being written meanwhile is either dropped
+        // here or sees the new generation and drops itself; see cache()
+        _mtGeneration.incrementAndGet();
+        _mtResponses.remove(pageOrLibrary);
+        _mtItems.remove(pageOrLibrary);
+    }
+
+    /** Drops everything cached by {@link #setMicrotomeCaching}. */
+    public void invalidateMicrotome () {
+        _mtGeneration.incrementAndGet();
+        _mtResponses.clear();
+        _mtItems.clear();
+    }
+
+    /**
+     * Sets the number of distinct Microtome parameters whose parsed pages are kept by
+     * {@link #mtParam}, or 0, the default, to parse every parameter afresh. A kept page is
+     * returned to every call that sends the same parameter, so this should only be enabled if no
+     * method modifies the pages it is passed.
+     */
+    public void setMtParamCacheSize (int maxEntries) {
+        synchronized (_mtParams) {
+            _mtParamLimit = maxEntries;
+            _mtParams.clear();
+        }
+    }
+
+    @Override protected boolean methodIsMicrotome (Dispatcher.Endpoint endpoint) {
+        return endpoint.annotation(NotMicrotome.class) == null;
+    }
+
     @Override protected boolean methodIsMicrotome (Method method) {
         return !method.isAnnotationPresent(NotMicrotome.class);
     }
@@ -39,46 +103,285 @@ public class MicrotomeSimplerServlet extends SimplerServlet {
         }
         if (!(response instanceof Page) && !(response instanceof Library)) {
             log.warning("Response must be a subclass of Page or Library, falling back on gson " +
-                "serialization", "method", method.method);
+                "serialization", "method", method);
             super.serializeResponse(method, response, out);
             return;
         }
 
-        JsonObject json = new JsonObject();
-        WritableObject writer = JsonUtil.createWriter(method.responseName, json);
+        if (_cacheMicrotome) {
+            boolean wrapped = response instanceof Page && method.responseName != null;
+            if (wrapped) writeMemberName(method.responseName, true, out);
+            out.write(serialized(method, response).text());
+            if (wrapped) out.write('}');
+        } else if (response instanceof Page) {
+            JsonObject json = new JsonObject();
+            _microtome.write((Page)response, JsonUtil.createWriter(method.responseName, json));
+            if (method.responseName != null) writeMemberName(method.responseName, true, out);
+            _gson.toJson(json, out);
+            if (method.responseName != null) out.write('}');
+        } else {
+            // each library item is written to its own small tree and streamed out before moving
+            // on to the next, so only one item is held in memory at a time
+            boolean first = true;
+            for (LibraryItem item : ((Library)response).children()) {
+                JsonObject json = new JsonObject();
+                _microtome.write(item, JsonUtil.createWriter(item.name(), json));
+                first = writeMembers(json, first, out);
+            }
+            if (first) out.write('{');
+            out.write('}');
+        }
+    }
+
+    @Override protected void encodeResponse (RestMethod method, Object response, JsonWriter out)
+        throws IOException {
+        if (!method.microtome || response == null) {
+            super.encodeResponse(method, response, out);
+            return;
+        }
+        if (!(response instanceof Page) && !(response instanceof Library)) {
+            log.warning("Response must be a subclass of Page or Library, falling back on gson " +
+                "serialization", "method", method);
+            super.encodeResponse(method, response, out);
+            return;
+        }
+
         if (response instanceof Page) {
-            _microtome.write((Page)response, writer);
+            JsonElement json;
+            if (_cacheMicrotome) {
+                json = serialized(method, response).tree();
+            } else {
+                JsonObject page = new JsonObject();
+                _microtome.write((Page)response, JsonUtil.createWriter(method.responseName, page));
+                json = page;
+            }
             if (method.responseName != null) {
-                JsonObject wrapper = new JsonObject();
-                wrapper.add(method.responseName, json);
-                json = wrapper;
+                out.beginObject();
+                out.name(method.responseName);
             }
+            _gson.toJson(json, out);
+            if (method.responseName != null) out.endObject();
+        } else if (_cacheMicrotome) {
+            _gson.toJson(serialized(method, response).tree(), out);
         } else {
+            out.beginObject();
             for (LibraryItem item : ((Library)response).children()) {
+                JsonObject json = new JsonObject();
                 _microtome.write(item, JsonUtil.createWriter(item.name(), json));
+                for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+                    out.name(entry.getKey());
+                    _gson.toJson(entry.getValue(), out);
+                }
             }
+            out.endObject();
+        }
+    }
+
+    /**
+     * Sends a cached Page or Library as the bytes it was cached as, rather than writing it out
+     * through a buffer's writer.
+     */
+    @Override protected void sendResponse (RestMethod method, Object response,
+            HttpServletResponse rsp) throws IOException {
+        if (!_cacheMicrotome || !method.microtome ||
+            (!(response instanceof Page) && !(response instanceof Library))) {
+            super.sendResponse(method, response, rsp);
+            return;
         }
-        _gson.toJson(json, out);
+        byte[] body = serialized(method, response).json;
+        if (response instanceof Page && method.responseName != null) {
+            StringWriter name = new StringWriter();
+            writeMemberName(method.responseName, true, new PrintWriter(name));
+            byte[] prefix = name.toString().getBytes(StandardCharsets.UTF_8);
+            byte[] wrapped = new byte[prefix.length + body.length + 1];
+            System.arraycopy(prefix, 0, wrapped, 0, prefix.length);
+            System.arraycopy(body, 0, wrapped, prefix.length, body.length);
+            wrapped[wrapped.length - 1] = '}';
+            body = wrapped;
+        }
+        writeBody(method, rsp, body, body.length, "application/json", null);
+    }
+
+    /**
+     * Streams the members of the given object as members of the enclosing object being written.
+     * Returns the new value of {@code first} for {@link #writeMemberName}.
+     */
+    protected boolean writeMembers (JsonObject json, boolean first, PrintWriter out) {
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            writeMemberName(entry.getKey(), first, out);
+            _gson.toJson(entry.getValue(), out);
+            first = false;
+        }
+        return first;
+    }
+
+    /**
+     * Returns the cached form of a Page or Library returned by a method, serializing it if it has
+     * not been yet. A page is cached without the responseName wrapper.
+     */
+    protected Serialized serialized (RestMethod method, Object response) {
+        if (response instanceof Library) return serializedLibrary((Library)response);
+        long generation = _mtGeneration.get();
+        Serialized cached = _mtResponses.get(response);
+        if (cached != null && Objects.equals(cached.name, method.responseName)) return cached;
+        JsonObject json = new JsonObject();
+        _microtome.write((Page)response, JsonUtil.createWriter(method.responseName, json));
+        cached = new Serialized(utf8(_gson.toJson(json)), method.responseName, generation);
+        cache(_mtResponses, response, cached);
+        return cached;
+    }
+
+    /**
+     * Returns the cached form of a whole Library. If anything has been invalidated since it was
+     * cached, it is rebuilt from the cached forms of its items, serializing only those that have
+     * no cached form.
+     */
+    protected Serialized serializedLibrary (Library library) {
+        // read first, so that an invalidation while the library is being built is not missed
+        long generation = _mtGeneration.get();
+        Serialized cached = _mtResponses.get(library);
+        if (cached != null && cached.generation == generation) return cached;
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream(
+            cached == null ? 1024 : cached.json.length);
+        json.write('{');
+        boolean first = true;
+        for (LibraryItem item : library.children()) {
+            byte[] members = serializedItem(item);
+            if (members.length == 0) continue;
+            if (!first) json.write(',');
+            json.write(members, 0, members.length);
+            first = false;
+        }
+        json.write('}');
+        // a library built from a form invalidated meanwhile is rebuilt when next returned, as it
+        // is cached under the generation read before its items were
+        cached = new Serialized(json.toByteArray(), null, generation);
+        _mtResponses.put(library, cached);
+        return cached;
+    }
+
+    /**
+     * Returns the members a library item contributes to its library's object, serialized and
+     * separated by commas, without the enclosing braces.
+     */
+    protected byte[] serializedItem (LibraryItem item) {
+        long generation = _mtGeneration.get();
+        Serialized cached = _mtItems.get(item);
+        if (cached != null) return cached.json;
+        JsonObject json = new JsonObject();
+        _microtome.write(item, JsonUtil.createWriter(item.name(), json));
+        StringWriter buf = new StringWriter();
+        PrintWriter out = new PrintWriter(buf);
+        boolean first = writeMembers(json, true, out);
+        out.flush();
+        // drop the opening brace that writeMembers starts the enclosing object with
+        byte[] members = utf8(first ? "" : buf.getBuffer().substring(1));
+        cache(_mtItems, item, new Serialized(members, item.name(), generation));
+        return members;
+    }
+
+    /**
+     * Caches the form of a page or item written starting in the generation it records, unless it
+     * has been invalidated since then, in which case it may have been written from the old state.
+     * An invalidation that lands between the check and the put moves the generation before
+     * dropping anything, so the check after the put catches it.
+     */
+    protected void cache (IdentityCache<Serialized> cache, Object key, Serialized form) {
+        if (_mtGeneration.get() != form.generation) return;
+        cache.put(key, form);
+        if (_mtGeneration.get() != form.generation) cache.remove(key, form);
+    }
+
+    protected static byte[] utf8 (String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * Returns the page in the named Microtome parameter, or null if there is none or it could not
+     * be read. If {@link #setMtParamCacheSize} keeps parsed pages, parameters that repeat are
+     * parsed once, and the same page is returned to every caller, so it must not be modified.
+     */
     protected <T extends Page> T mtParam (String name) {
         String param = stringParam(name);
         if (StringUtil.isBlank(param)) return null;
 
+        String key = name + '\n' + param;
+        Page page;
+        synchronized (_mtParams) {
+            page = _mtParams.get(key);
+        }
+        if (page == null) {
+            page = parseMtParam(name, param);
+            if (page == null) return null;
+            synchronized (_mtParams) {
+                if (_mtParamLimit > 0) _mtParams.put(key, page);
+            }
+        }
+        @SuppressWarnings("unchecked")
+        T typed = (T)page;
+        return typed;
+    }
+
+    protected Page parseMtParam (String name, String param) {
         try {
-            JsonObject obj = (JsonObject)new JsonParser().parse(param);
+            JsonObject obj = (JsonObject)PARSER.parse(param);
             Library lib = new Library();
             _microtome.load(lib, JsonUtil.createReaders(obj));
-            @SuppressWarnings("unchecked")
-            T page = (T)lib.getItem(name);
-            return page;
+            return (Page)lib.getItem(name);
         } catch (MicrotomeError me) {
             log.warning("Error reading Microtome parameter", "json", param, me);
             return null;
         }
     }
 
+    /**
+     * The serialized JSON of a Page, Library or library item, held as the UTF-8 bytes in which it
+     * is sent.
+     */
+    protected static class Serialized {
+        public final byte[] json;
+        /** The name the page or item was written under. */
+        public final String name;
+        /** The invalidation generation in which it was written. */
+        public final long generation;
+
+        public Serialized (byte[] json, String name, long generation) {
+            this.json = json;
+            this.name = name;
+            this.generation = generation;
+        }
+
+        /** Returns the JSON as text, for writing through a writer. */
+        public String text () {
+            return new String(json, StandardCharsets.UTF_8);
+        }
+
+        /** Returns the JSON as a tree, for encoding with a codec. */
+        public JsonElement tree () {
+            JsonElement tree = _tree;
+            if (tree == null) _tree = tree = PARSER.parse(text());
+            return tree;
+        }
+
+        protected volatile JsonElement _tree;
+    }
+
     protected final MicrotomeCtx _microtome;
+    protected volatile boolean _cacheMicrotome;
+    protected final IdentityCache<Serialized> _mtResponses = new IdentityCache<Serialized>();
+    protected final IdentityCache<Serialized> _mtItems = new IdentityCache<Serialized>();
+    protected final AtomicLong _mtGeneration = new AtomicLong();
+    protected int _mtParamLimit;
+    protected final LinkedHashMap<String, Page> _mtParams =
+        new LinkedHashMap<String, Page>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<String, Page> eldest) {
+                return size() > _mtParamLimit;
+            }
+        };
+
+    /** Gson's parser holds no state of its own, so one is shared by every call. */
+    protected static final JsonParser PARSER = new JsonParser();
 
     private static final Logger log = Logger.getLogger(MicrotomeSimplerServlet.class);
 }
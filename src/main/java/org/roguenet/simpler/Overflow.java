@@ -0,0 +1,14 @@
+package org.roguenet.simpler;
+
+/**
+ * What a {@link RestStream} does with a new event when a client has fallen so far behind that its
+ * buffer of unsent events is full.
+ */
+public enum Overflow {
+    /** Drops the oldest unsent event to make room, so the client skips ahead to recent events. */
+    DROP_OLDEST,
+    /** Drops the new event, so the client gets the events it has missed but not the latest. */
+    DROP_NEWEST,
+    /** Closes the connection, leaving the client to reconnect and catch up from scratch. */
+    DISCONNECT;
+}
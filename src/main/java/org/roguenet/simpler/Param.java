@@ -0,0 +1,34 @@
+package org.roguenet.simpler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Binds a field of a method's parameter class to a request parameter. A method whose single
+ * parameter is a class with {@code @Param} fields is handed a new instance of that class for each
+ * call, with its fields set from the query parameters rather than read from the request body, so
+ * GET methods can take one too. Fields may be Strings, enums, or ints, longs, booleans or doubles,
+ * boxed or not. A field whose parameter is not sent keeps the value the class initializes it to.
+ *
+ * <pre>{@code
+ * public static class Search {
+ *     @Param public String q;
+ *     @Param public int limit = 20;
+ *     @Param("order") public Order sortOrder = Order.NEWEST;
+ * }
+ *
+ * @RestGet public List<Item> search (Search search) { ... }
+ * }</pre>
+ */
+@Target({ElementType.FIELD})
+@Retention(value=RetentionPolicy.RUNTIME)
+public @interface Param
+{
+    /** The name of the request parameter, if it differs from the name of the field. */
+    String value () default "";
+
+    /** If true, a call without the parameter is sent an error rather than being run. */
+    boolean required () default false;
+}
@@ -0,0 +1,21 @@
+package org.roguenet.simpler;
+
+/**
+ * How important a method's calls are when the servlet is overloaded. Each priority may use a
+ * share of the servlet's concurrency limit, so as calls pile up the least important are shed
+ * first and the most important keep working until the whole limit is in use.
+ */
+public enum Priority {
+    /** Health checks and the like, which may use the servlet's entire limit. */
+    CRITICAL(1.0),
+    NORMAL(0.8),
+    /** Expensive calls, such as bulk reads and writes, which are shed first. */
+    BULK(0.5);
+
+    /** The fraction of the servlet's concurrency limit that calls of this priority may use. */
+    public final double share;
+
+    Priority (double share) {
+        this.share = share;
+    }
+}
@@ -0,0 +1,277 @@
+package org.roguenet.simpler;
+
+import com.threerings.servlet.util.Parameters;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.roguenet.simpler.util.ConcurrencyLimiter;
+import org.roguenet.simpler.util.EndpointMetrics;
+import org.roguenet.simpler.util.Router;
+
+/**
+ * Everything Simpler knows about the call currently being handled. A context is created once per
+ * call and bound for as long as the call is running on a thread, including when an asynchronous
+ * call is completed on some other thread, and is found with a single lookup through
+ * {@link #current}.
+ *
+ * On JDKs where {@code java.lang.ScopedValue} is final (25 and newer) contexts are bound with a
+ * scoped value, so they are cheap to use from virtual threads and cannot leak from one call to
+ * the next; elsewhere a ThreadLocal is used. Setting the {@code simpler.context} system property
+ * to {@code threadlocal} or {@code scoped} overrides the choice.
+ */
+public class RequestContext {
+    /** A unit of work run with a context bound. */
+    public interface Body<E extends Exception> {
+        void run () throws E;
+    }
+
+    /** Returns the context bound to the current thread, or null if there is none. */
+    public static RequestContext current () {
+        return SCOPE.current();
+    }
+
+    /**
+     * Runs the given body with the given context bound, restoring whatever context was bound
+     * before once it is done.
+     */
+    public static <E extends Exception> void run (RequestContext ctx, Body<E> body) throws E {
+        SCOPE.run(ctx, body);
+    }
+
+    public RequestContext (HttpServletRequest req, HttpServletResponse rsp,
+            Router.Match<?> route, RequestMethod requestMethod) {
+        _req = req;
+        _rsp = rsp;
+        _route = route;
+        _requestMethod = requestMethod;
+        _startNanos = System.nanoTime();
+    }
+
+    public HttpServletRequest request () {
+        return _req;
+    }
+
+    public HttpServletResponse response () {
+        return _rsp;
+    }
+
+    public RequestMethod requestMethod () {
+        return _requestMethod;
+    }
+
+    public Router.Match<?> route () {
+        return _route;
+    }
+
+    /** Returns the request parameters, which are wrapped the first time they are asked for. */
+    public Parameters params () {
+        if (_params == null) _params = new Parameters(_req);
+        return _params;
+    }
+
+    /** Returns the part of the path following the method name, for methods routed by name. */
+    public String pathInfo () {
+        if (_pathInfo == null) _pathInfo = _route.rest();
+        return _pathInfo;
+    }
+
+    /** Returns the {@link System#nanoTime} at which the call started. */
+    public long startNanos () {
+        return _startNanos;
+    }
+
+    /** Returns the trace of the call, or null if tracing is not enabled. */
+    public Trace trace () {
+        return _trace;
+    }
+
+    /** Returns true if the call resulted in an error being sent to the client. */
+    public boolean failed () {
+        return _failed;
+    }
+
+    /** Returns the code of the error sent to the client, if {@link #failed}. */
+    public int errorCode () {
+        return _errorCode;
+    }
+
+    /** Returns the number of response body bytes Simpler has sent for the call so far. */
+    public long responseBytes () {
+        return _responseBytes;
+    }
+
+    /** Notes that the call failed with an error of the given code. */
+    public void fail (int errorCode) {
+        _failed = true;
+        _errorCode = errorCode;
+    }
+
+    public void addResponseBytes (long bytes) {
+        _responseBytes += bytes;
+    }
+
+    /**
+     * Returns the value stored in the given slot, or {@code unset} if the slot has not been set
+     * during this call.
+     */
+    public Object getLocal (int slot, Object unset) {
+        if (_locals == null || slot >= _locals.length) return unset;
+        Object value = _locals[slot];
+        return value == null ? unset : value == NULL ? null : value;
+    }
+
+    public void setLocal (int slot, Object value) {
+        if (_locals == null || slot >= _locals.length) {
+            int size = Math.max(slot + 1, _nextSlot.get());
+            _locals = _locals == null ? new Object[size] : Arrays.copyOf(_locals, size);
+        }
+        _locals[slot] = value == null ? NULL : value;
+    }
+
+    public void removeLocal (int slot) {
+        if (_locals != null && slot < _locals.length) _locals[slot] = null;
+    }
+
+    /** Allocates a slot for a value stored per call, such as a {@code RequestLocal}. */
+    public static int allocateSlot () {
+        return _nextSlot.getAndIncrement();
+    }
+
+    /** Binds contexts to threads. */
+    protected interface Scope {
+        RequestContext current ();
+        <E extends Exception> void run (RequestContext ctx, Body<E> body) throws E;
+    }
+
+    protected static class ThreadLocalScope implements Scope {
+        @Override public RequestContext current () {
+            return _current.get();
+        }
+
+        @Override public <E extends Exception> void run (RequestContext ctx, Body<E> body)
+            throws E {
+            RequestContext previous = _current.get();
+            _current.set(ctx);
+            try {
+                body.run();
+            } finally {
+                if (previous == null) {
+                    _current.remove();
+                } else {
+                    _current.set(previous);
+                }
+            }
+        }
+
+        protected final ThreadLocal<RequestContext> _current = new ThreadLocal<RequestContext>();
+    }
+
+    /**
+     * Binds contexts with {@code java.lang.ScopedValue}, reached through method handles since we
+     * compile against older JDKs.
+     */
+    protected static class ScopedValueScope implements Scope {
+        public ScopedValueScope () throws Throwable {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> svClass = Class.forName("java.lang.ScopedValue");
+            Class<?> carrierClass = Class.forName("java.lang.ScopedValue$Carrier");
+            _key = lookup.findStatic(svClass, "newInstance", MethodType.methodType(svClass))
+                .invoke();
+            _isBound = lookup.findVirtual(svClass, "isBound", MethodType.methodType(boolean.class))
+                .bindTo(_key);
+            _get = lookup.findVirtual(svClass, "get", MethodType.methodType(Object.class))
+                .bindTo(_key);
+            MethodHandle where = lookup.findStatic(svClass, "where",
+                MethodType.methodType(carrierClass, svClass, Object.class));
+            _where = MethodHandles.insertArguments(where, 0, _key)
+                .asType(MethodType.methodType(Object.class, RequestContext.class));
+            _run = lookup.findVirtual(carrierClass, "run",
+                MethodType.methodType(void.class, Runnable.class))
+                .asType(MethodType.methodType(void.class, Object.class, Runnable.class));
+        }
+
+        @Override public RequestContext current () {
+            try {
+                if (!(boolean)_isBound.invokeExact()) return null;
+                return (RequestContext)(Object)_get.invokeExact();
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override public <E extends Exception> void run (RequestContext ctx, final Body<E> body)
+            throws E {
+            final Throwable[] failure = new Throwable[1];
+            try {
+                Object carrier = (Object)_where.invokeExact(ctx);
+                _run.invokeExact(carrier, (Runnable)new Runnable() {
+                    public void run () {
+                        try {
+                            body.run();
+                        } catch (Throwable t) {
+                            failure[0] = t;
+                        }
+                    }
+                });
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+            if (failure[0] instanceof Error) throw (Error)failure[0];
+            if (failure[0] != null) {
+                @SuppressWarnings("unchecked") E e = (E)failure[0];
+                throw e;
+            }
+        }
+
+        protected final Object _key;
+        protected final MethodHandle _isBound, _get, _where, _run;
+    }
+
+    protected static Scope createScope () {
+        String mode = System.getProperty("simpler.context");
+        boolean scoped = mode == null ? scopedValuesFinal() : mode.equals("scoped");
+        if (scoped) {
+            try {
+                return new ScopedValueScope();
+            } catch (Throwable t) {
+                // fall through to the ThreadLocal implementation
+            }
+        }
+        return new ThreadLocalScope();
+    }
+
+    protected static boolean scopedValuesFinal () {
+        String version = System.getProperty("java.specification.version", "");
+        try {
+            return !version.startsWith("1.") && Integer.parseInt(version) >= 25;
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    protected final HttpServletRequest _req;
+    protected final HttpServletResponse _rsp;
+    protected final Router.Match<?> _route;
+    protected final RequestMethod _requestMethod;
+    protected Parameters _params;
+    protected String _pathInfo;
+    protected Object[] _locals;
+    protected final long _startNanos;
+    protected boolean _failed, _async;
+    protected int _errorCode;
+    protected long _responseBytes;
+    protected EndpointMetrics _metrics;
+    protected Trace _trace;
+    /** The concurrency limits the call holds a place under, released when it completes. */
+    protected ConcurrencyLimiter _servletLimit, _methodLimit;
+    /** The codec the response is encoded with, or null if it is sent as JSON. */
+    protected Codec _codec;
+
+    protected static final Scope SCOPE = createScope();
+    protected static final Object NULL = new Object();
+    protected static final AtomicInteger _nextSlot = new AtomicInteger();
+}
@@ -2,13 +2,21 @@ package org.roguenet.simpler;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 public class RestException extends ServletException {
     public static final int DEFAULT_CODE = 200;
+    public static final int NOT_FOUND = 404;
     public static final int INTERNAL_ERROR = 500;
+    public static final int UNAVAILABLE = 503;
+    public static final int TIMEOUT = 504;
+    /** The result of an asynchronous method was cancelled before it completed. */
+    public static final int CANCELLED = 499;
 
     public final int code;
 
@@ -17,11 +25,46 @@ public class RestException extends ServletException {
     }
 
     public static void throwIf (boolean expr, int code, String message) throws RestException {
-        if (expr) throw new RestException(code, message);
+        if (expr) throw stackless(code, message);
     }
 
     public static void accessDenied (boolean redirectToLogin) throws RestException {
-        throw new RestException(redirectToLogin ? 201 : 200, "Access denied.");
+        throw constant(redirectToLogin ? 201 : 200, "Access denied.");
+    }
+
+    /**
+     * Creates an exception without a stack trace. Filling in the stack is most of the cost of
+     * creating an exception, and is wasted on errors that are part of a method's normal control
+     * flow, such as a failed validation, which are sent to the client but never logged with it.
+     */
+    public static RestException stackless (int code, String message) {
+        return new Stackless(code, message, null);
+    }
+
+    /**
+     * Creates an exception without a stack trace for an error whose code and message never
+     * change. The body sent for such an error is encoded the first time it is sent and reused
+     * after that. The message should be a constant, as every distinct one is kept for the life of
+     * the process; up to {@link #MAX_CONSTANTS} are cached, and any beyond that are encoded each
+     * time they are sent.
+     */
+    public static RestException constant (int code, String message) {
+        if (message == null) return stackless(code, message);
+        Body body = CONSTANTS.get(message);
+        for (Body bb = body; bb != null; bb = bb.next) {
+            if (bb.code == code) return new Stackless(code, message, bb);
+        }
+        if (CONSTANTS.size() >= MAX_CONSTANTS) return stackless(code, message);
+        Body added = CONSTANTS.compute(message, (key, chain) -> {
+            for (Body bb = chain; bb != null; bb = bb.next) {
+                if (bb.code == code) return chain;
+            }
+            return new Body(code, chain);
+        });
+        for (Body bb = added; bb != null; bb = bb.next) {
+            if (bb.code == code) return new Stackless(code, message, bb);
+        }
+        return stackless(code, message);
     }
 
     public RestException (String message) {
@@ -40,9 +83,88 @@ public class RestException extends ServletException {
         gson.toJson(root, rsp.getWriter());
     }
 
+    /**
+     * Writes this error in the given encoding, or as JSON if the codec is null.
+     */
+    public void write (Gson gson, HttpServletResponse rsp, Codec codec) throws IOException {
+        if (codec == null) {
+            write(gson, rsp);
+            return;
+        }
+        rsp.setHeader("Content-Type", codec.contentType());
+        JsonWriter writer = codec.newWriter(rsp.getOutputStream());
+        writer.beginObject();
+        writer.name("error");
+        gson.toJson(addProperties(new JsonObject()), writer);
+        writer.endObject();
+        writer.flush();
+    }
+
     protected JsonObject addProperties (JsonObject json) {
         json.addProperty("message", getMessage());
         json.addProperty("code", code);
         return json;
     }
+
+    /** The most distinct messages whose bodies are cached by {@link #constant}. */
+    public static final int MAX_CONSTANTS = 1024;
+
+    /** An exception that skips filling in its stack, and may reuse an encoded body. */
+    protected static class Stackless extends RestException {
+        public Stackless (int code, String message, Body body) {
+            super(code, message);
+            _body = body;
+        }
+
+        @Override public Throwable fillInStackTrace () {
+            return this;
+        }
+
+        @Override public void write (Gson gson, HttpServletResponse rsp) throws IOException {
+            if (_body == null) {
+                super.write(gson, rsp);
+                return;
+            }
+            rsp.setHeader("Content-Type", "application/json");
+            rsp.getWriter().write(_body.json(gson, this));
+        }
+
+        protected final Body _body;
+    }
+
+    /** The encoded body of a constant error, chained to those with the same message. */
+    protected static class Body {
+        public final int code;
+        public final Body next;
+
+        public Body (int code, Body next) {
+            this.code = code;
+            this.next = next;
+        }
+
+        /** Returns the body as written by the given Gson, encoding it if need be. */
+        public String json (Gson gson, RestException error) {
+            Encoded encoded = _encoded;
+            if (encoded == null || encoded.gson != gson) {
+                JsonObject root = new JsonObject();
+                root.add("error", error.addProperties(new JsonObject()));
+                _encoded = encoded = new Encoded(gson, gson.toJson(root));
+            }
+            return encoded.json;
+        }
+
+        protected volatile Encoded _encoded;
+    }
+
+    protected static class Encoded {
+        public final Gson gson;
+        public final String json;
+
+        public Encoded (Gson gson, String json) {
+            this.gson = gson;
+            this.json = json;
+        }
+    }
+
+    protected static final Map<String, Body> CONSTANTS = new ConcurrentHashMap<String, Body>();
 }
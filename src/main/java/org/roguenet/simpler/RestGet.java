@@ -15,5 +15,18 @@ public @interface RestGet
      * as the value.
      */
     String name () default "";
-}
 
+    /**
+     * If set, the method is routed by this path template rather than by its name, for example
+     * {@code /users/{id:int}/posts/{postId}}. Variables in braces match a single path segment,
+     * optionally typed as {@code int} or {@code long}, and are available to the method through
+     * {@code pathParam} and friends.
+     */
+    String path () default "";
+
+    /**
+     * If false, the method's responses are never compressed, even when the client accepts a
+     * compressed encoding.
+     */
+    boolean compress () default true;
+}
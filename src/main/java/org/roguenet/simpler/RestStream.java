@@ -0,0 +1,41 @@
+package org.roguenet.simpler;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Maps a GET method that returns a {@code react.SignalView} as a stream of Server-Sent Events.
+ * The method is called once when a client connects, and every value the signal emits from then
+ * on is serialized with the servlet's Gson and sent as the data of an event, until the client
+ * goes away. Connections are held open asynchronously, so an idle stream holds no thread.
+ *
+ * Clients sharing a signal share its serialization: each value is serialized once however many
+ * clients are listening. Simpler connects to each signal once, when a client first streams it,
+ * and stays connected while the signal is in use, so clients connecting and disconnecting do not
+ * touch the signal's listeners while the application emits it.
+ */
+@Target({ElementType.METHOD})
+@Retention(value=RetentionPolicy.RUNTIME)
+public @interface RestStream
+{
+    /** The path template by which the method is routed, as for {@link RestGet#path}. */
+    String path () default "";
+
+    /** The name sent with each event, or blank to send unnamed "message" events. */
+    String event () default "";
+
+    /**
+     * How often, in milliseconds, a comment is sent on a connection with nothing else to send, so
+     * that proxies do not time it out and clients that have gone away are noticed. Zero disables
+     * heartbeats.
+     */
+    long heartbeat () default 15000;
+
+    /** The most events held for a client that has not yet received them. */
+    int bufferSize () default 64;
+
+    /** What to do with a new event when a client's buffer is full. */
+    Overflow overflow () default Overflow.DROP_OLDEST;
+}
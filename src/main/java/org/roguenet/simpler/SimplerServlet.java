@@ -1,210 +1,1972 @@
 package org.roguenet.simpler;
 
-import com.google.common.base.Function;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.samskivert.util.Logger;
 import com.samskivert.util.StringUtil;
-import com.threerings.servlet.util.Converters;
 import com.threerings.servlet.util.Parameters;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.lang.reflect.InvocationTargetException;
+import java.io.Reader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.BaseStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.roguenet.simpler.util.BatchLoader;
+import org.roguenet.simpler.util.BatchRequest;
+import org.roguenet.simpler.util.BufferedResponse;
+import org.roguenet.simpler.util.Coalescer;
+import org.roguenet.simpler.util.Compression;
+import org.roguenet.simpler.util.ConcurrencyLimiter;
+import org.roguenet.simpler.util.CountingResponse;
+import org.roguenet.simpler.util.EndpointMetrics;
+import org.roguenet.simpler.util.ErrorLog;
+import org.roguenet.simpler.util.EventStream;
+import org.roguenet.simpler.util.EventStreams;
+import org.roguenet.simpler.util.ContextLocal;
+import org.roguenet.simpler.util.JsonRecordIterator;
+import org.roguenet.simpler.util.ParamBinder;
+import org.roguenet.simpler.util.ParamParser;
 import org.roguenet.simpler.util.RequestLocal;
+import org.roguenet.simpler.util.ResponseBuffer;
+import org.roguenet.simpler.util.ResponseCache;
+import org.roguenet.simpler.util.Router;
+import react.SignalView;
 import react.UnitSignal;
 
 public abstract class SimplerServlet extends HttpServlet {
+    /**
+     * Creates a servlet that emits a per-thread reset signal at the end of each call, for code
+     * that uses {@link RequestLocal}s outside of a call and relies on them being reset.
+     */
     public SimplerServlet (String baseEndpoint, Gson gson) {
-        this(baseEndpoint, gson, new ThreadLocal<UnitSignal>() {
+        this(baseEndpoint, gson, perThreadReset());
+    }
+
+    /**
+     * Creates a servlet that emits the given per-thread signal at the end of each call. Null
+     * creates no signal: the servlet's request locals then live only in the state of each call,
+     * so nothing is kept per thread, which suits calls that run on a thread of their own (see
+     * {@link #useVirtualThreads}).
+     */
+    public SimplerServlet (String baseEndpoint, Gson gson, ThreadLocal<UnitSignal> reset) {
+        _reset = reset;
+        if (_reset != null && _reset.get() == null) {
+            log.error("The reset ThreadLocal must be configured with initialValue.");
+        }
+        _baseEndpoint = baseEndpoint;
+        _gson = gson;
+
+        // these are views of the RequestContext, which holds the state of each call
+        _req = new ContextLocal<HttpServletRequest>(_reset, RequestContext::request);
+        _rsp = new ContextLocal<HttpServletResponse>(_reset, RequestContext::response);
+        _params = new ContextLocal<Parameters>(_reset, RequestContext::params);
+        _pathInfo = new ContextLocal<String>(_reset, RequestContext::pathInfo);
+        _route = new ContextLocal<Router.Match<RestMethod>>(_reset, SimplerServlet::routeOf);
+        _requestMethod = new ContextLocal<RequestMethod>(_reset, RequestContext::requestMethod);
+
+        Dispatcher dispatcher = Dispatcher.forClass(getClass());
+        if (dispatcher != null) {
+            for (Dispatcher.Endpoint endpoint : dispatcher.endpoints()) mapEndpoint(endpoint);
+            return;
+        }
+        for (Method method : getClass().getDeclaredMethods()) {
+            if (method.isAnnotationPresent(RestGet.class)) {
+                Class<?>[] params = method.getParameterTypes();
+                if (params.length > 0 && !ParamBinder.binds(params[0])) {
+                    log.warning("GET method has parameter types, unexpected", "method", method);
+                }
+                RestGet rest = method.getAnnotation(RestGet.class);
+                mapMethod(method, RequestMethod.GET, rest.name(), rest.path(), rest.compress());
+            }
+            if (method.isAnnotationPresent(RestStream.class)) {
+                if (method.isAnnotationPresent(RestGet.class)) {
+                    log.warning("Method is both a GET and a stream, not mapping the stream",
+                        "method", method);
+                } else {
+                    RestStream rest = method.getAnnotation(RestStream.class);
+                    mapMethod(method, RequestMethod.GET, null, rest.path(), false);
+                }
+            }
+            if (method.isAnnotationPresent(RestPost.class)) {
+                RestPost rest = method.getAnnotation(RestPost.class);
+                mapMethod(method, RequestMethod.POST, rest.name(), rest.path(), rest.compress());
+            }
+            if (method.isAnnotationPresent(RestPut.class)) {
+                RestPut rest = method.getAnnotation(RestPut.class);
+                mapMethod(method, RequestMethod.PUT, rest.name(), rest.path(), rest.compress());
+            }
+            if (method.isAnnotationPresent(RestDelete.class)) {
+                RestDelete rest = method.getAnnotation(RestDelete.class);
+                mapMethod(method, RequestMethod.DELETE, rest.name(), rest.path(), rest.compress());
+            }
+        }
+    }
+
+    public String getBaseEndpoint () { return _baseEndpoint; }
+
+    @Override
+    protected final void doGet (HttpServletRequest req, HttpServletResponse rsp)
+        throws IOException, ServletException {
+        if (!handleRequest(req, rsp, _getRoutes, RequestMethod.GET)) super.doGet(req, rsp);
+    }
+
+    @Override
+    protected final void doPost (HttpServletRequest req, HttpServletResponse rsp)
+        throws IOException, ServletException {
+        if (!handleRequest(req, rsp, _postRoutes, RequestMethod.POST)) super.doPost(req, rsp);
+    }
+
+    @Override
+    protected final void doPut (HttpServletRequest req, HttpServletResponse rsp)
+        throws IOException, ServletException {
+        if (!handleRequest(req, rsp, _putRoutes, RequestMethod.PUT)) super.doPut(req, rsp);
+    }
+
+    @Override protected void doDelete (HttpServletRequest req, HttpServletResponse rsp)
+        throws ServletException, IOException {
+        if (!handleRequest(req, rsp, _deleteRoutes, RequestMethod.DELETE)) super.doDelete(req, rsp);
+    }
+
+    /**
+     * Maps a method for the given request method. Methods with a path template are routed by that
+     * template; all others are routed by name, with anything following the name in the path
+     * available from {@link #strId} and friends. The special names {@code _findAll} and
+     * {@code _find} are also routed from the servlet root and from any path no other method
+     * matches, respectively.
+     */
+    protected void mapMethod (Method method, RequestMethod requestMethod, String responseName,
+            String path, boolean compress) {
+        mapEndpoint(Dispatcher.Endpoint.of(method, requestMethod, responseName, path, compress));
+    }
+
+    /**
+     * Maps an endpoint: one listed by the servlet's generated {@link Dispatcher}, which comes with
+     * the method's annotations and an invoker that calls it, or one found by scanning the
+     * servlet's methods, which is called through an invoker made by {@link MethodInvoker}.
+     */
+    protected void mapEndpoint (Dispatcher.Endpoint endpoint) {
+        String name = endpoint.name;
+        RequestMethod requestMethod = endpoint.requestMethod;
+        Class<?>[] parameters = endpoint.parameterTypes;
+        if (parameters.length != 0 && parameters.length != 1) {
+            log.warning("Method has more than one parameter, not mapping", "method", name);
+            return;
+        }
+        Method method = endpoint.method;
+        if (method == null && endpoint.invoker == null) {
+            // the dispatcher cannot call a private method, so it gets an invoker made as usual
+            try {
+                method = getClass().getDeclaredMethod(name, parameters);
+            } catch (NoSuchMethodException nsme) {
+                log.warning("Generated dispatcher is out of date, not mapping",
+                    "servlet", getClass(), "method", name);
+                return;
+            }
+        }
+        String contentType = null;
+        boolean mt = methodIsMicrotome(endpoint);
+        NotSerialized notSerialized = endpoint.annotation(NotSerialized.class);
+        if (notSerialized != null) {
+            mt = false;
+            contentType = notSerialized.contentType();
+        }
+        String responseName = endpoint.responseName;
+        if (responseName != null && responseName.isEmpty()) responseName = null;
+        Class<?> returnType = endpoint.returnType;
+        RestStream stream = requestMethod != RequestMethod.GET ||
+            endpoint.annotation(RestGet.class) != null ? null :
+            endpoint.annotation(RestStream.class);
+        if (stream != null && !SignalView.class.isAssignableFrom(returnType)) {
+            log.warning("Stream methods must return a SignalView, not mapping", "method", name);
+            return;
+        }
+        Cached cached = endpoint.annotation(Cached.class);
+        if (cached != null && (requestMethod != RequestMethod.GET || contentType != null ||
+                stream != null || CompletionStage.class.isAssignableFrom(returnType))) {
+            log.warning("Only synchronous GET methods serialized by Simpler can be cached, " +
+                "ignoring @Cached", "method", name);
+            cached = null;
+        }
+        ConcurrencyLimit limit = endpoint.annotation(ConcurrencyLimit.class);
+        Coalesce coalesce = endpoint.annotation(Coalesce.class);
+        if (coalesce != null && (requestMethod != RequestMethod.GET || contentType != null ||
+                stream != null || CompletionStage.class.isAssignableFrom(returnType))) {
+            log.warning("Only synchronous GET methods serialized by Simpler can be coalesced, " +
+                "ignoring @Coalesce", "method", name);
+            coalesce = null;
+        }
+        CacheControl cacheControl = endpoint.annotation(CacheControl.class);
+        if (cacheControl != null && cacheControl.etag() && (contentType != null ||
+                CompletionStage.class.isAssignableFrom(returnType))) {
+            log.warning("Hash-based ETags need a synchronous method serialized by Simpler",
+                "method", name);
+        }
+        Router<RestMethod> routes = getRoutes(requestMethod);
+        RestMethod restMethod;
+        try {
+            restMethod = new RestMethod(endpoint, method, getClass(), responseName, contentType,
+                mt, cached, coalesce, cacheControl, limit, stream,
+                stream == null ? null : new EventStreams(stream, this::serializeEvent, timer()));
+            if (!StringUtil.isBlank(endpoint.path)) {
+                routes.add(endpoint.path, restMethod);
+            } else {
+                routes.addPrefix(name, restMethod);
+                if (name.equals(DEFAULT_FIND_ALL)) routes.add("", restMethod);
+                if (name.equals(DEFAULT_FIND)) routes.addPrefix("", restMethod);
+            }
+        } catch (IllegalArgumentException iae) {
+            log.warning("Invalid method configuration, not mapping", "method", name,
+                "error", iae.getMessage());
+            return;
+        }
+        getMethodMap(requestMethod).put(name, restMethod);
+    }
+
+    protected boolean handleRequest (final HttpServletRequest req, final HttpServletResponse rsp,
+            Router<RestMethod> routes, RequestMethod requestMethod) throws IOException {
+        try {
+            String pathInfo = req.getPathInfo();
+            if (_maxBatchCalls > 0 && requestMethod == RequestMethod.POST &&
+                BATCH_PATH.equals(pathInfo) && !(req instanceof BatchRequest)) {
+                handleBatch(req, rsp);
+                return true;
+            }
+            if (_statsEnabled && requestMethod == RequestMethod.GET &&
+                STATS_PATH.equals(pathInfo)) {
+                writeStats(rsp);
+                return true;
+            }
+            final Router.Match<RestMethod> route = routes.newMatch();
+            if (!routes.route(pathInfo, route)) return false;
+            final RequestContext ctx = new RequestContext(req, rsp, route, requestMethod);
+            // methods with a specific contentType write their own responses, and streams are
+            // always sent as text
+            if (route.target.contentType == null && route.target.stream == null) {
+                ctx._codec = responseCodec(req);
+            }
+            if (_slowNanos > 0 || _traceSampleRate > 0) {
+                ctx._trace = new Trace(requestId(req), ctx.startNanos());
+                rsp.setHeader(REQUEST_ID_HEADER, ctx._trace.requestId());
+            }
+            if (_metricsEnabled) {
+                ctx._metrics = route.target.metrics;
+                ctx._metrics.started();
+            }
+            // streams only block long enough to connect to their signal
+            Executor executor = _executor;
+            if (executor != null && route.target.stream == null && req.isAsyncSupported()) {
+                offload(executor, route.target, ctx, rsp);
+                return true;
+            }
+            try {
+                RequestContext.run(ctx, new RequestContext.Body<IOException>() {
+                    public void run () throws IOException {
+                        if (admit(route.target, ctx, rsp)) dispatch(route.target, req, rsp);
+                    }
+                });
+            } finally {
+                if (!ctx._async) callCompleted(ctx);
+            }
+        } finally {
+            emitReset();
+        }
+        return true;
+    }
+
+    /**
+     * Maps a method by name into one of the servlet's method maps.
+     *
+     * @deprecated use {@link #mapMethod(Method, RequestMethod, String, String, boolean)}, which
+     * also takes the method's path template. Overriding this no longer changes how the servlet
+     * maps its methods.
+     */
+    @Deprecated
+    protected void mapMethod (Method method, Map<String, RestMethod> map, String responseName) {
+        mapMethod(method, requestMethodOf(map), responseName, "", false);
+    }
+
+    /**
+     * Handles a request with the methods of one of the servlet's method maps.
+     *
+     * @deprecated calls are routed by {@link Router}, so use the overload that takes the routes.
+     * Overriding this no longer changes how the servlet handles requests.
+     */
+    @Deprecated
+    protected boolean handleRequest (HttpServletRequest req, HttpServletResponse rsp,
+            Map<String, RestMethod> methodMap, RequestMethod requestMethod) throws IOException {
+        return handleRequest(req, rsp, getRoutes(requestMethodOf(methodMap)), requestMethod);
+    }
+
+    /**
+     * Returns the first segment of the request's path, which named the method to call before
+     * calls were routed by {@link Router}.
+     *
+     * @deprecated the route matched for the current call is in {@link #_route}.
+     */
+    @Deprecated
+    protected String getMethodName (HttpServletRequest req) {
+        String pathInfo = req.getPathInfo();
+        if (StringUtil.isBlank(pathInfo)) return "";
+        int idx = pathInfo.indexOf('/', 1);
+        return pathInfo.substring(1, idx < 0 ? pathInfo.length() : idx);
+    }
+
+    /**
+     * Returns the {@code _findAll} or {@code _find} method of the given map for a name that
+     * matches no method, setting {@link #_pathInfo} to the whole path if one is found.
+     *
+     * @deprecated the routers fall back on these methods themselves, and overriding this no
+     * longer changes which method is called.
+     */
+    @Deprecated
+    protected RestMethod checkDefaultMethods (String name, Map<String, RestMethod> map) {
+        RestMethod method = null;
+        if (name.length() == 0) {
+            method = map.get(DEFAULT_FIND_ALL);
+        }
+        if (method == null) {
+            method = map.get(DEFAULT_FIND);
+        }
+
+        if (method != null) {
+            String pathInfo = _req.get().getPathInfo();
+            _pathInfo.set(pathInfo == null ? "" : pathInfo.substring(1));
+        }
+
+        return method;
+    }
+
+    /** Returns the request method whose calls the given method map holds. */
+    protected RequestMethod requestMethodOf (Map<String, RestMethod> map) {
+        for (RequestMethod requestMethod : RequestMethod.values()) {
+            if (getMethodMap(requestMethod) == map) return requestMethod;
+        }
+        throw new IllegalArgumentException("Not one of the servlet's method maps");
+    }
+
+    /**
+     * Hands a call off to the given executor with the request in async mode, returning the
+     * container thread to the container. The request is completed once the call has run. A call
+     * the executor refuses is shed.
+     */
+    protected void offload (Executor executor, final RestMethod method, final RequestContext ctx,
+            final HttpServletResponse rsp) throws IOException {
+        HttpServletRequest req = ctx.request();
+        final AsyncContext async = req.startAsync(req, rsp);
+        // a call that blocks is bounded by its own timeouts, as it would be on a container thread
+        async.setTimeout(0);
+        ctx._async = true;
+        if (ctx._trace != null) ctx._trace.phase("queued");
+        try {
+            executor.execute(new Runnable() {
+                public void run () {
+                    runOffloaded(method, ctx, async);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            try {
+                RequestContext.run(ctx, new RequestContext.Body<IOException>() {
+                    public void run () throws IOException {
+                        shed(rsp);
+                    }
+                });
+            } finally {
+                finishOffloaded(ctx, async);
+            }
+        }
+    }
+
+    /** Runs a call handed off by {@link #offload}, on the executor's thread. */
+    protected void runOffloaded (final RestMethod method, final RequestContext ctx,
+            AsyncContext async) {
+        try {
+            RequestContext.run(ctx, new RequestContext.Body<IOException>() {
+                public void run () throws IOException {
+                    if (admit(method, ctx, ctx.response())) {
+                        dispatch(method, ctx.request(), ctx.response());
+                    }
+                }
+            });
+        } catch (IOException ioe) {
+            log.info("Failed to write response", "method", method, ioe);
+        } catch (RuntimeException re) {
+            log.warning("Offloaded call failed", "method", method, re);
+        } finally {
+            finishOffloaded(ctx, async);
+        }
+    }
+
+    protected void finishOffloaded (RequestContext ctx, AsyncContext async) {
+        try {
+            async.complete();
+        } catch (IllegalStateException ise) {
+            // the container has already completed the request
+        } finally {
+            callCompleted(ctx);
+            emitReset();
+        }
+    }
+
+    /**
+     * Runs each call on the given executor rather than on the container thread that received it.
+     * The container thread is released as soon as the call is handed off, so calls that block, on
+     * a database or another service, tie up the executor's threads rather than the container's.
+     * Calls are only handed off when the servlet is mapped with async support; calls in a batch
+     * and streams always run on the container thread. Null runs calls on the container thread
+     * again. An executor set here is not shut down with the servlet.
+     */
+    public void setExecutor (Executor executor) {
+        ExecutorService owned;
+        synchronized (this) {
+            owned = _ownedExecutor;
+            _ownedExecutor = null;
+        }
+        if (owned != null) owned.shutdown();
+        _executor = executor;
+    }
+
+    /**
+     * Runs each call on a virtual thread of its own, as with {@link #setExecutor}, so a call
+     * blocked on I/O holds no platform thread at all. Virtual threads need JDK 21 or newer; on
+     * older JDKs calls run on a pool of platform threads that grows as needed. Returns true if
+     * virtual threads are being used. A servlet doing this should be created with a null reset
+     * signal, as one signal is otherwise created for every call's thread.
+     */
+    public boolean useVirtualThreads () {
+        ExecutorService executor = newVirtualThreadExecutor();
+        boolean virtual = executor != null;
+        if (!virtual) {
+            log.info("Virtual threads are not available, running calls on a thread pool");
+            executor = Executors.newCachedThreadPool(daemonThreads("simpler-call"));
+        }
+        setExecutor(executor);
+        synchronized (this) {
+            _ownedExecutor = executor;
+        }
+        return virtual;
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread, or null if the JDK has no
+     * virtual threads. It is found through a method handle since we compile against older JDKs.
+     */
+    protected static ExecutorService newVirtualThreadExecutor () {
+        try {
+            MethodHandle factory = MethodHandles.publicLookup().findStatic(Executors.class,
+                "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            return (ExecutorService)factory.invokeExact();
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * Admits a call under the servlet's concurrency limit, at the method's priority, and under
+     * the method's own limit. Returns false if the call was rejected, in which case an error
+     * telling the client to retry later has been sent. Streams are always admitted, as an open
+     * stream costs a connection but no thread, and would otherwise hold its place indefinitely.
+     */
+    protected boolean admit (RestMethod method, RequestContext ctx, HttpServletResponse rsp)
+        throws IOException {
+        if (method.stream != null) return true;
+        ConcurrencyLimiter servlet = _concurrencyLimit;
+        if (servlet != null) {
+            if (!servlet.tryAcquire(method.priority.share)) {
+                shed(rsp);
+                return false;
+            }
+            ctx._servletLimit = servlet;
+        }
+        if (method.limiter != null) {
+            if (!method.limiter.tryAcquire(1)) {
+                if (servlet != null) servlet.release(-1, false);
+                ctx._servletLimit = null;
+                shed(rsp);
+                return false;
+            }
+            ctx._methodLimit = method.limiter;
+        }
+        return true;
+    }
+
+    /**
+     * Rejects a call that is over a concurrency limit. This happens most when the servlet is
+     * under the most load, so it is counted in the call's metrics but not logged.
+     */
+    protected void shed (HttpServletResponse rsp) throws IOException {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) ctx.fail(_shedCode);
+        rsp.setHeader("Cache-Control", "no-cache");
+        if (_retryAfter > 0) rsp.setIntHeader("Retry-After", _retryAfter);
+        CountingResponse counted = new CountingResponse(rsp);
+        RestException.constant(_shedCode, "Server busy, try again later").write(_gson, counted,
+            currentCodec());
+        addResponseBytes(rsp, counted.count());
+        finishResponse(rsp);
+    }
+
+    /**
+     * Limits the calls this servlet runs at once, across all of its methods. Each method may use
+     * the share of the limit allowed by its {@link Priority}. Null removes the limit.
+     */
+    public void setConcurrencyLimit (ConcurrencyLimiter limiter) {
+        _concurrencyLimit = limiter;
+    }
+
+    /**
+     * Configures the error sent for calls rejected by a concurrency limit: its code, and the
+     * number of seconds sent in the Retry-After header, or 0 to send none.
+     */
+    public void setLoadShedding (int code, int retryAfterSeconds) {
+        _shedCode = code;
+        _retryAfter = retryAfterSeconds;
+    }
+
+    /**
+     * Handles a routed call with its {@link RequestContext} bound: reads the request, invokes the
+     * method and writes its result or error.
+     */
+    protected void dispatch (RestMethod method, HttpServletRequest req, HttpServletResponse rsp)
+        throws IOException {
+        if (method.stream != null) {
+            openStream(method, req, rsp);
+            return;
+        }
+        rsp.setHeader("Cache-Control",
+            method.cacheControl == null ? _cacheControl : method.cacheControl);
+        Codec codec = currentCodec();
+        rsp.setHeader("Content-Type", method.contentType != null ? method.contentType :
+            codec != null ? codec.contentType() : "application/json");
+        if (!_codecs.isEmpty() && method.contentType == null) rsp.addHeader("Vary", "Accept");
+        if (method.preconditions && notModified(method, req, rsp)) return;
+        if (method.cache != null || method.etag || method.coalescer != null) {
+            dispatchBuffered(method, req, rsp);
+        } else {
+            execute(method, req, rsp);
+        }
+    }
+
+    /**
+     * Invokes the method and writes its result or error. Returns true if the method succeeded and
+     * its result has been written, false if an error was written instead or if the call is
+     * continuing asynchronously.
+     */
+    protected boolean execute (RestMethod method, HttpServletRequest req,
+            HttpServletResponse rsp) throws IOException {
+        // failures of the method itself are told apart from those reading the request or writing
+        // the response, which are reported and finished differently
+        boolean usedWriter = false, succeeded = false, inMethod = false;
+        try {
+            Object param = null;
+            if (method.requestClass != null) {
+                phase("parse");
+                param = method.binder != null ? method.binder.bind(req) :
+                    readRequest(method, req);
+            }
+            phase("invoke");
+            inMethod = true;
+            Object response = method.invoker.invoke(this, param);
+            if (method.async) {
+                CompletionStage<?> stage = (CompletionStage<?>)response;
+                phase("async");
+                if (stage != null && startAsync(method, stage)) return false;
+                response = awaitResult(method, stage);
+            }
+            inMethod = false;
+            usedWriter = writeResponse(method, response, rsp);
+            succeeded = true;
+        } catch (RestException re) {
+            usedWriter = true;
+            writeError(re, rsp);
+        } catch (JsonSyntaxException jse) {
+            usedWriter = true;
+            writeError(RestException.stackless(RestException.DEFAULT_CODE,
+                "Malformed request data: " + jse.getMessage()), rsp);
+        } catch (IOException ioe) {
+            // an IOException thrown by the method is the container's to handle, as is an aborted
+            // response, which the container should not finish
+            if (inMethod || ioe instanceof AbortedResponseException) throw ioe;
+            doUnexpectedFailure(ioe);
+        } catch (Throwable t) {
+            usedWriter = inMethod;
+            doUnexpectedFailure(t);
+        }
+        if (usedWriter) {
+            phase("flush");
+            finishResponse(rsp);
+        }
+        return succeeded;
+    }
+
+    /**
+     * Opens a {@link RestStream}: calls the method for the signal to stream, puts the request
+     * into async mode and sends the signal's values to the client as events until the client goes
+     * away. The call is recorded as completed when the stream closes, so its latency in the
+     * method's metrics is the time the stream was open. Streams are not traced.
+     */
+    protected void openStream (RestMethod method, HttpServletRequest req,
+            HttpServletResponse rsp) throws IOException {
+        rsp.setHeader("Cache-Control", "no-cache");
+        SignalView<?> signal;
+        try {
+            RestException.throwIf(!req.isAsyncSupported(), RestException.INTERNAL_ERROR,
+                "Streams cannot be opened without async support");
+            Object param = method.binder == null ? null : method.binder.bind(req);
+            phase("invoke");
+            signal = (SignalView<?>)method.invoker.invoke(this, param);
+            RestException.throwIf(signal == null, RestException.NOT_FOUND, "No such stream");
+        } catch (RestException re) {
+            writeError(re, rsp);
+            finishResponse(rsp);
+            return;
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Throwable t) {
+            doUnexpectedFailure(t);
+            return;
+        }
+
+        rsp.setHeader("Content-Type", EVENT_STREAM_CONTENT_TYPE);
+        rsp.setCharacterEncoding("UTF-8");
+        // asks proxies that buffer responses, such as nginx, to pass events straight through
+        rsp.setHeader("X-Accel-Buffering", "no");
+        final RequestContext ctx = RequestContext.current();
+        ctx._trace = null;
+        AsyncContext async = req.startAsync(req, rsp);
+        async.setTimeout(0);
+        ctx._async = true;
+        EventStream stream = new EventStream(async, method.stream.bufferSize(),
+            method.stream.overflow(), streamExecutor());
+        async.addListener(stream);
+        stream.onClose(() -> callCompleted(ctx));
+        method.streams.add(signal, stream);
+        // sends the headers, so the client knows the stream is open before the first event
+        stream.send(EventStream.COMMENT);
+    }
+
+    /**
+     * Serializes a value emitted by the signal of a {@link RestStream}, as the data of the event
+     * sent to its clients.
+     */
+    protected String serializeEvent (Object value) {
+        return value instanceof JsonElement ? _gson.toJson((JsonElement)value) :
+            _gson.toJson(value);
+    }
+
+    /**
+     * Returns the number of clients connected to the named {@link RestStream}, or -1 if there is
+     * no such stream.
+     */
+    public int getStreamCount (String methodName) {
+        RestMethod method = _gets.get(methodName);
+        return method == null || method.streams == null ? -1 : method.streams.size();
+    }
+
+    /**
+     * Handles a call whose complete response is needed before it is sent: a {@link Cached}
+     * method, which is answered from its cache if possible, a {@link Coalesce}d one, or one tagged
+     * with hash-based ETags. Otherwise the method is run as usual with its output buffered, and a
+     * successful response is cached and tagged on its way to the client.
+     */
+    protected void dispatchBuffered (RestMethod method, HttpServletRequest req,
+            HttpServletResponse rsp) throws IOException {
+        String key = method.cache == null ? null : cacheKey(method, req);
+        ResponseCache.Entry entry = key == null ? null : method.cache.get(key);
+        byte[] body;
+        String contentType, etag;
+        if (entry != null) {
+            phase("cached");
+            body = entry.body;
+            contentType = entry.contentType;
+            etag = entry.etag;
+        } else {
+            Coalescer.Result result = method.coalescer == null ?
+                executeBuffered(method, req, rsp) : executeCoalesced(method, req, rsp);
+            if (result == null) return;
+            for (Map.Entry<String, String> header : result.headers.entrySet()) {
+                rsp.setHeader(header.getKey(), header.getValue());
+            }
+            if (result.status != HttpServletResponse.SC_OK) rsp.setStatus(result.status);
+            contentType = result.contentType;
+            body = result.body;
+            if (!result.succeeded) {
+                // errors, whether expected or not, are sent as they are, neither cached nor tagged
+                if (body.length > 0) writeBytes(rsp, body, body.length, contentType);
+                return;
+            }
+            etag = method.etag ? computeETag(body) : null;
+            if (key != null) entry = method.cache.put(key, body, contentType, etag);
+        }
+
+        if (etag != null) {
+            rsp.setHeader("ETag", etag);
+            if (etagMatches(req.getHeader("If-None-Match"), etag)) {
+                rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+        writeBody(method, rsp, body, body.length, contentType, entry);
+    }
+
+    /**
+     * Runs a method with its output buffered, returning the complete response. While it runs,
+     * {@link #_rsp} is the buffer, so that what the method writes there itself, and the error
+     * written by {@link #doUnexpectedFailure} if it fails, are part of the response too.
+     */
+    protected Coalescer.Result executeBuffered (RestMethod method, HttpServletRequest req,
+            HttpServletResponse rsp) throws IOException {
+        BufferedResponse buffer = new BufferedResponse(rsp);
+        HttpServletResponse previous = _rsp.get();
+        _rsp.set(buffer);
+        boolean succeeded;
+        try {
+            succeeded = execute(method, req, buffer);
+        } finally {
+            _rsp.set(previous);
+        }
+        String contentType = buffer.getHeaders().get("Content-Type");
+        RequestContext ctx = RequestContext.current();
+        return new Coalescer.Result(buffer.toByteArray(),
+            contentType == null ? "application/json" : contentType, buffer.getStatus(),
+            buffer.getHeaders(), succeeded, ctx == null ? 0 : ctx.errorCode());
+    }
+
+    /**
+     * Runs a {@link Coalesce}d method, or waits for an identical call that is already running it
+     * and shares its response. Returns null if an error has been sent instead, because the wait
+     * timed out.
+     */
+    protected Coalescer.Result executeCoalesced (RestMethod method, HttpServletRequest req,
+            HttpServletResponse rsp) throws IOException {
+        Coalescer.Flight flight = method.coalescer.join(coalesceKey(method, req));
+        if (flight.leader()) {
+            Coalescer.Result result = null;
+            try {
+                result = executeBuffered(method, req, rsp);
+            } finally {
+                method.coalescer.land(flight, result);
+            }
+            return result;
+        }
+
+        phase("coalesced");
+        Coalescer.Result result;
+        try {
+            result = method.coalescer.await(flight, method.coalesceWait, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            writeError(RestException.constant(RestException.TIMEOUT, "Request timed out"), rsp);
+            finishResponse(rsp);
+            return null;
+        }
+        // the leader gave up without a response, so make our own
+        if (result == null) return executeBuffered(method, req, rsp);
+        RequestContext ctx = RequestContext.current();
+        if (!result.succeeded && ctx != null) ctx.fail(result.errorCode);
+        return result;
+    }
+
+    /**
+     * Checks the request's preconditions against the version and last modified time supplied by
+     * the method's {@link CacheControl} configuration. Returns true if the client's copy is
+     * current, in which case a 304 has been sent, or if looking up the version failed, in which
+     * case an error has been; either way the method should not be run.
+     */
+    protected boolean notModified (RestMethod method, HttpServletRequest req,
+            HttpServletResponse rsp) throws IOException {
+        try {
+            return checkNotModified(method, req, rsp);
+        } catch (RestException re) {
+            writeError(re, rsp);
+        } catch (IOException ioe) {
+            throw ioe;
+        } catch (Throwable t) {
+            doUnexpectedFailure(t);
+        }
+        return true;
+    }
+
+    protected boolean checkNotModified (RestMethod method, HttpServletRequest req,
+            HttpServletResponse rsp) throws Exception {
+        phase("preconditions");
+        boolean matched = false;
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (method.versionInvoker != null) {
+            Object version = method.versionInvoker.invoke(this, null);
+            if (version != null) {
+                String etag = '"' + String.valueOf(version) + '"';
+                rsp.setHeader("ETag", etag);
+                matched = etagMatches(ifNoneMatch, etag);
+            }
+        }
+        if (method.lastModifiedInvoker != null) {
+            Object value = method.lastModifiedInvoker.invoke(this, null);
+            long lastModified = value instanceof Date ? ((Date)value).getTime() :
+                value instanceof Number ? ((Number)value).longValue() : -1;
+            if (lastModified >= 0) {
+                rsp.setDateHeader("Last-Modified", lastModified);
+                // If-None-Match takes precedence over If-Modified-Since when both are sent
+                if (ifNoneMatch == null || method.versionInvoker == null) {
+                    long since = req.getDateHeader("If-Modified-Since");
+                    matched = since >= 0 && lastModified / 1000 <= since / 1000;
+                }
+            }
+        }
+        if (matched) rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return matched;
+    }
+
+    /** Computes a strong ETag for a response body, using a 64-bit FNV-1a hash. */
+    protected String computeETag (byte[] body) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : body) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return '"' + Long.toHexString(hash) + '"';
+    }
+
+    /** Returns true if the given If-None-Match header matches the given ETag. */
+    protected boolean etagMatches (String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the Cache-Control header sent with responses from methods that do not configure their
+     * own with {@link CacheControl}. Defaults to "no-cache".
+     */
+    public void setCacheControl (String cacheControl) {
+        _cacheControl = cacheControl;
+    }
+
+    /**
+     * Returns the key under which a response to the current call of a cached method is stored:
+     * the request path, followed by the values of the parameters the method is cached by.
+     */
+    protected String cacheKey (RestMethod method, HttpServletRequest req) {
+        return requestKey(req, method.cacheParams);
+    }
+
+    /**
+     * Returns the key by which concurrent calls to a coalesced method are matched up, built in the
+     * same way as {@link #cacheKey}.
+     */
+    protected String coalesceKey (RestMethod method, HttpServletRequest req) {
+        return requestKey(req, method.coalesceParams);
+    }
+
+    protected String requestKey (HttpServletRequest req, String[] params) {
+        String path = req.getPathInfo();
+        StringBuilder key = new StringBuilder(path == null ? "" : path);
+        for (String param : params) {
+            key.append('\n').append(param);
+            String value = req.getParameter(param);
+            if (value != null) key.append('=').append(value);
+        }
+        Codec codec = currentCodec();
+        if (codec != null) {
+            key.append("\n").append(codec.contentType());
+        } else if (acceptsNdjson(req)) {
+            key.append("\n").append(NDJSON_CONTENT_TYPE);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Sends a complete response body, the first {@code length} bytes of {@code body}, compressing
+     * it first if it is large enough and the client accepts a compressed encoding. If the body
+     * came from a cache entry, the compressed copy is kept with the entry for later hits.
+     */
+    protected void writeBody (RestMethod method, HttpServletResponse rsp, byte[] body,
+            int length, String contentType, ResponseCache.Entry cached) throws IOException {
+        Compression.Encoding encoding = negotiateEncoding(method, rsp);
+        if (encoding == null || length < _compressionThreshold) {
+            writeBytes(rsp, body, length, contentType);
+            return;
+        }
+
+        setContentEncoding(rsp, encoding);
+        byte[] encoded = cached == null ? null : cached.encoded(encoding);
+        if (encoded != null) {
+            writeBytes(rsp, encoded, encoded.length, contentType);
+            return;
+        }
+        ResponseBuffer out = _buffers.acquire(Integer.MAX_VALUE, null);
+        try {
+            _compression.compress(encoding, body, length, out);
+            out.close();
+            if (cached != null) method.cache.putEncoded(cached, encoding, out.toByteArray());
+            writeBytes(rsp, out.array(), out.size(), contentType);
+        } finally {
+            _buffers.release(out);
+        }
+    }
+
+    /**
+     * Sends a complete, already encoded response body to the client. The body is UTF-8 text
+     * unless the call's codec is a binary one.
+     */
+    protected void writeBytes (HttpServletResponse rsp, byte[] body, int length,
+            String contentType) throws IOException {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) ctx.addResponseBytes(length);
+        phase("write");
+        rsp.setHeader("Content-Type", contentType);
+        if (ctx == null || ctx._codec == null || !ctx._codec.binary()) {
+            rsp.setCharacterEncoding("UTF-8");
+        }
+        rsp.setContentLength(length);
+        OutputStream out = rsp.getOutputStream();
+        out.write(body, 0, length);
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Returns the encoding with which to compress the method's response, or null if it should be
+     * sent as is. Responses that are being buffered for some other purpose, such as the calls
+     * in a batch, are never compressed.
+     */
+    protected Compression.Encoding negotiateEncoding (RestMethod method,
+            HttpServletResponse rsp) {
+        if (!method.compress || _compressionThreshold < 0 || rsp instanceof BufferedResponse) {
+            return null;
+        }
+        return Compression.negotiate(_req.get().getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Marks the response as compressed. A strong ETag is weakened, as it was computed from the
+     * uncompressed body.
+     */
+    protected void setContentEncoding (HttpServletResponse rsp, Compression.Encoding encoding) {
+        rsp.setHeader("Content-Encoding", encoding.token);
+        rsp.addHeader("Vary", "Accept-Encoding");
+        String etag = rsp.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) rsp.setHeader("ETag", "W/" + etag);
+    }
+
+    /**
+     * Configures response compression. Responses of at least {@code minBytes} are compressed when
+     * the client accepts gzip or deflate; a negative value disables compression. Serialized
+     * responses are buffered up to {@code bufferLimit} bytes so they can be sent with an exact
+     * Content-Length, and larger ones are streamed (and compressed) as they are serialized.
+     */
+    public void setCompression (int minBytes, int bufferLimit) {
+        _compressionThreshold = minBytes;
+        _bufferLimit = bufferLimit;
+    }
+
+    /**
+     * Drops the cached responses of the named GET method whose keys start with the given prefix,
+     * or all of its cached responses if the prefix is null. Keys start with the request path, so
+     * for example {@code invalidateCache("_find", "/42")} drops everything cached for item 42.
+     */
+    public void invalidateCache (String methodName, String keyPrefix) {
+        ResponseCache cache = getCache(methodName);
+        if (cache != null) cache.invalidate(keyPrefix);
+    }
+
+    public void invalidateCache (String methodName) {
+        invalidateCache(methodName, null);
+    }
+
+    /**
+     * Returns the response cache of the named GET method, which tracks its hits, misses and
+     * evictions, or null if the method is not cached.
+     */
+    public ResponseCache getCache (String methodName) {
+        RestMethod method = _gets.get(methodName);
+        return method == null ? null : method.cache;
+    }
+
+    /**
+     * Returns the coalescer of the named GET method, which counts the calls that shared another's
+     * response, or null if the method is not coalesced.
+     */
+    public Coalescer getCoalescer (String methodName) {
+        RestMethod method = _gets.get(methodName);
+        return method == null ? null : method.coalescer;
+    }
+
+    /** Returns a reset signal of which each thread gets its own, as the servlet uses by default. */
+    protected static ThreadLocal<UnitSignal> perThreadReset () {
+        return new ThreadLocal<UnitSignal>() {
             @Override protected UnitSignal initialValue () {
                 return new UnitSignal();
             }
-        });
+        };
+    }
+
+    /**
+     * Notifies anything still connected to the reset signal that a call has finished. Simpler's
+     * own request locals live in the RequestContext and need no reset, so this is skipped when
+     * nothing is listening.
+     */
+    protected void emitReset () {
+        if (_reset == null) return;
+        UnitSignal reset = _reset.get();
+        if (reset.hasConnections()) reset.emit();
+    }
+
+    /**
+     * Reads the parameter for a method that takes one from the request body. Methods taking an
+     * {@code Iterator<T>} are handed an iterator that reads records from the body as they are
+     * consumed; all others get the fully parsed body.
+     */
+    protected Object readRequest (RestMethod method, HttpServletRequest req)
+        throws IOException, RestException {
+        Codec codec = requestCodec(req);
+        Object param;
+        if (codec != null) {
+            if (method.streamedRequest) {
+                return codec.readRecords(_gson, req.getInputStream(), method.requestType);
+            }
+            param = codec.read(_gson, req.getInputStream(), method.requestClass);
+        } else {
+            Reader reader = new InputStreamReader(req.getInputStream());
+            if (method.streamedRequest) {
+                return new JsonRecordIterator<Object>(
+                    _gson, new JsonReader(reader), method.requestType);
+            }
+            param = _gson.fromJson(reader, method.requestClass);
+        }
+        if (param == null) {
+            throw RestException.constant(RestException.DEFAULT_CODE, "Missing request data");
+        }
+        return param;
+    }
+
+    /**
+     * Writes a successful method result to the client. Returns true if the response writer (or
+     * the output stream, for a call with a codec) was used, in which case the caller is
+     * responsible for finishing the response with {@link #finishResponse}.
+     */
+    protected boolean writeResponse (RestMethod method, Object response,
+            HttpServletResponse rsp) throws IOException {
+        // methods with a specific contentType handle their own response writing
+        if (method.contentType != null) return false;
+        phase("serialize");
+        Codec codec = currentCodec();
+        try {
+            if (codec != null) {
+                if (rsp instanceof BufferedResponse ||
+                    (!method.microtome && isStreamed(response))) {
+                    CountingResponse counted = new CountingResponse(rsp);
+                    JsonWriter writer = codec.newWriter(counted.getOutputStream());
+                    try {
+                        encodeResponse(method, response, writer);
+                        writer.flush();
+                    } finally {
+                        addResponseBytes(rsp, counted.count());
+                    }
+                    return true;
+                }
+                sendEncoded(method, response, rsp, codec);
+                return false;
+            }
+            if (!method.microtome && isStreamed(response)) {
+                streamResponse(method, response, rsp);
+            } else if (rsp instanceof BufferedResponse) {
+                serializeResponse(method, response, rsp.getWriter());
+            } else {
+                sendResponse(method, response, rsp);
+                return false;
+            }
+            return true;
+        } catch (RuntimeException re) {
+            throw abandonResponse(method, rsp, re);
+        }
+    }
+
+    /**
+     * Handles a failure partway through writing a response. If none of the response has been sent
+     * yet, what was written is discarded and the failure rethrown, to be reported to the client
+     * as usual. Otherwise an error can no longer be sent in its place, and appending one would
+     * only corrupt the part already sent, so the failure is logged and an
+     * {@link AbortedResponseException} returned to be thrown. On a container thread it is passed
+     * on to the container, which drops the connection rather than finishing the response.
+     */
+    protected IOException abandonResponse (RestMethod method, HttpServletResponse rsp,
+            RuntimeException failure) {
+        if (!rsp.isCommitted()) {
+            rsp.resetBuffer();
+            throw failure;
+        }
+        return abortResponse(method, failure);
+    }
+
+    /**
+     * Fails the current call and returns an {@link AbortedResponseException} to be thrown, as
+     * above, for a response that has been started and cannot be finished.
+     */
+    protected IOException abortResponse (RestMethod method, Throwable failure) {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) ctx.fail(RestException.INTERNAL_ERROR);
+        log.warning("Response failed after it was started, aborting", "method", method,
+            failure);
+        return new AbortedResponseException(failure);
+    }
+
+    /**
+     * Serializes a response into a pooled buffer and sends it, with an exact Content-Length if it
+     * fits in the buffer. A response that outgrows the buffer is streamed to the client instead,
+     * compressed on the fly if the client accepts that.
+     */
+    protected void sendResponse (RestMethod method, Object response, HttpServletResponse rsp)
+        throws IOException {
+        ResponseBuffer buffer = _buffers.acquire(_bufferLimit, spill(method, rsp, true));
+        try {
+            serializeResponse(method, response, buffer.writer());
+            buffer.close();
+            if (buffer.spilled()) {
+                RequestContext.current().addResponseBytes(buffer.written());
+            } else {
+                byte[] body = buffer.array();
+                writeBody(method, rsp, body, buffer.size(), "application/json", null);
+            }
+        } catch (RuntimeException re) {
+            throw spillFailed(method, buffer, re);
+        } finally {
+            _buffers.release(buffer);
+        }
+    }
+
+    /**
+     * Encodes a response with the given codec into a pooled buffer and sends it, in the same way
+     * as {@link #sendResponse}.
+     */
+    protected void sendEncoded (RestMethod method, Object response, HttpServletResponse rsp,
+            Codec codec) throws IOException {
+        ResponseBuffer buffer = _buffers.acquire(_bufferLimit, spill(method, rsp, !codec.binary()));
+        try {
+            JsonWriter writer = codec.newWriter(buffer);
+            encodeResponse(method, response, writer);
+            writer.flush();
+            buffer.close();
+            if (buffer.spilled()) {
+                RequestContext.current().addResponseBytes(buffer.written());
+            } else {
+                writeBody(method, rsp, buffer.array(), buffer.size(), codec.contentType(), null);
+            }
+        } catch (RuntimeException re) {
+            throw spillFailed(method, buffer, re);
+        } finally {
+            _buffers.release(buffer);
+        }
+    }
+
+    /**
+     * Handles a failure serializing into a response buffer. Once the buffer has spilled, the
+     * response's output stream is in use and the error cannot be written through its writer, even
+     * if nothing has reached the client yet, so the response is aborted. Otherwise nothing has
+     * been written and the failure is rethrown to be reported as usual.
+     */
+    protected IOException spillFailed (RestMethod method, ResponseBuffer buffer,
+            RuntimeException failure) {
+        if (!buffer.spilled()) throw failure;
+        return abortResponse(method, failure);
+    }
+
+    /**
+     * Returns the destination of a response that outgrows its buffer: the client, through a
+     * compressing stream if it accepts that.
+     */
+    protected ResponseBuffer.Spill spill (final RestMethod method, final HttpServletResponse rsp,
+            final boolean text) {
+        return new ResponseBuffer.Spill() {
+            public OutputStream open () throws IOException {
+                if (text) rsp.setCharacterEncoding("UTF-8");
+                Compression.Encoding encoding = negotiateEncoding(method, rsp);
+                if (encoding == null) return rsp.getOutputStream();
+                setContentEncoding(rsp, encoding);
+                return _compression.stream(encoding, rsp.getOutputStream());
+            }
+        };
+    }
+
+    /**
+     * Encodes a method result with the writer of the call's codec, inside the responseName
+     * wrapper if any. Streamed results are written as an array, flushed as they are in
+     * {@link #streamResponse}.
+     *
+     * This is the codec counterpart of {@link #serializeResponse}, and a subclass that changes how
+     * results are serialized must override both, as {@link MicrotomeSimplerServlet} does. One that
+     * overrides only serializeResponse sends JSON to every client rather than encoding its results
+     * without it; see {@link #addCodec}.
+     */
+    protected void encodeResponse (RestMethod method, Object response, JsonWriter out)
+        throws IOException {
+        if (response == null) response = new JsonObject();
+        if (method.responseName != null) {
+            out.beginObject();
+            out.name(method.responseName);
+        }
+        if (!method.microtome && isStreamed(response)) {
+            try {
+                Iterator<?> iter = iterator(response);
+                out.beginArray();
+                long lastFlush = System.nanoTime();
+                for (int count = 1; iter.hasNext(); count++) {
+                    Object element = iter.next();
+                    if (element == null) {
+                        out.nullValue();
+                    } else {
+                        _gson.toJson(element, element.getClass(), out);
+                    }
+                    if (count % _streamFlushElements == 0 ||
+                        System.nanoTime() - lastFlush > _streamFlushNanos) {
+                        out.flush();
+                        lastFlush = System.nanoTime();
+                    }
+                }
+                out.endArray();
+            } finally {
+                closeStreamed(method, response);
+            }
+        } else if (response instanceof JsonElement) {
+            _gson.toJson((JsonElement)response, out);
+        } else {
+            _gson.toJson(response, response.getClass(), out);
+        }
+        if (method.responseName != null) out.endObject();
+    }
+
+    /**
+     * Returns true if the given method result should be written to the client one element at a
+     * time as it is produced, rather than handed to Gson as a whole. This is the case for
+     * Iterators, Streams, and Iterables that are not already materialized Collections.
+     */
+    protected boolean isStreamed (Object response) {
+        return response instanceof Iterator<?> || response instanceof BaseStream<?, ?> ||
+            (response instanceof Iterable<?> && !(response instanceof Collection<?>) &&
+             !(response instanceof JsonElement));
+    }
+
+    /**
+     * Writes a streamed result as a JSON array (inside the responseName wrapper, if any), or as
+     * newline delimited JSON if the client asked for that. The response is flushed periodically
+     * so that the client receives elements while the rest are still being produced, iteration
+     * stops early if the client goes away, and the result is closed when done if it is
+     * closeable. Records stand alone, so NDJSON that fails once some of it has been sent ends
+     * with a record holding the error; an array that does is aborted by {@link #writeResponse}.
+     */
+    protected void streamResponse (RestMethod method, Object response, HttpServletResponse rsp)
+        throws IOException {
+        boolean ndjson = acceptsNdjson(_req.get());
+        if (ndjson) rsp.setHeader("Content-Type", NDJSON_CONTENT_TYPE);
+        CountingResponse counted = new CountingResponse(rsp);
+        PrintWriter out = counted.getWriter();
+        int count = 0;
+        boolean midRecord = false;
+        try {
+            Iterator<?> iter = iterator(response);
+            if (!ndjson) {
+                if (method.responseName != null) writeMemberName(method.responseName, true, out);
+                out.write('[');
+            }
+            long lastFlush = System.nanoTime();
+            while (iter.hasNext()) {
+                if (!ndjson && count > 0) out.write(',');
+                Object element = iter.next();
+                midRecord = true;
+                _gson.toJson(element, out);
+                if (ndjson) out.write('\n');
+                midRecord = false;
+                count++;
+                if (count % _streamFlushElements == 0 ||
+                    System.nanoTime() - lastFlush > _streamFlushNanos) {
+                    out.flush();
+                    if (out.checkError()) {
+                        log.info("Client went away during streamed response",
+                            "method", method, "written", count);
+                        return;
+                    }
+                    lastFlush = System.nanoTime();
+                }
+            }
+            if (!ndjson) {
+                out.write(']');
+                if (method.responseName != null) out.write('}');
+            }
+        } catch (RuntimeException re) {
+            if (!ndjson || !rsp.isCommitted()) throw re;
+            RequestContext ctx = RequestContext.current();
+            if (ctx != null) ctx.fail(RestException.INTERNAL_ERROR);
+            log.warning("Streamed response failed", "method", method, "written", count, re);
+            // a record cut short is ended, so the error is still a record of its own
+            if (midRecord) out.write('\n');
+            new RestException(RestException.INTERNAL_ERROR, re.getMessage()).write(_gson,
+                counted);
+            out.write('\n');
+        } finally {
+            addResponseBytes(rsp, counted.count());
+            closeStreamed(method, response);
+        }
+    }
+
+    protected Iterator<?> iterator (Object response) {
+        return response instanceof Iterator<?> ? (Iterator<?>)response :
+            response instanceof BaseStream<?, ?> ? ((BaseStream<?, ?>)response).iterator() :
+            ((Iterable<?>)response).iterator();
+    }
+
+    /** Closes a streamed result once it has been written, if it is closeable. */
+    protected void closeStreamed (RestMethod method, Object response) {
+        if (response instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable)response).close();
+            } catch (Exception e) {
+                log.warning("Failed to close streamed response", "method", method, e);
+            }
+        }
     }
 
-    public SimplerServlet (String baseEndpoint, Gson gson, ThreadLocal<UnitSignal> reset) {
-        _reset = reset;
-        if (_reset.get() == null) {
-            log.error("The reset ThreadLocal must be configured with initialValue.");
+    /**
+     * Adds a codec in which responses are sent to clients that name its content type in their
+     * Accept header, and request bodies with that Content-Type are read. Responses are sent as
+     * JSON to all other clients, and to calls made in a batch.
+     *
+     * Responses are sent as JSON to every client, though request bodies are still decoded, if
+     * the servlet overrides {@link #serializeResponse} without also overriding
+     * {@link #encodeResponse}, since a codec would otherwise send results its serializer never saw.
+     */
+    public void addCodec (Codec codec) {
+        _codecResponses = overrides("serializeResponse", PrintWriter.class).isAssignableFrom(
+            overrides("encodeResponse", JsonWriter.class));
+        if (!_codecResponses) {
+            log.warning("Servlet overrides serializeResponse but not encodeResponse, sending " +
+                "responses as JSON whatever the client accepts", "servlet", getClass());
         }
-        _baseEndpoint = baseEndpoint;
-        _gson = gson;
-
-        _req = createRequestLocal();
-        _rsp = createRequestLocal();
-        _params = createRequestLocal();
-        _pathInfo = createRequestLocal();
-        _requestMethod = createRequestLocal();
+        _codecs.add(codec);
+    }
 
-        for (Method method : getClass().getDeclaredMethods()) {
-            if (method.isAnnotationPresent(RestGet.class)) {
-                if (method.getParameterTypes().length > 0) {
-                    log.warning("GET method has parameter types, unexpected", "method", method);
-                }
-                mapMethod(method, _gets, method.getAnnotation(RestGet.class).name());
-            }
-            if (method.isAnnotationPresent(RestPost.class)) {
-                mapMethod(method, _posts, method.getAnnotation(RestPost.class).name());
-            }
-            if (method.isAnnotationPresent(RestPut.class)) {
-                mapMethod(method, _puts, method.getAnnotation(RestPut.class).name());
+    /**
+     * Returns the most derived class of this servlet that declares the given response writing
+     * method, taking a RestMethod, the result and the given type of output.
+     */
+    protected Class<?> overrides (String name, Class<?> output) {
+        for (Class<?> cls = getClass(); cls != SimplerServlet.class; cls = cls.getSuperclass()) {
+            try {
+                cls.getDeclaredMethod(name, RestMethod.class, Object.class, output);
+                return cls;
+            } catch (NoSuchMethodException nsme) {
+                // keep looking
             }
-            if (method.isAnnotationPresent(RestDelete.class)) {
-                mapMethod(method, _deletes, method.getAnnotation(RestDelete.class).name());
+        }
+        return SimplerServlet.class;
+    }
+
+    /**
+     * Returns the codec in which to encode the response to the given request, or null for JSON. A
+     * codec is chosen only if the Accept header names its type with a nonzero quality at least as
+     * high as it gives JSON, and of several such codecs the one with the highest quality wins.
+     */
+    protected Codec responseCodec (HttpServletRequest req) {
+        if (_codecs.isEmpty() || !_codecResponses || req instanceof BatchRequest) return null;
+        String accept = req.getHeader("Accept");
+        if (accept == null) return null;
+        Codec best = null;
+        float bestQuality = 0;
+        for (Codec codec : _codecs) {
+            float quality = Codec.acceptQuality(accept, codec.contentType(), true);
+            if (quality > bestQuality) {
+                best = codec;
+                bestQuality = quality;
             }
         }
+        if (best == null) return null;
+        return bestQuality >= Codec.acceptQuality(accept, "application/json", false) ? best : null;
     }
 
-    public String getBaseEndpoint () { return _baseEndpoint; }
+    /** Returns the codec with which to decode the body of the given request, or null for JSON. */
+    protected Codec requestCodec (HttpServletRequest req) {
+        if (_codecs.isEmpty() || req instanceof BatchRequest) return null;
+        String contentType = req.getContentType();
+        if (contentType == null) return null;
+        for (Codec codec : _codecs) {
+            if (contentType.startsWith(codec.contentType())) return codec;
+        }
+        return null;
+    }
 
-    @Override
-    protected final void doGet (HttpServletRequest req, HttpServletResponse rsp)
-        throws IOException, ServletException {
-        if (!handleRequest(req, rsp, _gets, RequestMethod.GET)) super.doGet(req, rsp);
+    /** Returns the codec the current call's response is encoded with, or null for JSON. */
+    protected static Codec currentCodec () {
+        RequestContext ctx = RequestContext.current();
+        return ctx == null ? null : ctx._codec;
     }
 
-    @Override
-    protected final void doPost (HttpServletRequest req, HttpServletResponse rsp)
-        throws IOException, ServletException {
-        if (!handleRequest(req, rsp, _posts, RequestMethod.POST)) super.doPost(req, rsp);
+    /**
+     * Flushes and closes the response once everything has been written to it: its output stream
+     * if the call has a codec, or its writer otherwise.
+     */
+    protected void finishResponse (HttpServletResponse rsp) throws IOException {
+        if (currentCodec() != null) {
+            rsp.getOutputStream().flush();
+            rsp.getOutputStream().close();
+        } else {
+            rsp.getWriter().flush();
+            rsp.getWriter().close();
+        }
     }
 
-    @Override
-    protected final void doPut (HttpServletRequest req, HttpServletResponse rsp)
-        throws IOException, ServletException {
-        if (!handleRequest(req, rsp, _puts, RequestMethod.PUT)) super.doPut(req, rsp);
+    protected boolean acceptsNdjson (HttpServletRequest req) {
+        String accept = req.getHeader("Accept");
+        return accept != null && (accept.contains(NDJSON_CONTENT_TYPE) ||
+            accept.contains("application/ndjson"));
     }
 
-    @Override protected void doDelete (HttpServletRequest req, HttpServletResponse rsp)
-        throws ServletException, IOException {
-        if (!handleRequest(req, rsp, _deletes, RequestMethod.DELETE)) super.doDelete(req, rsp);
+    /**
+     * Configures how often streamed responses are flushed to the client: after every
+     * {@code elements} elements, or after the first element written once {@code millis}
+     * milliseconds have passed since the last flush, whichever comes first.
+     */
+    public void setStreamFlushInterval (int elements, long millis) {
+        _streamFlushElements = elements;
+        _streamFlushNanos = TimeUnit.MILLISECONDS.toNanos(millis);
     }
 
-    protected void mapMethod (Method method, Map<String, RestMethod> map, String responseName) {
-        Class<?>[] parameters = method.getParameterTypes();
-        if (parameters.length != 0 && parameters.length != 1) {
-            log.warning("Method has more than one parameter", "method", method);
+    /**
+     * Enables the batch route, {@code POST <base>/_batch}, which runs up to {@code maxCalls} calls
+     * against this servlet in a single round trip. If an executor is provided, calls marked
+     * independent are run on it in parallel with the rest of the batch; otherwise all calls are
+     * run in order on the request thread. The executor should be bounded, as every batch hands it
+     * all of its independent calls at once; a call it refuses runs on the request thread.
+     */
+    public void enableBatching (int maxCalls, Executor executor) {
+        ExecutorService owned;
+        synchronized (this) {
+            owned = _ownedBatchExecutor;
+            _ownedBatchExecutor = null;
         }
-        Class<?> reqParam = parameters.length == 0 ? null : parameters[0];
-        String contentType = null;
-        boolean mt = methodIsMicrotome(method);
-        if (method.isAnnotationPresent(NotSerialized.class)) {
-            mt = false;
-            contentType = method.getAnnotation(NotSerialized.class).contentType();
+        if (owned != null) owned.shutdown();
+        _maxBatchCalls = maxCalls;
+        _batchExecutor = executor;
+    }
+
+    /**
+     * Enables the batch route as above, running independent calls on at most {@code threads}
+     * threads of a pool shared by every batch and shut down with the servlet. A call that finds
+     * every thread busy runs on the request thread with the rest of its batch.
+     */
+    public void enableBatching (int maxCalls, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), daemonThreads("simpler-batch"));
+        executor.allowCoreThreadTimeOut(true);
+        enableBatching(maxCalls, executor);
+        synchronized (this) {
+            _ownedBatchExecutor = executor;
         }
-        if (responseName != null && responseName.isEmpty()) responseName = null;
-        map.put(method.getName(), new RestMethod(method, reqParam, responseName, contentType, mt));
     }
 
-    protected boolean handleRequest (HttpServletRequest req, HttpServletResponse rsp,
-            Map<String, RestMethod> methodMap, RequestMethod requestMethod) throws IOException {
+    /**
+     * Runs each call in a batch request through {@link #handleRequest} with its own request and
+     * a buffered response, so every call gets its own request locals, and writes the results as
+     * a JSON array in the same order as the calls. Each element is exactly what the call would
+     * have returned on its own, including the error object for calls that fail.
+     */
+    protected void handleBatch (final HttpServletRequest req, final HttpServletResponse rsp)
+        throws IOException {
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.setHeader("Content-Type", "application/json");
+        final BatchEntry[] entries;
         try {
-            String methodName = getMethodName(req);
-            RestMethod method = methodMap.get(methodName);
-            String pathInfo = req.getPathInfo();
-            _pathInfo.set(pathInfo == null ? "" :
-                req.getPathInfo().substring(methodName.length() + 1));
-            _req.set(req);
-            _rsp.set(rsp);
-            _params.set(new Parameters(req));
-            _requestMethod.set(requestMethod);
-            if (method == null) {
-                method = checkDefaultMethods(methodName, methodMap);
-                if (method == null) return false;
-            }
-
-            rsp.setHeader("Cache-Control", "no-cache");
-            rsp.setHeader("Content-Type",
-                method.contentType == null ? "application/json" : method.contentType);
-            boolean usedWriter = false;
             try {
-                Object response;
-                if (method.requestClass != null) {
-                    Object param = _gson.fromJson(
-                        new InputStreamReader(req.getInputStream()), method.requestClass);
-                    if (param == null) {
-                        throw new RestException("Missing request data");
+                entries = _gson.fromJson(
+                    new InputStreamReader(req.getInputStream()), BatchEntry[].class);
+            } catch (JsonSyntaxException jse) {
+                throw new RestException("Malformed request data: " + jse.getMessage());
+            }
+            RestException.throwIf(entries == null, "Missing request data");
+            RestException.throwIf(entries.length > _maxBatchCalls, "Too many calls in batch");
+        } catch (RestException re) {
+            writeError(re, rsp);
+            rsp.getWriter().flush();
+            rsp.getWriter().close();
+            return;
+        }
+
+        byte[][] results = new byte[entries.length][];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        FutureTask<byte[]>[] pending = new FutureTask[entries.length];
+        if (_batchExecutor != null) {
+            for (int ii = 0; ii < entries.length; ii++) {
+                if (!entries[ii].independent) continue;
+                final BatchEntry entry = entries[ii];
+                pending[ii] = new FutureTask<byte[]>(new Callable<byte[]>() {
+                    public byte[] call () throws IOException {
+                        return runBatchCall(req, rsp, entry);
                     }
-                    response = method.method.invoke(this, param);
-                } else {
-                    response = method.method.invoke(this);
+                });
+                try {
+                    _batchExecutor.execute(pending[ii]);
+                } catch (RejectedExecutionException ree) {
+                    pending[ii] = null;
                 }
+            }
+        }
+        for (int ii = 0; ii < entries.length; ii++) {
+            if (pending[ii] == null) results[ii] = runBatchCall(req, rsp, entries[ii]);
+        }
+        for (int ii = 0; ii < entries.length; ii++) {
+            if (pending[ii] == null) continue;
+            try {
+                results[ii] = pending[ii].get();
+            } catch (InterruptedException ie) {
+                pending[ii].cancel(true);
+                results[ii] = errorBytes(new RestException(RestException.TIMEOUT,
+                    "Interrupted waiting for call"), rsp);
+            } catch (ExecutionException ee) {
+                log.warning("Batch call failed", "name", entries[ii].name, ee.getCause());
+                results[ii] = errorBytes(new RestException(RestException.INTERNAL_ERROR,
+                    String.valueOf(ee.getCause().getMessage())), rsp);
+            }
+        }
 
-                // methods with a specific contentType handle their own response writing
-                if (method.contentType == null) {
-                    serializeResponse(method, response, rsp.getWriter());
-                    usedWriter = true;
-                }
-            } catch (IllegalAccessException iae) {
-                usedWriter = true;
-                doUnexpectedFailure(iae);
-            } catch (InvocationTargetException ite) {
-                usedWriter = true;
-                if (ite.getCause() instanceof RestException) {
-                    RestException re = (RestException)ite.getCause();
-                    log.info("Call result is RestException", "code", re.code,
-                        "message", re.getMessage());
-                    re.write(_gson, rsp);
-                } else if (ite.getCause() instanceof IOException) {
-                    throw (IOException)ite.getCause();
-                } else {
-                    doUnexpectedFailure(ite.getCause());
-                }
-            } catch (RestException re) {
-                usedWriter = true;
-                log.info("Call result is RestException", "code", re.code,
-                    "message", re.getMessage());
-                re.write(_gson, rsp);
-            } catch (Throwable t) {
-                doUnexpectedFailure(t);
-            }
-            if (usedWriter) {
-                rsp.getWriter().flush();
-                rsp.getWriter().close();
+        PrintWriter out = rsp.getWriter();
+        out.write('[');
+        for (int ii = 0; ii < results.length; ii++) {
+            if (ii > 0) out.write(',');
+            out.write(results[ii].length == 0 ? "null" :
+                new String(results[ii], StandardCharsets.UTF_8));
+        }
+        out.write(']');
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Runs a single call from a batch, returning the response body it produced.
+     */
+    protected byte[] runBatchCall (HttpServletRequest req, HttpServletResponse rsp,
+            BatchEntry entry) throws IOException {
+        RequestMethod requestMethod;
+        try {
+            requestMethod = entry.method == null ? RequestMethod.GET :
+                RequestMethod.valueOf(entry.method.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            return errorBytes(new RestException("Unsupported method: " + entry.method), rsp);
+        }
+
+        StringBuilder path = new StringBuilder("/");
+        if (entry.name != null) path.append(entry.name);
+        if (!StringUtil.isBlank(entry.pathInfo)) {
+            if (path.length() > 1) path.append('/');
+            path.append(entry.pathInfo);
+        }
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        if (entry.params != null) {
+            for (Map.Entry<String, String> param : entry.params.entrySet()) {
+                params.put(param.getKey(), new String[] { param.getValue() });
+            }
+        }
+        byte[] body = entry.body == null ? new byte[0] :
+            _gson.toJson(entry.body).getBytes(StandardCharsets.UTF_8);
+
+        BufferedResponse buffer = new BufferedResponse(rsp);
+        if (!handleRequest(new BatchRequest(req, requestMethod.getHttpName(), path.toString(),
+                params, body), buffer, getRoutes(requestMethod), requestMethod)) {
+            return errorBytes(new RestException(RestException.NOT_FOUND,
+                "No such method: " + path), rsp);
+        }
+        String contentType = buffer.getHeaders().get("Content-Type");
+        if (contentType != null && !contentType.startsWith("application/json")) {
+            return errorBytes(new RestException("Method cannot be called in a batch: " + path),
+                rsp);
+        }
+        return buffer.toByteArray();
+    }
+
+    protected byte[] errorBytes (RestException re, HttpServletResponse rsp) throws IOException {
+        BufferedResponse buffer = new BufferedResponse(rsp);
+        writeError(re, buffer);
+        return buffer.toByteArray();
+    }
+
+    protected Router<RestMethod> getRoutes (RequestMethod requestMethod) {
+        switch (requestMethod) {
+        case GET: return _getRoutes;
+        case POST: return _postRoutes;
+        case PUT: return _putRoutes;
+        case DELETE: return _deleteRoutes;
+        default: throw new IllegalArgumentException("Unknown method " + requestMethod);
+        }
+    }
+
+    protected Map<String, RestMethod> getMethodMap (RequestMethod requestMethod) {
+        switch (requestMethod) {
+        case GET: return _gets;
+        case POST: return _posts;
+        case PUT: return _puts;
+        case DELETE: return _deletes;
+        default: throw new IllegalArgumentException("Unknown method " + requestMethod);
+        }
+    }
+
+    /**
+     * Sends an error to the client. Errors are logged through the servlet's {@link ErrorLog}, so
+     * a flood of errors of one code costs a log line per interval rather than one per error.
+     */
+    protected void writeError (RestException re, HttpServletResponse rsp) throws IOException {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) ctx.fail(re.code);
+        long unlogged = _errorLog.record(re.code);
+        if (unlogged > 0) {
+            log.info("Call result is RestException", "code", re.code, "message", re.getMessage(),
+                "unlogged", unlogged);
+        } else if (unlogged == 0) {
+            log.info("Call result is RestException", "code", re.code, "message", re.getMessage());
+        }
+        CountingResponse counted = new CountingResponse(rsp);
+        re.write(_gson, counted, currentCodec());
+        addResponseBytes(rsp, counted.count());
+    }
+
+    /**
+     * Counts bytes written to the client for the current call. Bytes written into a
+     * {@link BufferedResponse} are skipped, as they are counted when the buffer is sent.
+     */
+    protected static void addResponseBytes (HttpServletResponse rsp, long bytes) {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null && !(rsp instanceof BufferedResponse)) ctx.addResponseBytes(bytes);
+    }
+
+    /**
+     * Sets how often errors sent to clients are logged: at most one of each error code per
+     * interval, with a count of the others since the last one logged. Zero logs every error.
+     * Defaults to ten seconds.
+     */
+    public void setErrorLogInterval (long millis) {
+        _errorLog = new ErrorLog(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts recording metrics for every endpoint: call and error counts, calls in flight, bytes
+     * read and written, and a latency histogram. If {@code statsEndpoint} is true, the metrics
+     * are also served as JSON from {@code GET /_stats}.
+     */
+    public void enableMetrics (boolean statsEndpoint) {
+        _metricsEnabled = true;
+        _statsEnabled = statsEndpoint;
+    }
+
+    /** Adds a listener told about every call recorded while metrics are enabled. */
+    public void addMetricsListener (MetricsListener listener) {
+        _metricsListeners.add(listener);
+    }
+
+    public void removeMetricsListener (MetricsListener listener) {
+        _metricsListeners.remove(listener);
+    }
+
+    /** Returns the metrics of the named method, or null if there is no such method. */
+    public EndpointMetrics getMetrics (RequestMethod requestMethod, String name) {
+        RestMethod method = getMethodMap(requestMethod).get(name);
+        return method == null ? null : method.metrics;
+    }
+
+    /**
+     * Records the end of a call in its trace and metrics, if they were started, and releases its
+     * place under the concurrency limits.
+     */
+    protected void callCompleted (RequestContext ctx) {
+        long latency = System.nanoTime() - ctx.startNanos();
+        boolean timedOut = ctx.failed() && ctx.errorCode() == RestException.TIMEOUT;
+        if (ctx._servletLimit != null) ctx._servletLimit.release(latency, timedOut);
+        if (ctx._methodLimit != null) ctx._methodLimit.release(latency, timedOut);
+        if (ctx._trace != null) traceCompleted(ctx);
+        EndpointMetrics metrics = ctx._metrics;
+        if (metrics == null) return;
+        long requestBytes = Math.max(0, ctx.request().getContentLength());
+        metrics.completed(latency, ctx.failed(), ctx.errorCode(), requestBytes,
+            ctx.responseBytes());
+        for (MetricsListener listener : _metricsListeners) {
+            try {
+                listener.callCompleted(metrics, latency, ctx.failed(), ctx.errorCode(),
+                    requestBytes, ctx.responseBytes());
+            } catch (Exception e) {
+                log.warning("Metrics listener failed", "listener", listener, e);
+            }
+        }
+    }
+
+    /**
+     * Enables tracing of calls. Calls that take at least {@code slowMillis} are logged as warnings
+     * with a breakdown of where the time went, and the given fraction of all other calls are
+     * logged in the same way at info level. Either may be zero to disable it.
+     */
+    public void setTracing (long slowMillis, double sampleRate) {
+        _slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        _traceSampleRate = sampleRate;
+    }
+
+    /**
+     * Returns the id of the given request: the one sent by the client or a proxy in the
+     * X-Request-Id header, or a new one. The id is echoed in a response header and written to the
+     * log, so one sent in is only used if it is short and made of letters, digits and
+     * {@code -_.:}; anything else is replaced.
+     */
+    protected String requestId (HttpServletRequest req) {
+        String id = req.getHeader(REQUEST_ID_HEADER);
+        if (id != null && isSafeRequestId(id)) return id;
+        return _requestIdPrefix + Long.toString(_nextRequestId.incrementAndGet(), 36);
+    }
+
+    protected static boolean isSafeRequestId (String id) {
+        int length = id.length();
+        if (length == 0 || length > MAX_REQUEST_ID_LENGTH) return false;
+        for (int ii = 0; ii < length; ii++) {
+            char c = id.charAt(ii);
+            if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z') && (c < '0' || c > '9') &&
+                c != '-' && c != '_' && c != '.' && c != ':') return false;
+        }
+        return true;
+    }
+
+    /** Marks the start of a new phase of the current call, if it is being traced. */
+    protected static void phase (String name) {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null && ctx._trace != null) ctx._trace.phase(name);
+    }
+
+    /** Ends the trace of a call, logging it if it was slow or sampled. */
+    protected void traceCompleted (RequestContext ctx) {
+        Trace trace = ctx._trace;
+        long total = trace.end();
+        boolean slow = _slowNanos > 0 && total >= _slowNanos;
+        if (!slow && (_traceSampleRate <= 0 ||
+                ThreadLocalRandom.current().nextDouble() >= _traceSampleRate)) return;
+
+        Router.Match<RestMethod> route = routeOf(ctx);
+        Object[] args = { "id", trace.requestId(), "method", ctx.requestMethod().getHttpName(),
+            "path", route.path(), "endpoint", route.target.name,
+            "totalMs", TimeUnit.NANOSECONDS.toMicros(total) / 1000.0,
+            "failed", ctx.failed(), "phases", trace.breakdown() };
+        if (slow) {
+            log.warning("Slow request", args);
+        } else {
+            log.info("Request trace", args);
+        }
+    }
+
+    /** Writes the metrics of every endpoint to the client. */
+    protected void writeStats (HttpServletResponse rsp) throws IOException {
+        rsp.setHeader("Cache-Control", "no-cache");
+        rsp.setHeader("Content-Type", "application/json");
+        JsonArray endpoints = new JsonArray();
+        for (RequestMethod requestMethod : RequestMethod.values()) {
+            for (RestMethod method : getMethodMap(requestMethod).values()) {
+                endpoints.add(method.metrics.toJson());
             }
-        } finally {
-            _reset.get().emit();
         }
+        JsonObject json = new JsonObject();
+        json.add("endpoints", endpoints);
+        PrintWriter out = rsp.getWriter();
+        _gson.toJson(json, out);
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Returns the number of milliseconds an asynchronous method is given to complete its result
+     * before its future is cancelled and the client is sent a timeout error.
+     */
+    protected long getAsyncTimeout (RestMethod method) {
+        return _asyncTimeout;
+    }
+
+    public void setAsyncTimeout (long asyncTimeout) {
+        _asyncTimeout = asyncTimeout;
+    }
+
+    /**
+     * Puts the request into asynchronous mode and arranges for the result of the given stage to
+     * be written when it completes, releasing the container thread in the meantime. Returns false
+     * if the call should instead be completed synchronously, either because the result is
+     * already available, because the container does not support async for this request, or
+     * because the call is already running on the servlet's executor, whose thread can wait.
+     */
+    protected boolean startAsync (RestMethod method, CompletionStage<?> stage) {
+        HttpServletRequest req = _req.get();
+        if (!req.isAsyncSupported() || req.isAsyncStarted()) return false;
+        if (stage instanceof Future<?> && ((Future<?>)stage).isDone()) return false;
+
+        AsyncContext ctx = req.startAsync(req, _rsp.get());
+        ctx.setTimeout(getAsyncTimeout(method));
+        AsyncCall call = new AsyncCall(ctx, method, stage);
+        call._call._async = true;
+        ctx.addListener(call);
+        stage.whenComplete(call);
         return true;
     }
 
+    /**
+     * Blocks for the result of an asynchronous method that could not be put into async mode.
+     */
+    protected Object awaitResult (RestMethod method, CompletionStage<?> stage) throws Exception {
+        if (stage == null) return null;
+        Future<?> future = stage.toCompletableFuture();
+        try {
+            return future.get(getAsyncTimeout(method), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            future.cancel(true);
+            throw RestException.constant(RestException.TIMEOUT, "Request timed out");
+        } catch (ExecutionException ee) {
+            throw unwrapFailure(ee);
+        }
+    }
+
+    protected static Exception unwrapFailure (Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) &&
+            t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof CancellationException) {
+            return RestException.constant(RestException.CANCELLED, "Request cancelled");
+        }
+        if (t instanceof Error) throw (Error)t;
+        return t instanceof Exception ? (Exception)t : new RuntimeException(t);
+    }
+
     protected String stringParam (String name) {
         return _params.get().get(name);
     }
 
+    /**
+     * Returns the named request parameter as an int, or {@code defValue} if it is missing or not
+     * an integer. This and the other typed accessors parse the parameter in place, without
+     * boxing it or wrapping the request's parameters.
+     */
     protected int intParam (String name, int defValue) {
-        return _params.get().get(name, Converters.TO_INT, defValue);
+        String value = _req.get().getParameter(name);
+        if (ParamParser.isBlank(value)) return defValue;
+        return (int)ParamParser.parseLong(value, Integer.MIN_VALUE, Integer.MAX_VALUE, defValue);
+    }
+
+    protected long longParam (String name, long defValue) {
+        String value = _req.get().getParameter(name);
+        if (ParamParser.isBlank(value)) return defValue;
+        // a value that is not a number parses as the default itself, so every long is valid
+        return ParamParser.parseLong(value, Long.MIN_VALUE, Long.MAX_VALUE, defValue);
+    }
+
+    /**
+     * Returns the named request parameter as a boolean: true for true, yes, on or 1, and false
+     * for false, no, off or 0, regardless of case. Anything else gets {@code defValue}.
+     */
+    protected boolean boolParam (String name, boolean defValue) {
+        String value = _req.get().getParameter(name);
+        int parsed = value == null ? -1 : ParamParser.parseBoolean(value);
+        return parsed < 0 ? defValue : parsed == 1;
+    }
+
+    protected double doubleParam (String name, double defValue) {
+        String value = _req.get().getParameter(name);
+        if (ParamParser.isBlank(value)) return defValue;
+        double parsed = ParamParser.parseDouble(value);
+        return Double.isNaN(parsed) ? defValue : parsed;
     }
 
-    protected <T extends Enum<T>> T enumParam (String name, final Class<T> cls, T defValue) {
+    protected <T extends Enum<T>> T enumParam (String name, Class<T> cls, T defValue) {
         return enumParam(name, cls, defValue, true);
     }
 
-    protected <T extends Enum<T>> T enumParam (String name, final Class<T> cls,
-            T defValue, final boolean upperCase) {
-        return _params.get().get(name, new Function<String, T>() {
-            public T apply (String input) {
-                if (input == null) return null;
-                try {
-                    if (upperCase) input = input.toUpperCase();
-                    return Enum.valueOf(cls, input);
-                } catch (Exception e) {
-                    return null;
-                }
-            }
-        }, defValue);
+    /**
+     * Returns the constant of the given enum named by the named request parameter, or
+     * {@code defValue} if there is none. If {@code upperCase} is set, names are matched
+     * regardless of case.
+     */
+    protected <T extends Enum<T>> T enumParam (String name, Class<T> cls, T defValue,
+            boolean upperCase) {
+        String value = _req.get().getParameter(name);
+        T parsed = value == null ? null : ParamParser.parseEnum(cls, value, upperCase);
+        return parsed == null ? defValue : parsed;
     }
 
+    /**
+     * Returns the value of the named variable from the path template of the current method, or
+     * null if the template has no such variable.
+     */
+    protected String pathParam (String name) {
+        return _route.get().get(name);
+    }
+
+    /**
+     * Returns the value of the named variable from the path template of the current method, or
+     * {@code defValue} if it is missing or not a number. Variables declared as
+     * {@code {name:int}} or {@code {name:long}} were checked when the request was routed.
+     */
+    protected long longPathParam (String name, long defValue) {
+        return _route.get().getLong(name, defValue);
+    }
+
+    /** As above, but also returns {@code defValue} for a number too large for an int. */
+    protected int intPathParam (String name, int defValue) {
+        return _route.get().getInt(name, defValue);
+    }
+
+    /**
+     * Returns the id of the current request: the {@code id} variable if the method has a path
+     * template, or else the first segment of the path following the method name.
+     */
     protected String strId () {
+        Router.Match<RestMethod> route = _route.get();
+        if (route.has(ID)) return route.get(ID);
         String pathInfo = _pathInfo.get();
         if (StringUtil.isBlank(pathInfo)) return null;
         int idx = pathInfo.indexOf('/');
@@ -214,46 +1976,184 @@ public abstract class SimplerServlet extends HttpServlet {
         return idx < 0 ? pathInfo : pathInfo.substring(0, idx);
     }
 
+    /**
+     * Returns the id of the current request as an int, or -1 if there is none. This reads the
+     * id directly from the request path rather than parsing the result of {@link #strId}.
+     */
     protected int intId () {
-        return toInt(strId(), -1);
+        Router.Match<RestMethod> route = _route.get();
+        if (route.has(ID)) return route.getInt(ID, -1);
+        int start = route.restStart();
+        if (start < 0) return -1;
+        String path = route.path();
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = path.length();
+        } else {
+            log.warning("Path info more complex than expected", "path", path.substring(start));
+        }
+        if (start == end) return -1;
+        long id = Router.parseLong(path, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE,
+            Long.MIN_VALUE);
+        if (id == Long.MIN_VALUE) {
+            log.warning("Received non-integer value", "value", path.substring(start, end));
+            return -1;
+        }
+        return (int)id;
     }
 
-    protected int toInt (String value, int defval) {
-        if (value == null) return defval;
-        try {
-            return Integer.parseInt(value);
-        } catch (Exception e) {
-            log.warning("Received non-integer value", "value", value);
+    /**
+     * Returns the ids of the current request for paths that list several, separated by commas,
+     * such as {@code /items/1,2,3}, in the order they were given. A single id is returned as an
+     * array of one, an id that is not an integer as -1, and no id at all as an empty array.
+     */
+    protected int[] intIds () {
+        Router.Match<RestMethod> route = _route.get();
+        String path;
+        int start, end;
+        if (route.has(ID)) {
+            path = route.get(ID);
+            start = 0;
+            end = path.length();
+        } else {
+            start = route.restStart();
+            if (start < 0) return new int[0];
+            path = route.path();
+            end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            } else {
+                log.warning("Path info more complex than expected", "path", path.substring(start));
+            }
         }
-        return defval;
+        if (start == end) return new int[0];
+
+        int count = 1;
+        for (int ii = start; ii < end; ii++) {
+            if (path.charAt(ii) == ',') count++;
+        }
+        int[] ids = new int[count];
+        for (int ii = 0; ii < count; ii++) {
+            int comma = path.indexOf(',', start);
+            int idEnd = comma < 0 || comma > end ? end : comma;
+            long id = Router.parseLong(path, start, idEnd, Integer.MIN_VALUE, Integer.MAX_VALUE,
+                Long.MIN_VALUE);
+            if (id == Long.MIN_VALUE) {
+                log.warning("Received non-integer value", "value", path.substring(start, idEnd));
+                id = -1;
+            }
+            ids[ii] = (int)id;
+            start = idEnd + 1;
+        }
+        return ids;
     }
 
-    protected String getMethodName (HttpServletRequest req) {
-        String pathInfo = req.getPathInfo();
-        if (StringUtil.isBlank(pathInfo)) return "";
-        int idx = pathInfo.indexOf('/', 1);
-        return pathInfo.substring(1, idx < 0 ? pathInfo.length() : idx);
+    /**
+     * Creates a loader that gathers the keys loaded by concurrent calls into batches of up to
+     * {@code maxBatch} keys, waiting at most {@code windowMillis} for a batch to fill, and loads
+     * each batch with one call to {@code fetch}. The bulk fetch runs on the given executor.
+     * Methods can return the result of {@link BatchLoader#loadAsync} directly, to be completed
+     * asynchronously when the batch has been fetched.
+     */
+    protected <K, V> BatchLoader<K, V> createLoader (
+            Function<? super List<K>, ? extends Map<K, ? extends V>> fetch,
+            long windowMillis, int maxBatch, Executor executor) {
+        return new BatchLoader<K, V>(fetch, windowMillis, TimeUnit.MILLISECONDS, maxBatch,
+            timer(), executor);
     }
 
-    protected RestMethod checkDefaultMethods (String name, Map<String, RestMethod> map) {
-        RestMethod method = null;
-        if (name.length() == 0) {
-            method = map.get(DEFAULT_FIND_ALL);
+    /**
+     * Creates a loader as above that runs its bulk fetches on a pool of threads shared by all of
+     * this servlet's loaders, which grows as needed and is shut down with the servlet.
+     */
+    protected <K, V> BatchLoader<K, V> createLoader (
+            Function<? super List<K>, ? extends Map<K, ? extends V>> fetch,
+            long windowMillis, int maxBatch) {
+        return createLoader(fetch, windowMillis, maxBatch, loaderExecutor());
+    }
+
+    /** Returns the scheduler shared by this servlet's loaders and the heartbeats of its streams. */
+    protected synchronized ScheduledExecutorService timer () {
+        if (_timer == null) {
+            ScheduledThreadPoolExecutor timer =
+                new ScheduledThreadPoolExecutor(1, daemonThreads("simpler-timer"));
+            // batches that fill early cancel their timers, which should not linger in the queue
+            timer.setRemoveOnCancelPolicy(true);
+            _timer = timer;
         }
-        if (method == null) {
-            // TODO: receive the request method, find only is valid for GET, etc.
-            method = map.get(DEFAULT_FIND);
+        return _timer;
+    }
+
+    protected synchronized ExecutorService loaderExecutor () {
+        if (_loaderExecutor == null) {
+            _loaderExecutor = Executors.newCachedThreadPool(daemonThreads("simpler-loader"));
         }
+        return _loaderExecutor;
+    }
 
-        if (method != null) {
-            String pathInfo = _req.get().getPathInfo();
-            _pathInfo.set(pathInfo == null ? "" : _req.get().getPathInfo().substring(1));
+    /**
+     * Sets the most threads used to write events to the clients of this servlet's streams.
+     * Defaults to twice the number of processors. The pool is created when the first stream
+     * opens, so this must be called before then.
+     */
+    public synchronized void setStreamThreads (int threads) {
+        _streamThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns the executor on which events are written to the clients of this servlet's streams.
+     * A thread is used only while a client has events waiting, and there are at most
+     * {@link #setStreamThreads} of them. Clients with events waiting while every thread is busy
+     * wait their turn, each queued once however many events it has waiting.
+     */
+    protected synchronized ExecutorService streamExecutor () {
+        if (_streamExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(_streamThreads, _streamThreads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                daemonThreads("simpler-stream"));
+            executor.allowCoreThreadTimeOut(true);
+            _streamExecutor = executor;
         }
+        return _streamExecutor;
+    }
 
-        return method;
+    @Override public void destroy () {
+        for (RestMethod method : _gets.values()) {
+            if (method.streams != null) method.streams.closeAll();
+        }
+        synchronized (this) {
+            if (_ownedExecutor != null) _ownedExecutor.shutdown();
+            if (_ownedBatchExecutor != null) _ownedBatchExecutor.shutdown();
+            if (_timer != null) _timer.shutdown();
+            if (_loaderExecutor != null) _loaderExecutor.shutdown();
+            if (_streamExecutor != null) _streamExecutor.shutdown();
+        }
+        super.destroy();
+    }
+
+    protected static ThreadFactory daemonThreads (final String name) {
+        return new ThreadFactory() {
+            public Thread newThread (Runnable task) {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    protected int toInt (String value, int defval) {
+        if (value == null) return defval;
+        try {
+            return Integer.parseInt(value);
+        } catch (Exception e) {
+            log.warning("Received non-integer value", "value", value);
+        }
+        return defval;
     }
 
     protected void doUnexpectedFailure (Throwable e) {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) ctx.fail(RestException.INTERNAL_ERROR);
         String path = _req.get().getServletPath();
         if (e instanceof IllegalStateException && "STREAM".equals(e.getMessage())) {
             log.info("Servlet response stream unavailable", "servlet", path);
@@ -263,12 +2163,20 @@ public abstract class SimplerServlet extends HttpServlet {
         log.warning("unexpected failure", e);
         try {
             new RestException(RestException.INTERNAL_ERROR,
-                e.getMessage()).write(_gson, _rsp.get());
+                e.getMessage()).write(_gson, _rsp.get(), currentCodec());
         } catch (IOException ioe) {
             log.warning("ioe attempting to send error message", ioe);
         }
     }
 
+    /**
+     * Returns true if the given endpoint's result is a Microtome page or library. Endpoints found
+     * by reflection are passed on to {@link #methodIsMicrotome(Method)}.
+     */
+    protected boolean methodIsMicrotome (Dispatcher.Endpoint endpoint) {
+        return endpoint.method != null && methodIsMicrotome(endpoint.method);
+    }
+
     protected boolean methodIsMicrotome (Method method) {
         return false;
     }
@@ -279,60 +2187,350 @@ public abstract class SimplerServlet extends HttpServlet {
             // default to an empty json object instead of "null", friendlier for the
             // client
         }
-        if (method.responseName != null) {
-            if (!(response instanceof JsonElement)) {
-                response = _gson.toJsonTree(response);
-            }
-            JsonObject json = new JsonObject();
-            json.add(method.responseName, (JsonElement)response);
-            response = json;
-        }
+        // the wrapper object is written around the streamed response rather than building the
+        // response as a tree just so it can be added to a JsonObject
+        if (method.responseName != null) writeMemberName(method.responseName, true, out);
         if (response instanceof JsonElement) {
             _gson.toJson((JsonElement)response, out);
         } else {
             _gson.toJson(response, out);
         }
+        if (method.responseName != null) out.write('}');
+    }
+
+    /**
+     * Writes the name of a member of a JSON object that is being streamed to the client, preceded
+     * by the object's opening brace if this is its first member, or a comma otherwise. The value
+     * should be written immediately afterward, and the object closed with a '}' once all members
+     * have been written.
+     */
+    protected void writeMemberName (String name, boolean first, PrintWriter out) {
+        out.write(first ? '{' : ',');
+        _gson.toJson(name, out);
+        out.write(':');
     }
 
     protected <T> RequestLocal<T> createRequestLocal () {
         return new RequestLocal<T>(_reset);
     }
 
+    @SuppressWarnings("unchecked")
+    protected static Router.Match<RestMethod> routeOf (RequestContext ctx) {
+        return (Router.Match<RestMethod>)ctx.route();
+    }
+
+    /**
+     * Tracks an asynchronous call, writing its result or error when the method's future completes
+     * and cancelling the future if the request times out or the client goes away. Only the first
+     * of those events to arrive gets to touch the response. The result is written on whatever
+     * thread completes the future, with the call's context bound for just that long; the reset
+     * signal is not emitted there, as that thread may be in the middle of some other call.
+     */
+    protected class AsyncCall implements AsyncListener, BiConsumer<Object, Throwable> {
+        public AsyncCall (AsyncContext ctx, RestMethod method, CompletionStage<?> stage) {
+            _ctx = ctx;
+            _method = method;
+            _stage = stage;
+            _call = RequestContext.current();
+        }
+
+        /** Cancels the call, if it has not already completed. */
+        public boolean cancel () {
+            if (!_done.compareAndSet(false, true)) return false;
+            cancelStage();
+            return true;
+        }
+
+        @Override public void accept (Object response, Throwable error) {
+            if (!_done.compareAndSet(false, true)) return;
+            finish(response, error == null ? null : unwrapFailure(error));
+        }
+
+        @Override public void onTimeout (AsyncEvent event) {
+            if (!_done.compareAndSet(false, true)) return;
+            cancelStage();
+            finish(null, RestException.constant(RestException.TIMEOUT, "Request timed out"));
+        }
+
+        @Override public void onError (AsyncEvent event) {
+            if (!cancel()) return;
+            log.info("Async call failed", "method", _method, "error", event.getThrowable());
+            try {
+                _ctx.complete();
+            } catch (IllegalStateException ise) {
+                // the container has already completed the request
+            }
+            _call.fail(RestException.INTERNAL_ERROR);
+            callCompleted(_call);
+        }
+
+        @Override public void onComplete (AsyncEvent event) {
+            cancel();
+        }
+
+        @Override public void onStartAsync (AsyncEvent event) {}
+
+        protected void cancelStage () {
+            if (_stage instanceof Future<?>) ((Future<?>)_stage).cancel(true);
+        }
+
+        protected void finish (final Object response, final Exception error) {
+            RequestContext.run(_call, new RequestContext.Body<RuntimeException>() {
+                public void run () {
+                    write(response, error);
+                }
+            });
+        }
+
+        protected void write (Object response, Exception error) {
+            HttpServletResponse rsp = _call.response();
+            try {
+                boolean usedWriter = false;
+                try {
+                    if (error != null) throw error;
+                    usedWriter = writeResponse(_method, response, rsp);
+                } catch (RestException re) {
+                    usedWriter = true;
+                    writeError(re, rsp);
+                } catch (AbortedResponseException are) {
+                    throw are;
+                } catch (Throwable t) {
+                    // as in execute, the error of a failed method is finished like any other
+                    usedWriter = t == error;
+                    doUnexpectedFailure(t);
+                }
+                if (usedWriter) finishResponse(rsp);
+            } catch (IOException ioe) {
+                log.info("Failed to write async response", "method", _method, ioe);
+            } finally {
+                try {
+                    _ctx.complete();
+                } finally {
+                    callCompleted(_call);
+                }
+            }
+        }
+
+        protected final AsyncContext _ctx;
+        protected final RestMethod _method;
+        protected final CompletionStage<?> _stage;
+        protected final RequestContext _call;
+        protected final AtomicBoolean _done = new AtomicBoolean();
+    }
+
+    /**
+     * Thrown when a response fails after part of it has been sent, to stop the container from
+     * finishing it as though it were complete.
+     */
+    protected static class AbortedResponseException extends IOException {
+        public AbortedResponseException (Throwable cause) {
+            super("Response aborted after it was started", cause);
+        }
+    }
+
+    /** One call in a batch request, as sent by the client. */
+    protected static class BatchEntry {
+        /** The HTTP method of the call, GET by default. */
+        public String method;
+        public String name;
+        public String pathInfo;
+        public Map<String, String> params;
+        public JsonElement body;
+        /** If true, the call may run in parallel with the other calls in the batch. */
+        public boolean independent;
+    }
+
     protected static class RestMethod {
+        public final String name;
+        /**
+         * The method, if it was found by reflection or is called through an invoker made by
+         * {@link MethodInvoker}, or null if it is called through a generated {@link Dispatcher}.
+         */
         public final Method method;
+        public final RequestMethod requestMethod;
+        public final MethodInvoker invoker;
         public final Class<?> requestClass;
+        /** The type of each record read from the body, if the method takes an Iterator. */
+        public final Type requestType;
+        /** Creates the parameter from the query parameters, if its class has {@link Param}s. */
+        public final ParamBinder binder;
+        public final boolean streamedRequest;
         public final String responseName;
         public final String contentType;
         public final boolean microtome;
+        /** True if the method returns a CompletionStage that is written when it completes. */
+        public final boolean async;
+        /** The cache of serialized responses, if the method is {@link Cached}. */
+        public final ResponseCache cache;
+        public final String[] cacheParams;
+        /** Matches up concurrent identical calls, if the method is {@link Coalesce}d. */
+        public final Coalescer coalescer;
+        public final String[] coalesceParams;
+        /** How long a coalesced call waits for the one running the method, in milliseconds. */
+        public final long coalesceWait;
+        /** The Cache-Control header for the method, or null to use the servlet's default. */
+        public final String cacheControl;
+        /** True if responses are tagged with an ETag hashed from their body. */
+        public final boolean etag;
+        /** Supply the version and last modified time of the resource, if configured. */
+        public final MethodInvoker versionInvoker, lastModifiedInvoker;
+        /** False if the method's responses are never compressed. */
+        public final boolean compress;
+        /**
+         * True if the method's preconditions are checked before it is run, which is only done for
+         * GET methods.
+         */
+        public final boolean preconditions;
+        /** Recorded only while metrics are enabled for the servlet. */
+        public final EndpointMetrics metrics;
+        /** The method's priority against the servlet's concurrency limit. */
+        public final Priority priority;
+        /** The method's own concurrency limit, if it has one. */
+        public final ConcurrencyLimiter limiter;
+        /** The configuration of a {@link RestStream} method, and its open streams. */
+        public final RestStream stream;
+        public final EventStreams streams;
 
-        public RestMethod (Method method, Class<?> requestClass, String responseName,
-            String contentType, boolean microtome) {
+        public RestMethod (Dispatcher.Endpoint endpoint, Method method, Class<?> servletClass,
+            String responseName, String contentType, boolean microtome, Cached cached,
+            Coalesce coalesce, CacheControl cacheControl, ConcurrencyLimit limit,
+            RestStream stream, EventStreams streams) {
+            this.name = endpoint.name;
             this.method = method;
-            this.requestClass = requestClass;
+            this.requestMethod = endpoint.requestMethod;
+            this.invoker = endpoint.invoker == null ? MethodInvoker.create(method) :
+                endpoint.invoker;
+            this.requestClass = endpoint.parameterTypes.length == 0 ? null :
+                endpoint.parameterTypes[0];
+            this.streamedRequest = requestClass == Iterator.class;
+            this.requestType = !streamedRequest ? requestClass :
+                endpoint.elementType == null ? JsonElement.class : endpoint.elementType;
+            this.binder = requestClass != null && !streamedRequest &&
+                ParamBinder.binds(requestClass) ? new ParamBinder(requestClass) : null;
             this.responseName = responseName;
             this.contentType = contentType;
             this.microtome = microtome;
+            this.async = CompletionStage.class.isAssignableFrom(endpoint.returnType);
+            this.cache = cached == null ? null : new ResponseCache(
+                cached.ttl(), TimeUnit.SECONDS, cached.maxEntries(), cached.maxBytes());
+            this.cacheParams = cached == null ? new String[0] : cached.params();
+            this.coalescer = coalesce == null ? null : new Coalescer();
+            this.coalesceParams = coalesce == null ? new String[0] : coalesce.params();
+            this.coalesceWait = coalesce == null ? 0 : coalesce.maxWait();
+            this.cacheControl = cacheControl == null ? null : cacheControl.value();
+            this.compress = endpoint.compress;
+            this.stream = stream;
+            this.streams = streams;
+            this.versionInvoker = cacheControl == null ? null :
+                endpoint.versionInvoker != null ? endpoint.versionInvoker :
+                findInvoker(servletClass, cacheControl.version());
+            this.lastModifiedInvoker = cacheControl == null ? null :
+                endpoint.lastModifiedInvoker != null ? endpoint.lastModifiedInvoker :
+                findInvoker(servletClass, cacheControl.lastModified());
+            // conditional requests are only answered for safe methods: a 304 in reply to a
+            // write would tell the client it succeeded without it having been made
+            boolean safe = requestMethod == RequestMethod.GET;
+            this.preconditions = safe && (versionInvoker != null || lastModifiedInvoker != null);
+            this.metrics = new EndpointMetrics(name, requestMethod);
+            this.priority = limit == null ? Priority.NORMAL : limit.priority();
+            this.limiter = limit == null || limit.value() <= 0 ? null :
+                limit.targetLatency() <= 0 ? ConcurrencyLimiter.fixed(limit.value()) :
+                ConcurrencyLimiter.adaptive(limit.value(), 1, limit.value(),
+                    limit.targetLatency(), TimeUnit.MILLISECONDS);
+            // a supplied version makes a better ETag than a hash of the body
+            this.etag = safe && cacheControl != null && cacheControl.etag() &&
+                contentType == null && !async && versionInvoker == null;
+        }
+
+        /**
+         * Creates an invoker for the named no-argument method of the given class or its
+         * superclasses, or returns null if the name is blank.
+         */
+        protected static MethodInvoker findInvoker (Class<?> cls, String name) {
+            if (StringUtil.isBlank(name)) return null;
+            for (Class<?> cc = cls; cc != null; cc = cc.getSuperclass()) {
+                try {
+                    return MethodInvoker.create(cc.getDeclaredMethod(name));
+                } catch (NoSuchMethodException nsme) {
+                    // keep looking
+                }
+            }
+            throw new IllegalArgumentException("No method " + name + "() in " + cls.getName());
+        }
+
+        @Override public String toString () {
+            return requestMethod.getHttpName() + " " + name;
         }
     }
 
     protected static final String DEFAULT_FIND_ALL = "_findAll";
     protected static final String DEFAULT_FIND = "_find";
+    protected static final String BATCH_PATH = "/_batch";
+    protected static final String STATS_PATH = "/_stats";
+    protected static final String REQUEST_ID_HEADER = "X-Request-Id";
+    /** The longest X-Request-Id accepted from a client. */
+    protected static final int MAX_REQUEST_ID_LENGTH = 64;
+    protected static final String ID = "id";
+    protected static final long DEFAULT_ASYNC_TIMEOUT = 30 * 1000L;
+    protected static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+    protected static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
 
     private static final Logger log = Logger.getLogger(SimplerServlet.class);
 
     protected String _baseEndpoint;
     protected Gson _gson;
+    protected long _asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+    protected String _cacheControl = "no-cache";
+    protected boolean _metricsEnabled, _statsEnabled;
+    protected long _slowNanos;
+    protected double _traceSampleRate;
+    protected final String _requestIdPrefix =
+        Integer.toString(ThreadLocalRandom.current().nextInt(36 * 36 * 36 * 36), 36) + "-";
+    protected final AtomicLong _nextRequestId = new AtomicLong();
+    protected final List<MetricsListener> _metricsListeners =
+        new CopyOnWriteArrayList<MetricsListener>();
+    protected final List<Codec> _codecs = new CopyOnWriteArrayList<Codec>();
+    /** False if responses are kept to JSON because encodeResponse is not overridden to match. */
+    protected volatile boolean _codecResponses = true;
+    protected int _compressionThreshold = 1024;
+    protected int _bufferLimit = 64 * 1024;
+    protected final ResponseBuffer.Pool _buffers = new ResponseBuffer.Pool(64, 4096);
+    protected final Compression _compression = new Compression(16);
+    protected volatile ConcurrencyLimiter _concurrencyLimit;
+    protected volatile int _shedCode = RestException.UNAVAILABLE;
+    protected volatile int _retryAfter = 1;
+    protected volatile ErrorLog _errorLog = new ErrorLog(10, TimeUnit.SECONDS);
+    protected int _maxBatchCalls;
+    protected ScheduledExecutorService _timer;
+    protected ExecutorService _loaderExecutor, _streamExecutor;
+    protected int _streamThreads = 2 * Runtime.getRuntime().availableProcessors();
+    /** Runs calls off the container thread, if set. */
+    protected volatile Executor _executor;
+    /** The executor created by {@link #useVirtualThreads}, shut down with the servlet. */
+    protected ExecutorService _ownedExecutor;
+    protected Executor _batchExecutor;
+    /** The executor created by {@link #enableBatching(int,int)}, shut down with the servlet. */
+    protected ExecutorService _ownedBatchExecutor;
+    protected int _streamFlushElements = 100;
+    protected long _streamFlushNanos = TimeUnit.MILLISECONDS.toNanos(250);
 
+    /** Emitted at the end of each call, if the servlet was created with one. */
     protected final ThreadLocal<UnitSignal> _reset;
 
     protected final RequestLocal<HttpServletRequest> _req;
     protected final RequestLocal<HttpServletResponse> _rsp;
     protected final RequestLocal<Parameters> _params;
     protected final RequestLocal<String> _pathInfo;
+    protected final RequestLocal<Router.Match<RestMethod>> _route;
     protected final RequestLocal<RequestMethod> _requestMethod;
 
     protected final Map<String, RestMethod> _gets = new HashMap<String, RestMethod>();
     protected final Map<String, RestMethod> _posts = new HashMap<String, RestMethod>();
     protected final Map<String, RestMethod> _puts = new HashMap<String, RestMethod>();
     protected final Map<String, RestMethod> _deletes = new HashMap<String, RestMethod>();
+
+    protected final Router<RestMethod> _getRoutes = new Router<RestMethod>();
+    protected final Router<RestMethod> _postRoutes = new Router<RestMethod>();
+    protected final Router<RestMethod> _putRoutes = new Router<RestMethod>();
+    protected final Router<RestMethod> _deleteRoutes = new Router<RestMethod>();
 }
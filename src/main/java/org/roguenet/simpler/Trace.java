@@ -0,0 +1,128 @@
+package org.roguenet.simpler;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timeline of a single call, kept while tracing is enabled for the servlet. The call is divided
+ * into phases (parsing the request, invoking the method, serializing and writing the response),
+ * each of which runs until the next one starts, and endpoints may add spans of their own for
+ * the work they do, such as database queries:
+ *
+ * <pre>{@code
+ * try (Trace.Span span = Trace.span("db")) {
+ *     return _repo.load(id);
+ * }
+ * }</pre>
+ *
+ * All times are taken from {@link System#nanoTime}. A call may move between threads, and its
+ * spans may be closed on threads of their own, so every method that touches the timeline is
+ * synchronized.
+ */
+public class Trace {
+    /** A span of a trace, ended when it is closed. */
+    public interface Span extends AutoCloseable {
+        @Override void close ();
+    }
+
+    /**
+     * Starts a span of the given name in the trace of the current call. If the call is not being
+     * traced, the returned span does nothing.
+     */
+    public static Span span (String name) {
+        RequestContext ctx = RequestContext.current();
+        Trace trace = ctx == null ? null : ctx.trace();
+        return trace == null ? NOOP : trace.startSpan(name);
+    }
+
+    public Trace (String requestId, long startNanos) {
+        _requestId = requestId;
+        _startNanos = startNanos;
+    }
+
+    /** Returns the id of the traced request, which is sent to the client as X-Request-Id. */
+    public String requestId () {
+        return _requestId;
+    }
+
+    /** Ends the current phase, if any, and starts one of the given name. */
+    public synchronized void phase (String name) {
+        long now = System.nanoTime();
+        if (_phase >= 0) endAt(_phase, now);
+        _phase = add(name, now);
+    }
+
+    /** Starts a span of the given name, which lasts until the returned span is closed. */
+    public Span startSpan (String name) {
+        final int idx = add(name, System.nanoTime());
+        return new Span() {
+            @Override public void close () {
+                endAt(idx, System.nanoTime());
+            }
+        };
+    }
+
+    /** Ends the trace and its current phase. Returns the total duration of the call. */
+    public synchronized long end () {
+        long now = System.nanoTime();
+        if (_phase >= 0) endAt(_phase, now);
+        _phase = -1;
+        _totalNanos = now - _startNanos;
+        return _totalNanos;
+    }
+
+    /** Returns the duration of the call, once the trace has {@link #end}ed. */
+    public synchronized long totalNanos () {
+        return _totalNanos;
+    }
+
+    /**
+     * Returns the phases and spans recorded so far, in the order they started, such as
+     * {@code parse=0.08ms invoke=12.40ms db=11.92ms serialize=0.61ms}. Spans that have not
+     * ended are marked as open.
+     */
+    public synchronized String breakdown () {
+        StringBuilder buf = new StringBuilder();
+        for (int ii = 0; ii < _count; ii++) {
+            if (buf.length() > 0) buf.append(' ');
+            buf.append(_names[ii]).append('=');
+            if (_ends[ii] < 0) {
+                buf.append("open");
+            } else {
+                long micros = TimeUnit.NANOSECONDS.toMicros(_ends[ii] - _starts[ii]);
+                buf.append(micros / 1000).append('.');
+                long frac = micros % 1000 / 10;
+                if (frac < 10) buf.append('0');
+                buf.append(frac).append("ms");
+            }
+        }
+        return buf.toString();
+    }
+
+    protected synchronized int add (String name, long start) {
+        if (_count == _names.length) {
+            _names = Arrays.copyOf(_names, _count * 2);
+            _starts = Arrays.copyOf(_starts, _count * 2);
+            _ends = Arrays.copyOf(_ends, _count * 2);
+        }
+        _names[_count] = name;
+        _starts[_count] = start;
+        _ends[_count] = -1;
+        return _count++;
+    }
+
+    protected synchronized void endAt (int idx, long end) {
+        _ends[idx] = end;
+    }
+
+    protected final String _requestId;
+    protected final long _startNanos;
+    protected long _totalNanos;
+    protected int _phase = -1, _count;
+    protected String[] _names = new String[8];
+    protected long[] _starts = new long[8], _ends = new long[8];
+
+    protected static final Span NOOP = new Span() {
+        @Override public void close () {}
+    };
+}
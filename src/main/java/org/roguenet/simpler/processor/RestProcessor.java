@@ -0,0 +1,680 @@
+package org.roguenet.simpler.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import org.roguenet.simpler.CacheControl;
+import org.roguenet.simpler.Dispatcher;
+import org.roguenet.simpler.MethodInvoker;
+import org.roguenet.simpler.NotMicrotome;
+import org.roguenet.simpler.NotSerialized;
+import org.roguenet.simpler.Param;
+import org.roguenet.simpler.RequestMethod;
+import org.roguenet.simpler.RestDelete;
+import org.roguenet.simpler.RestGet;
+import org.roguenet.simpler.RestPost;
+import org.roguenet.simpler.RestPut;
+import org.roguenet.simpler.RestStream;
+import org.roguenet.simpler.util.Router;
+
+/**
+ * Checks the REST methods of each servlet when it is compiled and generates a {@link Dispatcher}
+ * for it, so the servlet neither scans its methods nor spins invokers for them when it is
+ * constructed. Signatures that Simpler would refuse to map, or would map but never be able to
+ * call properly, are reported as compile errors rather than as warnings logged at startup.
+ *
+ * The processor is registered as a service, so javac finds it on the compile classpath. Up to
+ * JDK 22 it then runs by default; from JDK 23 on, javac only runs it when given {@code -proc:full}
+ * or {@code -processor}. Servlets it has not generated a dispatcher for, such as private nested
+ * classes, still work: their methods are found by reflection as before.
+ */
+public class RestProcessor extends AbstractProcessor {
+    @Override public Set<String> getSupportedAnnotationTypes () {
+        return new HashSet<String>(Arrays.asList(RestGet.class.getName(),
+            RestPost.class.getName(), RestPut.class.getName(), RestDelete.class.getName(),
+            RestStream.class.getName(), NotSerialized.class.getName(),
+            NotMicrotome.class.getName(), Param.class.getName()));
+    }
+
+    @Override public SourceVersion getSupportedSourceVersion () {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override public boolean process (Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        Set<TypeElement> servlets = new LinkedHashSet<TypeElement>();
+        for (Class<? extends Annotation> annotation : REST_ANNOTATIONS) {
+            for (Element elem : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (elem.getEnclosingElement() instanceof TypeElement) {
+                    servlets.add((TypeElement)elem.getEnclosingElement());
+                }
+            }
+        }
+        checkModifiers(roundEnv, NotSerialized.class);
+        checkModifiers(roundEnv, NotMicrotome.class);
+        checkParams(roundEnv);
+        for (TypeElement servlet : servlets) {
+            List<Endpoint> endpoints = checkServlet(servlet);
+            if (endpoints != null) generate(servlet, endpoints);
+        }
+        return false;
+    }
+
+    /**
+     * Warns about {@link NotSerialized} and {@link NotMicrotome} annotations that will have no
+     * effect.
+     */
+    protected void checkModifiers (RoundEnvironment roundEnv,
+            Class<? extends Annotation> annotation) {
+        for (Element elem : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (!isMapped(elem)) {
+                warn(elem, "@" + annotation.getSimpleName() + " has no effect on a method " +
+                    "without @RestGet, @RestPost, @RestPut, @RestDelete or @RestStream");
+            } else if (annotation == NotMicrotome.class &&
+                    !extendsClass(elem.getEnclosingElement(), MICROTOME_SERVLET)) {
+                warn(elem, "@NotMicrotome has no effect outside a MicrotomeSimplerServlet");
+            }
+        }
+    }
+
+    /**
+     * Checks every mapped method of the given servlet, returning the endpoints to generate or null
+     * if the servlet has errors or no dispatcher can be generated for it.
+     */
+    protected List<Endpoint> checkServlet (TypeElement servlet) {
+        boolean valid = true;
+        if (!extendsClass(servlet, SIMPLER_SERVLET)) {
+            error(servlet, "REST methods must be declared in a subclass of SimplerServlet");
+            valid = false;
+        }
+
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        Map<RequestMethod, Router<String>> routers = new HashMap<RequestMethod, Router<String>>();
+        Set<String> names = new HashSet<String>();
+        for (ExecutableElement method : ElementFilter.methodsIn(servlet.getEnclosedElements())) {
+            List<Endpoint> mapped = endpoints(method);
+            if (mapped.isEmpty()) continue;
+            valid &= checkSignature(method);
+            for (Endpoint endpoint : mapped) {
+                if (!names.add(endpoint.requestMethod + " " + endpoint.name)) {
+                    error(method, "More than one " + endpoint.requestMethod + " method named " +
+                        endpoint.name);
+                    valid = false;
+                }
+                if (!endpoint.path.trim().isEmpty()) {
+                    Router<String> router = routers.get(endpoint.requestMethod);
+                    if (router == null) {
+                        routers.put(endpoint.requestMethod, router = new Router<String>());
+                    }
+                    try {
+                        router.add(endpoint.path, endpoint.name);
+                    } catch (IllegalArgumentException iae) {
+                        error(method, "Invalid path: " + iae.getMessage());
+                        valid = false;
+                    }
+                }
+            }
+            endpoints.addAll(mapped);
+        }
+        if (!valid) return null;
+
+        Element pkg = processingEnv.getElementUtils().getPackageOf(servlet);
+        boolean accessible = isAccessible(servlet, pkg);
+        for (Endpoint endpoint : endpoints) {
+            // the parameter's type arguments are named by an Iterator's element type
+            for (VariableElement param : endpoint.method.getParameters()) {
+                accessible &= isAccessibleType(param.asType(), pkg);
+            }
+            accessible &= isAccessibleType(erasure(endpoint.method.getReturnType()), pkg);
+        }
+        if (!accessible) {
+            warn(servlet, "No dispatcher can be generated for a servlet that the dispatcher " +
+                "cannot name, or whose methods take or return types it cannot name. Its REST " +
+                "methods will be found by reflection.");
+            return null;
+        }
+        return endpoints;
+    }
+
+    /**
+     * Checks that the given method can be called by Simpler, reporting an error and returning
+     * false if it cannot.
+     */
+    protected boolean checkSignature (ExecutableElement method) {
+        boolean valid = true;
+        if (method.getModifiers().contains(Modifier.STATIC)) {
+            error(method, "REST methods must not be static");
+            valid = false;
+        }
+        int params = method.getParameters().size();
+        if (params > 1) {
+            error(method, "REST methods take at most one parameter, the request body");
+            valid = false;
+        } else if (params == 1 && (method.getAnnotation(RestGet.class) != null ||
+                                   method.getAnnotation(RestStream.class) != null) &&
+                   !bindsParams(method.getParameters().get(0).asType())) {
+            error(method, "GET methods have no request body, so can only take a parameter " +
+                "whose class has @Param fields");
+            valid = false;
+        }
+        CacheControl cacheControl = method.getAnnotation(CacheControl.class);
+        if (cacheControl != null) {
+            TypeElement servlet = (TypeElement)method.getEnclosingElement();
+            for (String name : new String[] { cacheControl.version(),
+                                              cacheControl.lastModified() }) {
+                if (!name.trim().isEmpty() && findNoArgMethod(servlet, name) == null) {
+                    error(method, "@CacheControl names no method " + name + "() in " +
+                        servlet.getSimpleName());
+                    valid = false;
+                }
+            }
+        }
+        if (method.getAnnotation(RestStream.class) != null) {
+            TypeElement signal = processingEnv.getElementUtils().getTypeElement(SIGNAL_VIEW);
+            if (signal != null && !processingEnv.getTypeUtils().isAssignable(
+                    erasure(method.getReturnType()), erasure(signal.asType()))) {
+                error(method, "@RestStream methods must return a SignalView");
+                valid = false;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Checks that each {@link Param} field can be set from a request parameter, and that the
+     * class declaring it can be created to hold the parameters.
+     */
+    protected void checkParams (RoundEnvironment roundEnv) {
+        Set<TypeElement> classes = new LinkedHashSet<TypeElement>();
+        for (Element field : roundEnv.getElementsAnnotatedWith(Param.class)) {
+            if (field.getModifiers().contains(Modifier.STATIC) ||
+                field.getModifiers().contains(Modifier.FINAL)) {
+                error(field, "@Param fields must not be static or final");
+            }
+            if (!isBindable(field.asType())) {
+                error(field, "@Param fields must be Strings, enums, or ints, longs, booleans " +
+                    "or doubles");
+            }
+            classes.add((TypeElement)field.getEnclosingElement());
+        }
+        for (TypeElement cls : classes) {
+            if (cls.getNestingKind() == NestingKind.MEMBER &&
+                !cls.getModifiers().contains(Modifier.STATIC)) {
+                error(cls, "Classes with @Param fields must not be inner classes");
+            }
+            boolean noArg = false;
+            List<ExecutableElement> ctors = ElementFilter.constructorsIn(cls.getEnclosedElements());
+            for (ExecutableElement ctor : ctors) noArg |= ctor.getParameters().isEmpty();
+            if (!ctors.isEmpty() && !noArg) {
+                error(cls, "Classes with @Param fields need a no-argument constructor");
+            }
+        }
+    }
+
+    /** Returns true if the given type is a class with {@link Param} fields, or extends one. */
+    protected boolean bindsParams (TypeMirror type) {
+        while (type.getKind() == TypeKind.DECLARED) {
+            TypeElement cls = (TypeElement)((DeclaredType)type).asElement();
+            for (VariableElement field : ElementFilter.fieldsIn(cls.getEnclosedElements())) {
+                if (field.getAnnotation(Param.class) != null) return true;
+            }
+            type = cls.getSuperclass();
+        }
+        return false;
+    }
+
+    /** Returns true if a field of the given type can be set from a request parameter. */
+    protected boolean isBindable (TypeMirror type) {
+        switch (type.getKind()) {
+        case INT: case LONG: case BOOLEAN: case DOUBLE:
+            return true;
+        case DECLARED:
+            Element elem = ((DeclaredType)type).asElement();
+            if (elem.getKind() == ElementKind.ENUM) return true;
+            String name = ((TypeElement)elem).getQualifiedName().toString();
+            return BINDABLE.contains(name);
+        default:
+            return false;
+        }
+    }
+
+    /** Returns an endpoint for each REST annotation on the given method. */
+    protected List<Endpoint> endpoints (ExecutableElement method) {
+        List<Endpoint> endpoints = new ArrayList<Endpoint>();
+        RestGet get = method.getAnnotation(RestGet.class);
+        if (get != null) {
+            endpoints.add(new Endpoint(method, RequestMethod.GET, get.name(), get.path(),
+                get.compress()));
+        }
+        RestStream stream = method.getAnnotation(RestStream.class);
+        if (stream != null) {
+            endpoints.add(new Endpoint(method, RequestMethod.GET, "", stream.path(), false));
+        }
+        RestPost post = method.getAnnotation(RestPost.class);
+        if (post != null) {
+            endpoints.add(new Endpoint(method, RequestMethod.POST, post.name(), post.path(),
+                post.compress()));
+        }
+        RestPut put = method.getAnnotation(RestPut.class);
+        if (put != null) {
+            endpoints.add(new Endpoint(method, RequestMethod.PUT, put.name(), put.path(),
+                put.compress()));
+        }
+        RestDelete delete = method.getAnnotation(RestDelete.class);
+        if (delete != null) {
+            endpoints.add(new Endpoint(method, RequestMethod.DELETE, delete.name(),
+                delete.path(), delete.compress()));
+        }
+        return endpoints;
+    }
+
+    /** Writes the dispatcher for the given servlet. */
+    protected void generate (TypeElement servlet, List<Endpoint> endpoints) {
+        String pkg = processingEnv.getElementUtils().getPackageOf(servlet).getQualifiedName()
+            .toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(servlet).toString();
+        String name = (pkg.isEmpty() ? binaryName : binaryName.substring(pkg.length() + 1)) +
+            Dispatcher.SUFFIX;
+        String servletName = servlet.getQualifiedName().toString();
+
+        PrintWriter out;
+        try {
+            out = new PrintWriter(processingEnv.getFiler().createSourceFile(
+                pkg.isEmpty() ? name : pkg + "." + name, servlet).openWriter());
+        } catch (IOException ioe) {
+            error(servlet, "Unable to write dispatcher: " + ioe.getMessage());
+            return;
+        }
+        try {
+            out.println("// Generated by " + getClass().getName() + " from " + servletName +
+                ", do not edit.");
+            if (!pkg.isEmpty()) {
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+            out.println("public final class " + name + " extends " + DISPATCHER + " {");
+            out.println("    @Override @SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+            out.println("    public java.util.List<" + DISPATCHER + ".Endpoint> endpoints () {");
+            out.println("        return java.util.Arrays.<" + DISPATCHER + ".Endpoint>asList(");
+            for (int ii = 0; ii < endpoints.size(); ii++) {
+                writeEndpoint(out, servlet, endpoints.get(ii));
+                out.println(ii < endpoints.size() - 1 ? "," : ");");
+            }
+            out.println("    }");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    protected void writeEndpoint (PrintWriter out, TypeElement servlet, Endpoint endpoint) {
+        ExecutableElement method = endpoint.method;
+        String servletName = servlet.getQualifiedName().toString();
+        StringBuilder types = new StringBuilder();
+        String call = "((" + servletName + ")target)." + endpoint.name + "(";
+        for (VariableElement param : method.getParameters()) {
+            TypeMirror type = erasure(param.asType());
+            types.append(type).append(".class");
+            call += "(" + (type.getKind().isPrimitive() ? boxed(type) : type.toString()) +
+                ")param";
+        }
+        call += ")";
+
+        String indent = "                ";
+        out.println("            new " + DISPATCHER + ".Endpoint(" + literal(endpoint.name) +
+            ", " + erasure(method.getReturnType()) + ".class,");
+        out.println(indent + "new Class<?>[] {" + types + "}, " + elementType(method) + ",");
+        out.println(indent + REQUEST_METHOD + "." + endpoint.requestMethod + ", " +
+            literal(endpoint.responseName) + ", " + literal(endpoint.path) + ", " +
+            endpoint.compress + ",");
+        out.print(indent + "new " + ANNOTATION + "[] {");
+        boolean first = true;
+        for (AnnotationMirror annotation : method.getAnnotationMirrors()) {
+            if (!isSimplerAnnotation(annotation)) continue;
+            out.println(first ? "" : ",");
+            out.print(indent + "    " + annotation(annotation, indent + "    "));
+            first = false;
+        }
+        out.println("},");
+        if (method.getModifiers().contains(Modifier.PRIVATE)) {
+            // the dispatcher cannot call a private method, so the servlet creates a method
+            // handle for it as usual
+            out.print(indent + "null");
+        } else {
+            out.print(indent);
+            writeInvoker(out, indent, method, call);
+        }
+        out.println(",");
+        CacheControl cacheControl = method.getAnnotation(CacheControl.class);
+        writeNamedInvoker(out, indent, servlet, cacheControl == null ? "" : cacheControl.version());
+        out.println(",");
+        writeNamedInvoker(out, indent, servlet,
+            cacheControl == null ? "" : cacheControl.lastModified());
+        out.print(")");
+    }
+
+    /** Writes an invoker that makes the given call to the given method. */
+    protected void writeInvoker (PrintWriter out, String indent, ExecutableElement method,
+            String call) {
+        out.println("new " + INVOKER + "() {");
+        out.println(indent + "    @Override public Object invoke (Object target, " +
+            "Object param) throws Exception {");
+        String body = indent + "        ";
+        boolean wrap = throwsOther(method);
+        if (wrap) {
+            out.println(body + "try {");
+            body += "    ";
+        }
+        if (method.getReturnType().getKind() == TypeKind.VOID) {
+            out.println(body + call + ";");
+            out.println(body + "return null;");
+        } else {
+            out.println(body + "return " + call + ";");
+        }
+        if (wrap) {
+            out.println(indent + "        } catch (Throwable t) {");
+            out.println(indent + "            throw rethrow(t);");
+            out.println(indent + "        }");
+        }
+        out.println(indent + "    }");
+        out.print(indent + "}");
+    }
+
+    /**
+     * Writes an invoker for the named no-argument method of the servlet, as named by
+     * {@link CacheControl}, or null if none is named or the dispatcher cannot call it, in which
+     * case the servlet looks it up by name.
+     */
+    protected void writeNamedInvoker (PrintWriter out, String indent, TypeElement servlet,
+            String name) {
+        ExecutableElement method = name.trim().isEmpty() ? null : findNoArgMethod(servlet, name);
+        if (method == null || !isCallable(method, servlet)) {
+            out.print(indent + "null");
+            return;
+        }
+        out.print(indent);
+        writeInvoker(out, indent, method,
+            "((" + servlet.getQualifiedName() + ")target)." + name + "()");
+    }
+
+    /**
+     * Returns the type of the records read for a method that takes an Iterator, as an expression
+     * for the generated code, or null if the method takes none. Records of a type that cannot be
+     * named, such as a type variable, are read as Objects, as Gson reads them.
+     */
+    protected String elementType (ExecutableElement method) {
+        if (method.getParameters().size() != 1) return "null";
+        TypeMirror type = method.getParameters().get(0).asType();
+        if (type.getKind() != TypeKind.DECLARED || !((TypeElement)((DeclaredType)type).asElement())
+                .getQualifiedName().contentEquals(Iterator.class.getName())) return "null";
+        List<? extends TypeMirror> args = ((DeclaredType)type).getTypeArguments();
+        if (args.isEmpty()) return "null";
+        TypeMirror arg = args.get(0);
+        if (arg.getKind() == TypeKind.WILDCARD) arg = ((WildcardType)arg).getExtendsBound();
+        if (arg == null || (arg.getKind() != TypeKind.DECLARED &&
+                arg.getKind() != TypeKind.ARRAY) || hasTypeVariables(arg)) {
+            return Object.class.getName() + ".class";
+        }
+        return "new " + TYPE_TOKEN + "<" + arg + ">() {}.getType()";
+    }
+
+    /**
+     * Returns an expression creating an instance of the given annotation, with the values it was
+     * given and the defaults of the rest, so the servlet need not read it by reflection.
+     */
+    protected String annotation (AnnotationMirror mirror, String indent) {
+        String type = ((TypeElement)mirror.getAnnotationType().asElement()).getQualifiedName()
+            .toString();
+        StringBuilder buf = new StringBuilder("new ").append(type).append("() {\n");
+        buf.append(indent).append("    @Override public Class<? extends ").append(ANNOTATION)
+            .append("> annotationType () { return ").append(type).append(".class; }\n");
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                 processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            ExecutableElement member = entry.getKey();
+            buf.append(indent).append("    @Override public ").append(member.getReturnType())
+                .append(' ').append(member.getSimpleName()).append(" () { return ")
+                .append(value(member.getReturnType(), entry.getValue(), indent + "    "))
+                .append("; }\n");
+        }
+        return buf.append(indent).append('}').toString();
+    }
+
+    /** Returns an expression for the given value of an annotation member of the given type. */
+    protected String value (TypeMirror type, AnnotationValue value, String indent) {
+        Object val = value.getValue();
+        if (val instanceof List<?>) {
+            TypeMirror component = ((ArrayType)type).getComponentType();
+            StringBuilder buf = new StringBuilder("new ").append(erasure(component))
+                .append("[] {");
+            boolean first = true;
+            for (Object elem : (List<?>)val) {
+                if (!first) buf.append(", ");
+                buf.append(value(component, (AnnotationValue)elem, indent));
+                first = false;
+            }
+            return buf.append('}').toString();
+        }
+        if (val instanceof TypeMirror) return erasure((TypeMirror)val) + ".class";
+        if (val instanceof VariableElement) {
+            VariableElement constant = (VariableElement)val;
+            return ((TypeElement)constant.getEnclosingElement()).getQualifiedName() + "." +
+                constant.getSimpleName();
+        }
+        if (val instanceof AnnotationMirror) return annotation((AnnotationMirror)val, indent);
+        return processingEnv.getElementUtils().getConstantExpression(val);
+    }
+
+    /** Returns true if the given annotation is one of Simpler's, which the servlet reads. */
+    protected boolean isSimplerAnnotation (AnnotationMirror mirror) {
+        TypeElement type = (TypeElement)mirror.getAnnotationType().asElement();
+        return processingEnv.getElementUtils().getPackageOf(type).getQualifiedName()
+            .contentEquals(SIMPLER_PACKAGE);
+    }
+
+    /** Returns the named method of the given class or its superclasses that takes no arguments. */
+    protected ExecutableElement findNoArgMethod (TypeElement cls, String name) {
+        for (Element elem = cls; elem instanceof TypeElement; ) {
+            TypeElement type = (TypeElement)elem;
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                if (method.getSimpleName().contentEquals(name) &&
+                    method.getParameters().isEmpty()) return method;
+            }
+            TypeMirror superclass = type.getSuperclass();
+            if (superclass.getKind() != TypeKind.DECLARED) break;
+            elem = ((DeclaredType)superclass).asElement();
+        }
+        return null;
+    }
+
+    /** Returns true if the dispatcher of the given servlet can call the given method on it. */
+    protected boolean isCallable (ExecutableElement method, TypeElement servlet) {
+        Set<Modifier> mods = method.getModifiers();
+        if (mods.contains(Modifier.PRIVATE) || mods.contains(Modifier.STATIC)) return false;
+        return mods.contains(Modifier.PUBLIC) || processingEnv.getElementUtils().getPackageOf(
+            method.getEnclosingElement()).equals(processingEnv.getElementUtils().getPackageOf(
+                servlet));
+    }
+
+    protected boolean hasTypeVariables (TypeMirror type) {
+        switch (type.getKind()) {
+        case TYPEVAR:
+            return true;
+        case ARRAY:
+            return hasTypeVariables(((ArrayType)type).getComponentType());
+        case WILDCARD:
+            WildcardType wild = (WildcardType)type;
+            return (wild.getExtendsBound() != null && hasTypeVariables(wild.getExtendsBound())) ||
+                (wild.getSuperBound() != null && hasTypeVariables(wild.getSuperBound()));
+        case DECLARED:
+            for (TypeMirror arg : ((DeclaredType)type).getTypeArguments()) {
+                if (hasTypeVariables(arg)) return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    /** Returns true if the method declares a Throwable that is neither an Exception nor Error. */
+    protected boolean throwsOther (ExecutableElement method) {
+        TypeMirror exception = type(Exception.class.getName());
+        TypeMirror error = type(Error.class.getName());
+        for (TypeMirror thrown : method.getThrownTypes()) {
+            if (!processingEnv.getTypeUtils().isAssignable(thrown, exception) &&
+                !processingEnv.getTypeUtils().isAssignable(thrown, error)) return true;
+        }
+        return false;
+    }
+
+    /** Returns true if the given method has any of the REST annotations. */
+    protected boolean isMapped (Element elem) {
+        return elem.getAnnotation(RestGet.class) != null ||
+            elem.getAnnotation(RestPost.class) != null ||
+            elem.getAnnotation(RestPut.class) != null ||
+            elem.getAnnotation(RestDelete.class) != null ||
+            elem.getAnnotation(RestStream.class) != null;
+    }
+
+    /**
+     * Returns true if the given class is or extends the named class. Superclasses are compared by
+     * name so that nothing needs to be loaded for classes that are not involved, such as the
+     * optional Microtome classes.
+     */
+    protected boolean extendsClass (Element elem, String className) {
+        while (elem instanceof TypeElement) {
+            TypeElement type = (TypeElement)elem;
+            if (type.getQualifiedName().contentEquals(className)) return true;
+            TypeMirror superclass = type.getSuperclass();
+            if (superclass.getKind() != TypeKind.DECLARED) return false;
+            elem = ((DeclaredType)superclass).asElement();
+        }
+        return false;
+    }
+
+    /** Returns true if the given class can be named from a class in the given package. */
+    protected boolean isAccessible (Element type, Element pkg) {
+        for (Element elem = type; elem.getKind() != ElementKind.PACKAGE;
+                elem = elem.getEnclosingElement()) {
+            if (!(elem instanceof TypeElement)) return false;
+            TypeElement te = (TypeElement)elem;
+            if (te.getNestingKind() == NestingKind.LOCAL ||
+                te.getNestingKind() == NestingKind.ANONYMOUS ||
+                te.getModifiers().contains(Modifier.PRIVATE)) return false;
+            if (!te.getModifiers().contains(Modifier.PUBLIC) &&
+                !processingEnv.getElementUtils().getPackageOf(te).equals(pkg)) return false;
+        }
+        return true;
+    }
+
+    /** Returns true if every class named by the given type can be named from the given package. */
+    protected boolean isAccessibleType (TypeMirror type, Element pkg) {
+        switch (type.getKind()) {
+        case ARRAY:
+            return isAccessibleType(((ArrayType)type).getComponentType(), pkg);
+        case WILDCARD:
+            WildcardType wild = (WildcardType)type;
+            return (wild.getExtendsBound() == null || isAccessibleType(wild.getExtendsBound(), pkg))
+                && (wild.getSuperBound() == null || isAccessibleType(wild.getSuperBound(), pkg));
+        case DECLARED:
+            if (!isAccessible(((DeclaredType)type).asElement(), pkg)) return false;
+            for (TypeMirror arg : ((DeclaredType)type).getTypeArguments()) {
+                if (!isAccessibleType(arg, pkg)) return false;
+            }
+            return true;
+        default:
+            return true;
+        }
+    }
+
+    protected TypeMirror erasure (TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type);
+    }
+
+    protected String boxed (TypeMirror type) {
+        return processingEnv.getTypeUtils().boxedClass((PrimitiveType)type).getQualifiedName()
+            .toString();
+    }
+
+    protected TypeMirror type (String name) {
+        return processingEnv.getElementUtils().getTypeElement(name).asType();
+    }
+
+    protected String literal (String value) {
+        return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+
+    protected void error (Element elem, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, elem);
+    }
+
+    protected void warn (Element elem, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message, elem);
+    }
+
+    /** One mapping of a method, as declared by one of its REST annotations. */
+    protected static class Endpoint {
+        public final ExecutableElement method;
+        public final String name;
+        public final RequestMethod requestMethod;
+        public final String responseName;
+        public final String path;
+        public final boolean compress;
+
+        public Endpoint (ExecutableElement method, RequestMethod requestMethod,
+            String responseName, String path, boolean compress) {
+            this.method = method;
+            this.name = method.getSimpleName().toString();
+            this.requestMethod = requestMethod;
+            this.responseName = responseName;
+            this.path = path;
+            this.compress = compress;
+        }
+    }
+
+    protected static final List<Class<? extends Annotation>> REST_ANNOTATIONS =
+        Arrays.<Class<? extends Annotation>>asList(
+            RestGet.class, RestPost.class, RestPut.class, RestDelete.class, RestStream.class);
+
+    protected static final String SIMPLER_PACKAGE = "org.roguenet.simpler";
+    protected static final String SIMPLER_SERVLET = "org.roguenet.simpler.SimplerServlet";
+    protected static final String SIGNAL_VIEW = "react.SignalView";
+    protected static final Set<String> BINDABLE = new HashSet<String>(Arrays.asList(
+        String.class.getName(), Integer.class.getName(), Long.class.getName(),
+        Boolean.class.getName(), Double.class.getName()));
+    protected static final String MICROTOME_SERVLET =
+        "org.roguenet.simpler.MicrotomeSimplerServlet";
+    protected static final String DISPATCHER = Dispatcher.class.getName();
+    protected static final String REQUEST_METHOD = RequestMethod.class.getName();
+    protected static final String INVOKER = MethodInvoker.class.getName();
+    protected static final String ANNOTATION = Annotation.class.getName();
+    protected static final String TYPE_TOKEN = "com.google.gson.reflect.TypeToken";
+}
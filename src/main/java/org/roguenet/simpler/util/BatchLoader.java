@@ -0,0 +1,176 @@
+package org.roguenet.simpler.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Collects the keys loaded by concurrent calls into batches, and loads each batch with a single
+ * bulk fetch. A batch is fetched once it has been open for the configured window, or as soon as it
+ * holds the maximum number of keys, whichever comes first. A key requested more than once in the
+ * same batch is fetched once, and every caller gets the result for its own key.
+ */
+public class BatchLoader<K, V> {
+    /**
+     * Creates a loader that fetches batches with the given function, which returns the values of
+     * the keys it was given. Keys missing from its result load as null. Batches are timed with the
+     * given scheduler and fetched on the given executor.
+     */
+    public BatchLoader (Function<? super List<K>, ? extends Map<K, ? extends V>> fetch,
+            long window, TimeUnit unit, int maxBatch, ScheduledExecutorService timer,
+            Executor executor) {
+        _fetch = fetch;
+        _windowNanos = unit.toNanos(window);
+        _maxBatch = Math.max(1, maxBatch);
+        _timer = timer;
+        _executor = executor;
+    }
+
+    /**
+     * Loads the value of the given key, as part of the next batch. If the loader's timer or
+     * executor has been shut down, the future fails with a {@link RejectedExecutionException}.
+     */
+    public CompletableFuture<V> loadAsync (K key) {
+        Batch full = null;
+        CompletableFuture<V> result;
+        synchronized (this) {
+            if (_pending == null) {
+                // the batch becomes pending only once its timer is set, so that a timer that
+                // refuses it (because it has been shut down) leaves no batch that is never fetched
+                final Batch batch = new Batch();
+                try {
+                    batch.timer = _timer.schedule(new Runnable() {
+                        public void run () {
+                            dispatch(batch);
+                        }
+                    }, _windowNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException ree) {
+                    result = new CompletableFuture<V>();
+                    result.completeExceptionally(ree);
+                    return result;
+                }
+                _pending = batch;
+            }
+            result = _pending.futures.get(key);
+            if (result == null) {
+                _pending.futures.put(key, result = new CompletableFuture<V>());
+                if (_pending.futures.size() >= _maxBatch) {
+                    full = _pending;
+                    _pending = null;
+                }
+            }
+        }
+        if (full != null) {
+            full.timer.cancel(false);
+            dispatch(full);
+        }
+        return result;
+    }
+
+    /** Loads the values of the given keys, in the same order. */
+    public CompletableFuture<List<V>> loadAllAsync (Collection<? extends K> keys) {
+        final List<CompletableFuture<V>> futures = new ArrayList<CompletableFuture<V>>();
+        for (K key : keys) futures.add(loadAsync(key));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+            .thenApply(new Function<Void, List<V>>() {
+                public List<V> apply (Void unused) {
+                    List<V> values = new ArrayList<V>(futures.size());
+                    for (CompletableFuture<V> future : futures) values.add(future.join());
+                    return values;
+                }
+            });
+    }
+
+    /**
+     * Loads the value of the given key, waiting at most the given time for its batch.
+     *
+     * @throws ExecutionException if the bulk fetch failed, with its failure as the cause.
+     */
+    public V load (K key, long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        return loadAsync(key).get(timeout, unit);
+    }
+
+    /** Loads the values of the given keys, in the same order, waiting at most the given time. */
+    public List<V> loadAll (Collection<? extends K> keys, long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        return loadAllAsync(keys).get(timeout, unit);
+    }
+
+    /** Returns the number of bulk fetches made. */
+    public long batches () {
+        return _batches.sum();
+    }
+
+    /** Returns the number of keys fetched, across all batches. */
+    public long keys () {
+        return _keys.sum();
+    }
+
+    /** Hands a batch off to be fetched, unless it already has been. */
+    protected void dispatch (final Batch batch) {
+        synchronized (this) {
+            if (batch.dispatched) return;
+            batch.dispatched = true;
+            if (_pending == batch) _pending = null;
+        }
+        try {
+            _executor.execute(new Runnable() {
+                public void run () {
+                    fetch(batch);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            for (CompletableFuture<V> future : batch.futures.values()) {
+                future.completeExceptionally(ree);
+            }
+        }
+    }
+
+    protected void fetch (Batch batch) {
+        List<K> keys = new ArrayList<K>(batch.futures.keySet());
+        _batches.increment();
+        _keys.add(keys.size());
+        Map<K, ? extends V> values;
+        try {
+            values = _fetch.apply(keys);
+        } catch (Throwable t) {
+            for (CompletableFuture<V> future : batch.futures.values()) {
+                future.completeExceptionally(t);
+            }
+            return;
+        }
+        for (Map.Entry<K, CompletableFuture<V>> entry : batch.futures.entrySet()) {
+            entry.getValue().complete(values == null ? null : values.get(entry.getKey()));
+        }
+    }
+
+    /** The keys gathered for one bulk fetch, and the futures of the calls waiting on them. */
+    protected class Batch {
+        public final Map<K, CompletableFuture<V>> futures =
+            new LinkedHashMap<K, CompletableFuture<V>>();
+        public ScheduledFuture<?> timer;
+        public boolean dispatched;
+    }
+
+    protected final Function<? super List<K>, ? extends Map<K, ? extends V>> _fetch;
+    protected final long _windowNanos;
+    protected final int _maxBatch;
+    protected final ScheduledExecutorService _timer;
+    protected final Executor _executor;
+    protected final LongAdder _batches = new LongAdder();
+    protected final LongAdder _keys = new LongAdder();
+    protected Batch _pending;
+}
@@ -0,0 +1,130 @@
+package org.roguenet.simpler.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * One call within a batch request. Everything about the call that a REST method can see - its
+ * HTTP method, path info, parameters and body - comes from the batch entry rather than the
+ * enclosing request. Calls in a batch always complete synchronously.
+ *
+ * The enclosing request's other headers are passed through, except for those that negotiate the
+ * form of the response or make it conditional. Each call's response must be a complete JSON
+ * value to be embedded in the batch's array, whatever the batch itself was sent with.
+ */
+public class BatchRequest extends HttpServletRequestWrapper {
+    public BatchRequest (HttpServletRequest req, String method, String pathInfo,
+            Map<String, String[]> params, byte[] body) {
+        super(req);
+        _method = method;
+        _pathInfo = pathInfo;
+        _params = Collections.unmodifiableMap(params);
+        _body = body;
+    }
+
+    @Override public String getMethod () {
+        return _method;
+    }
+
+    @Override public String getPathInfo () {
+        return _pathInfo;
+    }
+
+    @Override public String getQueryString () {
+        return null;
+    }
+
+    @Override public String getHeader (String name) {
+        return DROPPED_HEADERS.contains(name) ? null : super.getHeader(name);
+    }
+
+    @Override public Enumeration<String> getHeaders (String name) {
+        return DROPPED_HEADERS.contains(name) ? Collections.<String>emptyEnumeration() :
+            super.getHeaders(name);
+    }
+
+    @Override public Enumeration<String> getHeaderNames () {
+        List<String> names = new ArrayList<String>();
+        for (Enumeration<String> en = super.getHeaderNames(); en.hasMoreElements(); ) {
+            String name = en.nextElement();
+            if (!DROPPED_HEADERS.contains(name)) names.add(name);
+        }
+        return Collections.enumeration(names);
+    }
+
+    @Override public long getDateHeader (String name) {
+        return DROPPED_HEADERS.contains(name) ? -1 : super.getDateHeader(name);
+    }
+
+    @Override public int getIntHeader (String name) {
+        return DROPPED_HEADERS.contains(name) ? -1 : super.getIntHeader(name);
+    }
+
+    @Override public String getParameter (String name) {
+        String[] values = _params.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override public String[] getParameterValues (String name) {
+        return _params.get(name);
+    }
+
+    @Override public Map<String, String[]> getParameterMap () {
+        return _params;
+    }
+
+    @Override public Enumeration<String> getParameterNames () {
+        return Collections.enumeration(_params.keySet());
+    }
+
+    @Override public int getContentLength () {
+        return _body.length;
+    }
+
+    @Override public ServletInputStream getInputStream () {
+        final ByteArrayInputStream in = new ByteArrayInputStream(_body);
+        return new ServletInputStream() {
+            @Override public int read () {
+                return in.read();
+            }
+            @Override public int read (byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+        };
+    }
+
+    @Override public BufferedReader getReader () {
+        return new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(_body), StandardCharsets.UTF_8));
+    }
+
+    @Override public boolean isAsyncSupported () {
+        return false;
+    }
+
+    protected final String _method;
+    protected final String _pathInfo;
+    protected final Map<String, String[]> _params;
+    protected final byte[] _body;
+
+    /** The headers of the enclosing request hidden from each call, matched regardless of case. */
+    protected static final Set<String> DROPPED_HEADERS =
+        new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    static {
+        DROPPED_HEADERS.addAll(Arrays.asList("Accept", "Accept-Encoding", "If-None-Match",
+            "If-Modified-Since", "If-Match", "If-Unmodified-Since"));
+    }
+}
@@ -0,0 +1,121 @@
+package org.roguenet.simpler.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response that collects everything written to it in memory instead of sending it to the
+ * client. The headers and status set on it are recorded rather than passed on to the wrapped
+ * response, so the buffered result can be inspected and then forwarded, stored or discarded.
+ */
+public class BufferedResponse extends HttpServletResponseWrapper {
+    public BufferedResponse (HttpServletResponse rsp) {
+        super(rsp);
+    }
+
+    /** Returns the bytes written so far, flushing the writer first if it was used. */
+    public byte[] toByteArray () {
+        if (_writer != null) _writer.flush();
+        return _bytes.toByteArray();
+    }
+
+    public Map<String, String> getHeaders () {
+        return _headers;
+    }
+
+    public int getStatus () {
+        return _status;
+    }
+
+    @Override public PrintWriter getWriter () {
+        if (_writer == null) {
+            _writer = new PrintWriter(new OutputStreamWriter(_bytes, StandardCharsets.UTF_8));
+        }
+        return _writer;
+    }
+
+    @Override public ServletOutputStream getOutputStream () {
+        if (_out == null) {
+            _out = new ServletOutputStream() {
+                @Override public void write (int b) {
+                    _bytes.write(b);
+                }
+                @Override public void write (byte[] b, int off, int len) {
+                    _bytes.write(b, off, len);
+                }
+            };
+        }
+        return _out;
+    }
+
+    @Override public void setHeader (String name, String value) {
+        _headers.put(name, value);
+    }
+
+    @Override public void addHeader (String name, String value) {
+        _headers.put(name, value);
+    }
+
+    @Override public void setIntHeader (String name, int value) {
+        _headers.put(name, String.valueOf(value));
+    }
+
+    @Override public void addIntHeader (String name, int value) {
+        _headers.put(name, String.valueOf(value));
+    }
+
+    @Override public boolean containsHeader (String name) {
+        return _headers.containsKey(name);
+    }
+
+    @Override public void setContentType (String type) {
+        _headers.put("Content-Type", type);
+    }
+
+    @Override public void setContentLength (int len) {}
+
+    @Override public void setStatus (int sc) {
+        _status = sc;
+    }
+
+    @Override public void sendError (int sc) {
+        _status = sc;
+    }
+
+    @Override public void sendError (int sc, String msg) {
+        _status = sc;
+    }
+
+    @Override public void flushBuffer () {
+        if (_writer != null) _writer.flush();
+    }
+
+    @Override public boolean isCommitted () {
+        return false;
+    }
+
+    @Override public void reset () {
+        resetBuffer();
+        _headers.clear();
+        _status = SC_OK;
+    }
+
+    @Override public void resetBuffer () {
+        if (_writer != null) _writer.flush();
+        _bytes.reset();
+    }
+
+    protected final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+    protected final Map<String, String> _headers = new LinkedHashMap<String, String>();
+    protected int _status = SC_OK;
+    protected PrintWriter _writer;
+    protected ServletOutputStream _out;
+}
@@ -0,0 +1,65 @@
+package org.roguenet.simpler.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import org.roguenet.simpler.Codec;
+
+/**
+ * The CBOR codec. Responses are encoded as they are serialized, with {@link CborWriter}. Request
+ * bodies are decoded with {@link CborReader} into the same values a JSON body would parse to, so
+ * Gson binds them exactly as it would JSON.
+ */
+public class CborCodec extends Codec {
+    public static final String CONTENT_TYPE = "application/cbor";
+
+    @Override public String contentType () {
+        return CONTENT_TYPE;
+    }
+
+    @Override public boolean binary () {
+        return true;
+    }
+
+    @Override public JsonWriter newWriter (OutputStream out) {
+        return new CborWriter(out);
+    }
+
+    @Override public Object read (Gson gson, InputStream in, Type type) throws IOException {
+        CborReader reader = new CborReader(in);
+        return reader.hasNext() ? gson.fromJson(reader.read(), type) : null;
+    }
+
+    @Override public Iterator<Object> readRecords (final Gson gson, InputStream in, final Type type)
+        throws IOException {
+        final CborReader reader = new CborReader(in);
+        // a body is either one array of records, or a CBOR sequence of them
+        final boolean array = reader.beginArray();
+        return new Iterator<Object>() {
+            public boolean hasNext () {
+                try {
+                    return array ? reader.hasNextElement() : reader.hasNext();
+                } catch (IOException ioe) {
+                    throw new JsonIOException(ioe);
+                }
+            }
+            public Object next () {
+                if (!hasNext()) throw new NoSuchElementException();
+                try {
+                    return gson.fromJson(reader.read(), type);
+                } catch (IOException ioe) {
+                    throw new JsonIOException(ioe);
+                }
+            }
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,222 @@
+package org.roguenet.simpler.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Decodes CBOR (RFC 8949) data items from a stream, one at a time, into the JSON values Gson
+ * binds to objects. Byte strings become base64url text, tags are ignored, and map keys that are
+ * not text are converted to text, following the RFC's advice for converting CBOR to JSON.
+ * Malformed input is reported as a {@link JsonSyntaxException}.
+ */
+public class CborReader {
+    public CborReader (InputStream in) {
+        _in = in;
+    }
+
+    /** Returns true if there is another data item to read. */
+    public boolean hasNext () throws IOException {
+        return peekByte() >= 0;
+    }
+
+    /**
+     * If the next data item is an array, consumes its head and returns true; its elements can
+     * then be read with {@link #hasNextElement} and {@link #read}.
+     */
+    public boolean beginArray () throws IOException {
+        int initial = peekByte();
+        if (initial < 0 || (initial >> 5) != 4) return false;
+        _peeked = -1;
+        _remaining = (initial & 0x1f) == 31 ? -1 : readArgument(initial & 0x1f);
+        return true;
+    }
+
+    /** Returns true if the array begun with {@link #beginArray} has another element. */
+    public boolean hasNextElement () throws IOException {
+        if (_remaining >= 0) return _remaining > 0;
+        if (peekByte() == BREAK) {
+            _peeked = -1;
+            _remaining = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /** Reads the next data item. */
+    public JsonElement read () throws IOException {
+        if (_remaining > 0) _remaining--;
+        return readItem(0);
+    }
+
+    protected JsonElement readItem (int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new JsonSyntaxException("CBOR nested too deeply");
+        int initial = readByte();
+        int major = initial >> 5, info = initial & 0x1f;
+        switch (major) {
+        case 0: return unsigned(readArgument(info));
+        case 1: {
+            long arg = readArgument(info);
+            return arg >= 0 ? new JsonPrimitive(-1 - arg) :
+                new JsonPrimitive(BigInteger.ONE.negate().subtract(unsignedBig(arg)));
+        }
+        case 2: return new JsonPrimitive(
+            Base64.getUrlEncoder().withoutPadding().encodeToString(readBytes(major, info)));
+        case 3:
+            return new JsonPrimitive(new String(readBytes(major, info), StandardCharsets.UTF_8));
+        case 4: {
+            JsonArray array = new JsonArray();
+            if (info == 31) {
+                while (peekByte() != BREAK) array.add(readItem(depth + 1));
+                _peeked = -1;
+            } else {
+                for (long ii = readArgument(info); ii > 0; ii--) array.add(readItem(depth + 1));
+            }
+            return array;
+        }
+        case 5: {
+            JsonObject object = new JsonObject();
+            if (info == 31) {
+                while (peekByte() != BREAK) {
+                    object.add(key(readItem(depth + 1)), readItem(depth + 1));
+                }
+                _peeked = -1;
+            } else {
+                for (long ii = readArgument(info); ii > 0; ii--) {
+                    object.add(key(readItem(depth + 1)), readItem(depth + 1));
+                }
+            }
+            return object;
+        }
+        case 6:
+            readArgument(info);
+            return readItem(depth + 1);
+        default:
+            return readSimple(info);
+        }
+    }
+
+    protected JsonElement readSimple (int info) throws IOException {
+        switch (info) {
+        case 20: return new JsonPrimitive(false);
+        case 21: return new JsonPrimitive(true);
+        case 22: case 23: return JsonNull.INSTANCE;
+        case 25: return number(halfToFloat((readByte() << 8) | readByte()));
+        case 26: return number(Float.intBitsToFloat((int)readArgument(26)));
+        case 27: return number(Double.longBitsToDouble(readArgument(27)));
+        default: throw new JsonSyntaxException("Unsupported CBOR simple value " + info);
+        }
+    }
+
+    /** Reads the argument of a data item, following its initial byte. */
+    protected long readArgument (int info) throws IOException {
+        if (info < 24) return info;
+        int bytes;
+        switch (info) {
+        case 24: bytes = 1; break;
+        case 25: bytes = 2; break;
+        case 26: bytes = 4; break;
+        case 27: bytes = 8; break;
+        default: throw new JsonSyntaxException("Malformed CBOR argument " + info);
+        }
+        long value = 0;
+        for (int ii = 0; ii < bytes; ii++) value = (value << 8) | readByte();
+        return value;
+    }
+
+    /** Reads the content of a byte or text string, including one of indefinite length. */
+    protected byte[] readBytes (int major, int info) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (info != 31) {
+            readChunk(readArgument(info), out);
+            return out.toByteArray();
+        }
+        while (true) {
+            int initial = readByte();
+            if (initial == BREAK) return out.toByteArray();
+            if ((initial >> 5) != major || (initial & 0x1f) == 31) {
+                throw new JsonSyntaxException("Malformed CBOR string chunk");
+            }
+            readChunk(readArgument(initial & 0x1f), out);
+        }
+    }
+
+    protected void readChunk (long length, ByteArrayOutputStream out) throws IOException {
+        // the length is untrusted, so the string is read in pieces rather than allocated up front
+        if (length < 0) throw new JsonSyntaxException("CBOR string too long");
+        if (_peeked >= 0 && length > 0) {
+            out.write(_peeked);
+            _peeked = -1;
+            length--;
+        }
+        byte[] buf = new byte[(int)Math.min(length, CHUNK_SIZE)];
+        while (length > 0) {
+            int read = _in.read(buf, 0, (int)Math.min(length, buf.length));
+            if (read < 0) throw new JsonSyntaxException("Truncated CBOR data");
+            out.write(buf, 0, read);
+            length -= read;
+        }
+    }
+
+    protected String key (JsonElement key) {
+        if (key.isJsonPrimitive()) return key.getAsString();
+        if (key.isJsonNull()) return "null";
+        return key.toString();
+    }
+
+    protected JsonElement unsigned (long value) {
+        return value >= 0 ? new JsonPrimitive(value) : new JsonPrimitive(unsignedBig(value));
+    }
+
+    protected BigInteger unsignedBig (long value) {
+        return BigInteger.valueOf(value & Long.MAX_VALUE).setBit(63);
+    }
+
+    protected JsonElement number (double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) return JsonNull.INSTANCE;
+        return new JsonPrimitive(value);
+    }
+
+    protected static float halfToFloat (int half) {
+        int exp = (half >> 10) & 0x1f, mant = half & 0x3ff;
+        float value;
+        if (exp == 0) {
+            value = (float)(mant * Math.pow(2, -24));
+        } else if (exp == 31) {
+            value = mant == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        } else {
+            value = (float)((mant + 1024) * Math.pow(2, exp - 25));
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    protected int readByte () throws IOException {
+        int b = _peeked >= 0 ? _peeked : _in.read();
+        _peeked = -1;
+        if (b < 0) throw new JsonSyntaxException("Truncated CBOR data");
+        return b;
+    }
+
+    protected int peekByte () throws IOException {
+        if (_peeked < 0) _peeked = _in.read();
+        return _peeked;
+    }
+
+    protected final InputStream _in;
+    protected int _peeked = -1;
+    /** The number of elements left in the array being iterated, or -1 if it is indefinite. */
+    protected long _remaining;
+
+    protected static final int BREAK = 0xff;
+    protected static final int MAX_DEPTH = 256;
+    protected static final int CHUNK_SIZE = 8192;
+}
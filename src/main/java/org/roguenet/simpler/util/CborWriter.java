@@ -0,0 +1,283 @@
+package org.roguenet.simpler.util;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes what Gson writes to it as CBOR (RFC 8949) rather than JSON text. Objects and arrays are
+ * written with indefinite lengths, so values stream out as they are produced, through a small
+ * internal buffer, without knowing their sizes in advance. Strings are encoded to UTF-8 directly
+ * into that buffer.
+ */
+public class CborWriter extends JsonWriter {
+    public CborWriter (OutputStream out) {
+        super(UNUSED);
+        _out = out;
+    }
+
+    @Override public JsonWriter beginArray () throws IOException {
+        writeDeferredName();
+        writeByte(0x9f);
+        return this;
+    }
+
+    @Override public JsonWriter endArray () throws IOException {
+        writeByte(BREAK);
+        return this;
+    }
+
+    @Override public JsonWriter beginObject () throws IOException {
+        writeDeferredName();
+        writeByte(0xbf);
+        return this;
+    }
+
+    @Override public JsonWriter endObject () throws IOException {
+        // a null member that was not serialized leaves its name behind
+        _deferredName = null;
+        writeByte(BREAK);
+        return this;
+    }
+
+    @Override public JsonWriter name (String name) throws IOException {
+        if (name == null) throw new NullPointerException("name == null");
+        if (_deferredName != null) throw new IllegalStateException();
+        _deferredName = name;
+        return this;
+    }
+
+    @Override public JsonWriter value (String value) throws IOException {
+        if (value == null) return nullValue();
+        writeDeferredName();
+        writeString(value);
+        return this;
+    }
+
+    @Override public JsonWriter nullValue () throws IOException {
+        if (_deferredName != null) {
+            if (!getSerializeNulls()) {
+                _deferredName = null;
+                return this; // skip the name and the value
+            }
+            writeDeferredName();
+        }
+        writeByte(0xf6);
+        return this;
+    }
+
+    @Override public JsonWriter value (boolean value) throws IOException {
+        writeDeferredName();
+        writeByte(value ? 0xf5 : 0xf4);
+        return this;
+    }
+
+    @Override public JsonWriter value (double value) throws IOException {
+        writeDeferredName();
+        writeDouble(value);
+        return this;
+    }
+
+    @Override public JsonWriter value (long value) throws IOException {
+        writeDeferredName();
+        writeLong(value);
+        return this;
+    }
+
+    @Override public JsonWriter value (Number value) throws IOException {
+        if (value == null) return nullValue();
+        writeDeferredName();
+        if (value instanceof Integer || value instanceof Long || value instanceof Short ||
+            value instanceof Byte || value instanceof AtomicInteger ||
+            value instanceof AtomicLong) {
+            writeLong(value.longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(value.doubleValue());
+        } else {
+            writeNumber(value);
+        }
+        return this;
+    }
+
+    @Override public void flush () throws IOException {
+        _out.write(_buf, 0, _count);
+        _count = 0;
+        _out.flush();
+    }
+
+    @Override public void close () throws IOException {
+        flush();
+        _out.close();
+    }
+
+    protected void writeDeferredName () throws IOException {
+        if (_deferredName != null) {
+            String name = _deferredName;
+            _deferredName = null;
+            writeString(name);
+        }
+    }
+
+    /**
+     * Writes a number of a type that may hold an integer or a fraction, such as a BigDecimal or
+     * the LazilyParsedNumber Gson reads into a JsonPrimitive, by the value it holds: integers that
+     * fit in a long as integers, and other fractions as floats. Larger integers, and BigDecimal
+     * fractions, are sent as their decimal text.
+     */
+    protected void writeNumber (Number value) throws IOException {
+        BigDecimal decimal;
+        try {
+            decimal = value instanceof BigDecimal ? (BigDecimal)value :
+                value instanceof BigInteger ? new BigDecimal((BigInteger)value) :
+                new BigDecimal(value.toString());
+        } catch (NumberFormatException nfe) {
+            writeDouble(value.doubleValue()); // not decimal text, such as NaN or Infinity
+            return;
+        }
+        try {
+            writeLong(decimal.longValueExact());
+        } catch (ArithmeticException ae) {
+            // arbitrary precision numbers are sent as their decimal text, as JSON would
+            if (value instanceof BigDecimal || value instanceof BigInteger ||
+                decimal.stripTrailingZeros().scale() <= 0) {
+                writeString(value.toString());
+            } else {
+                writeDouble(value.doubleValue());
+            }
+        }
+    }
+
+    protected void writeLong (long value) throws IOException {
+        if (value >= 0) {
+            writeHead(0x00, value);
+        } else {
+            writeHead(0x20, -1 - value);
+        }
+    }
+
+    protected void writeDouble (double value) throws IOException {
+        float fvalue = (float)value;
+        if (fvalue == value || Double.isNaN(value)) {
+            // a single precision float loses nothing, and saves four bytes
+            ensure(5);
+            _buf[_count++] = (byte)0xfa;
+            putInt(Float.floatToIntBits(fvalue));
+        } else {
+            ensure(9);
+            _buf[_count++] = (byte)0xfb;
+            long bits = Double.doubleToLongBits(value);
+            putInt((int)(bits >>> 32));
+            putInt((int)bits);
+        }
+    }
+
+    protected void writeString (String value) throws IOException {
+        int length = value.length(), bytes = 0;
+        for (int ii = 0; ii < length; ii++) {
+            char c = value.charAt(ii);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && ii + 1 < length &&
+                       Character.isLowSurrogate(value.charAt(ii + 1))) {
+                bytes += 4;
+                ii++;
+            } else {
+                bytes += 3; // including unpaired surrogates, which become U+FFFD
+            }
+        }
+        writeHead(0x60, bytes);
+
+        for (int ii = 0; ii < length; ii++) {
+            ensure(4);
+            char c = value.charAt(ii);
+            if (c < 0x80) {
+                _buf[_count++] = (byte)c;
+            } else if (c < 0x800) {
+                _buf[_count++] = (byte)(0xc0 | (c >> 6));
+                _buf[_count++] = (byte)(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && ii + 1 < length &&
+                       Character.isLowSurrogate(value.charAt(ii + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++ii));
+                _buf[_count++] = (byte)(0xf0 | (cp >> 18));
+                _buf[_count++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                _buf[_count++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                _buf[_count++] = (byte)(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // an unpaired surrogate cannot be encoded, so send the replacement character
+                _buf[_count++] = (byte)0xef;
+                _buf[_count++] = (byte)0xbf;
+                _buf[_count++] = (byte)0xbd;
+            } else {
+                _buf[_count++] = (byte)(0xe0 | (c >> 12));
+                _buf[_count++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                _buf[_count++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /** Writes the initial byte of a data item of the given major type, and its argument. */
+    protected void writeHead (int major, long value) throws IOException {
+        ensure(9);
+        if (value < 24) {
+            _buf[_count++] = (byte)(major | value);
+        } else if (value < 0x100) {
+            _buf[_count++] = (byte)(major | 24);
+            _buf[_count++] = (byte)value;
+        } else if (value < 0x10000) {
+            _buf[_count++] = (byte)(major | 25);
+            _buf[_count++] = (byte)(value >> 8);
+            _buf[_count++] = (byte)value;
+        } else if (value < 0x100000000L) {
+            _buf[_count++] = (byte)(major | 26);
+            putInt((int)value);
+        } else {
+            _buf[_count++] = (byte)(major | 27);
+            putInt((int)(value >>> 32));
+            putInt((int)value);
+        }
+    }
+
+    protected void writeByte (int b) throws IOException {
+        ensure(1);
+        _buf[_count++] = (byte)b;
+    }
+
+    protected void putInt (int value) {
+        _buf[_count++] = (byte)(value >> 24);
+        _buf[_count++] = (byte)(value >> 16);
+        _buf[_count++] = (byte)(value >> 8);
+        _buf[_count++] = (byte)value;
+    }
+
+    /** Makes room for the given number of bytes in the buffer, writing it out if need be. */
+    protected void ensure (int bytes) throws IOException {
+        if (_count + bytes > _buf.length) {
+            _out.write(_buf, 0, _count);
+            _count = 0;
+        }
+    }
+
+    protected final OutputStream _out;
+    protected final byte[] _buf = new byte[BUFFER_SIZE];
+    protected int _count;
+    protected String _deferredName;
+
+    protected static final int BREAK = 0xff;
+    protected static final int BUFFER_SIZE = 4096;
+
+    /** Stands in for the text writer JsonWriter requires. Nothing should ever reach it. */
+    protected static final Writer UNUSED = new Writer() {
+        @Override public void write (char[] cbuf, int off, int len) throws IOException {
+            throw new IOException("CborWriter does not support this operation");
+        }
+        @Override public void flush () {}
+        @Override public void close () {}
+    };
+}
@@ -0,0 +1,150 @@
+package org.roguenet.simpler.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the calls of a method that are in flight, by key, so that a call arriving while an
+ * identical one is running can wait for its response rather than making its own. The first call
+ * for a key leads the flight and must {@link #land} it when done; later ones join it and
+ * {@link #await} the leader's result.
+ */
+public class Coalescer {
+    /** The complete response produced by the leader of a flight. */
+    public static class Result {
+        public final byte[] body;
+        public final String contentType;
+        public final int status;
+        public final Map<String, String> headers;
+        /** False if the body is an error. */
+        public final boolean succeeded;
+        /** The code of the error the call failed with, if it did. */
+        public final int errorCode;
+
+        public Result (byte[] body, String contentType, int status, Map<String, String> headers,
+            boolean succeeded, int errorCode) {
+            this.body = body;
+            this.contentType = contentType;
+            this.status = status;
+            this.headers = headers;
+            this.succeeded = succeeded;
+            this.errorCode = errorCode;
+        }
+
+        /**
+         * Returns this result as it is sent to the calls that joined the flight, with only the
+         * headers that describe the body itself. Anything else the leader set, such as a cookie
+         * or a header about its own client, stays with the leader.
+         */
+        public Result shared () {
+            Map<String, String> shared = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                for (String name : SHARED_HEADERS) {
+                    if (name.equalsIgnoreCase(header.getKey())) {
+                        shared.put(header.getKey(), header.getValue());
+                    }
+                }
+            }
+            return new Result(body, contentType, status, shared, succeeded, errorCode);
+        }
+    }
+
+    /** One call's place in a flight. */
+    public static class Flight {
+        public final String key;
+
+        protected Flight (String key, boolean leader, Landing landing) {
+            this.key = key;
+            _leader = leader;
+            _landing = landing;
+        }
+
+        /** Returns true if this call is the one producing the response. */
+        public boolean leader () {
+            return _leader;
+        }
+
+        protected final boolean _leader;
+        protected final Landing _landing;
+    }
+
+    /** The outcome of a flight, shared by the leader and everyone who joined it. */
+    protected static class Landing {
+        public final CountDownLatch landed = new CountDownLatch(1);
+        public volatile Result result;
+    }
+
+    /**
+     * Joins the flight for the given key, starting a new one led by the caller if there is none.
+     */
+    public Flight join (String key) {
+        Flight flight = new Flight(key, true, new Landing());
+        Flight current = _flights.putIfAbsent(key, flight);
+        if (current != null) {
+            _joined.increment();
+            return new Flight(key, false, current._landing);
+        }
+        _led.increment();
+        return flight;
+    }
+
+    /**
+     * Ends a flight led by the caller, handing its {@link Result#shared} result to everyone who
+     * joined it. A null result means the leader failed to produce a response, and those waiting
+     * should make their own.
+     */
+    public void land (Flight flight, Result result) {
+        // later calls start a new flight from here on, so nobody joins after the result is set
+        _flights.remove(flight.key, flight);
+        flight._landing.result = result == null ? null : result.shared();
+        flight._landing.landed.countDown();
+    }
+
+    /**
+     * Waits up to the given time for the leader of a flight to land it. Returns the leader's
+     * result, or null if the leader failed to produce one.
+     *
+     * @throws TimeoutException if the flight does not land in time.
+     */
+    public Result await (Flight flight, long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+        if (!flight._landing.landed.await(timeout, unit)) {
+            _timeouts.increment();
+            throw new TimeoutException();
+        }
+        return flight._landing.result;
+    }
+
+    /** Returns the number of flights started, each of which ran the method once. */
+    public long led () {
+        return _led.sum();
+    }
+
+    /** Returns the number of calls that joined a flight rather than running the method. */
+    public long joined () {
+        return _joined.sum();
+    }
+
+    /** Returns the number of calls that gave up waiting for the flight they joined. */
+    public long timeouts () {
+        return _timeouts.sum();
+    }
+
+    /** Returns the number of flights currently in the air. */
+    public int inFlight () {
+        return _flights.size();
+    }
+
+    protected final Map<String, Flight> _flights = new ConcurrentHashMap<String, Flight>();
+    protected final LongAdder _led = new LongAdder();
+    protected final LongAdder _joined = new LongAdder();
+    protected final LongAdder _timeouts = new LongAdder();
+
+    /** The headers of the leader's response that are also sent to the calls that joined it. */
+    protected static final String[] SHARED_HEADERS = { "Content-Type", "ETag", "Cache-Control" };
+}
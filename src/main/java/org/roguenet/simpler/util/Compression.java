@@ -0,0 +1,127 @@
+package org.roguenet.simpler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding negotiation and compression of response bodies. Whole bodies are compressed
+ * with pooled Deflaters; bodies too large to buffer are compressed as they stream.
+ */
+public class Compression {
+    /** The content codings Simpler can produce, in order of preference. */
+    public enum Encoding {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        /** The name of the coding in Accept-Encoding and Content-Encoding headers. */
+        public final String token;
+
+        Encoding (String token) {
+            this.token = token;
+        }
+    }
+
+    /**
+     * Returns the preferred coding acceptable according to the given Accept-Encoding header, or
+     * null if the body should be sent as is.
+     */
+    public static Encoding negotiate (String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        Encoding best = null;
+        boolean wildcard = false;
+        for (String part : acceptEncoding.split(",")) {
+            int semi = part.indexOf(';');
+            String coding = (semi < 0 ? part : part.substring(0, semi)).trim();
+            if (semi >= 0 && isZeroQuality(part.substring(semi + 1))) continue;
+            if (coding.equalsIgnoreCase("*")) {
+                wildcard = true;
+                continue;
+            }
+            for (Encoding encoding : Encoding.values()) {
+                if (coding.equalsIgnoreCase(encoding.token) &&
+                    (best == null || encoding.ordinal() < best.ordinal())) best = encoding;
+            }
+        }
+        return best == null && wildcard ? Encoding.GZIP : best;
+    }
+
+    public Compression (int poolSize) {
+        for (Encoding encoding : Encoding.values()) {
+            _deflaters[encoding.ordinal()] = new ArrayBlockingQueue<Deflater>(poolSize);
+        }
+    }
+
+    /** Compresses the first {@code length} bytes of {@code body} into the given buffer. */
+    public void compress (Encoding encoding, byte[] body, int length, ResponseBuffer out)
+        throws IOException {
+        BlockingQueue<Deflater> pool = _deflaters[encoding.ordinal()];
+        Deflater deflater = pool.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, encoding == Encoding.GZIP);
+        }
+        try {
+            if (encoding == Encoding.GZIP) out.write(GZIP_HEADER);
+            deflater.setInput(body, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensureCapacity(out.size() + CHUNK);
+                byte[] chunk = out.array();
+                int wrote = deflater.deflate(chunk, out.size(), chunk.length - out.size());
+                out._count += wrote;
+            }
+            if (encoding == Encoding.GZIP) {
+                CRC32 crc = new CRC32();
+                crc.update(body, 0, length);
+                writeIntLE(out, (int)crc.getValue());
+                writeIntLE(out, length);
+            }
+        } finally {
+            deflater.reset();
+            if (!pool.offer(deflater)) deflater.end();
+        }
+    }
+
+    /** Wraps the given stream so that everything written to it is compressed. */
+    public OutputStream stream (Encoding encoding, OutputStream out) throws IOException {
+        return encoding == Encoding.GZIP ? new GZIPOutputStream(out, CHUNK) :
+            new DeflaterOutputStream(out, new Deflater(), CHUNK) {
+                @Override public void close () throws IOException {
+                    super.close();
+                    def.end();
+                }
+            };
+    }
+
+    protected static boolean isZeroQuality (String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (!param.startsWith("q=")) continue;
+            try {
+                return Double.parseDouble(param.substring(2).trim()) <= 0;
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    protected static void writeIntLE (OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected final BlockingQueue<Deflater>[] _deflaters =
+        new BlockingQueue[Encoding.values().length];
+
+    protected static final int CHUNK = 8192;
+    protected static final byte[] GZIP_HEADER = {
+        0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+}
@@ -0,0 +1,123 @@
+package org.roguenet.simpler.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the number of calls running at once. A fixed limiter admits calls up to a set limit. An
+ * adaptive one moves its limit with the latency of the calls it admits, using additive increase
+ * and multiplicative decrease: each call that completes within the target latency raises the
+ * limit by a fraction of a call, and a call that is slow, or times out, cuts it by a tenth, at
+ * most once per target latency so that a burst of slow calls does not collapse it.
+ */
+public class ConcurrencyLimiter {
+    /** Creates a limiter that admits up to {@code limit} calls at once. */
+    public static ConcurrencyLimiter fixed (int limit) {
+        return new ConcurrencyLimiter(limit, limit, limit, 0);
+    }
+
+    /**
+     * Creates a limiter starting at {@code initial} calls, which adapts between {@code min} and
+     * {@code max} to keep calls within the given latency.
+     */
+    public static ConcurrencyLimiter adaptive (int initial, int min, int max,
+            long targetLatency, TimeUnit unit) {
+        return new ConcurrencyLimiter(initial, min, max, unit.toNanos(targetLatency));
+    }
+
+    protected ConcurrencyLimiter (int initial, int min, int max, long targetNanos) {
+        _limit.set(Double.doubleToLongBits(initial));
+        _min = Math.max(1, min);
+        _max = Math.max(_min, max);
+        _targetNanos = targetNanos;
+    }
+
+    /**
+     * Admits a call if doing so keeps the calls running below the given share of the limit.
+     * Every admitted call must be {@link #release}d.
+     */
+    public boolean tryAcquire (double share) {
+        int limit = Math.max(1, (int)(limitValue() * share));
+        while (true) {
+            int running = _inFlight.get();
+            if (running >= limit) {
+                _rejected.increment();
+                return false;
+            }
+            if (_inFlight.compareAndSet(running, running + 1)) return true;
+        }
+    }
+
+    /**
+     * Releases a call admitted by {@link #tryAcquire}, which took the given time to complete. A
+     * negative latency means the call never ran, and does not affect an adaptive limit.
+     */
+    public void release (long latencyNanos, boolean timedOut) {
+        _inFlight.decrementAndGet();
+        if (_targetNanos > 0 && latencyNanos >= 0) {
+            adapt(timedOut || latencyNanos > _targetNanos);
+        }
+    }
+
+    /** Returns the current limit. */
+    public int limit () {
+        return (int)limitValue();
+    }
+
+    /** Returns the number of calls running. */
+    public int inFlight () {
+        return _inFlight.get();
+    }
+
+    /** Returns the number of calls rejected so far. */
+    public long rejected () {
+        return _rejected.sum();
+    }
+
+    protected double limitValue () {
+        return Double.longBitsToDouble(_limit.get());
+    }
+
+    /**
+     * Moves the limit after a call completes. The increase after each fast call is a lock-free
+     * update of the limit, since it happens on nearly every release; only the rare decrease takes
+     * the lock, to check and update the time of the last one.
+     */
+    protected void adapt (boolean slow) {
+        if (slow) {
+            synchronized (_decreaseLock) {
+                long now = System.nanoTime();
+                if (now - _lastDecrease < _targetNanos) return;
+                _lastDecrease = now;
+                update(true);
+            }
+        } else {
+            update(false);
+        }
+    }
+
+    protected void update (boolean decrease) {
+        while (true) {
+            long bits = _limit.get();
+            double limit = Double.longBitsToDouble(bits);
+            double next = decrease ? Math.max(_min, limit * BACKOFF) :
+                Math.min(_max, limit + 1 / limit);
+            if (next == limit || _limit.compareAndSet(bits, Double.doubleToLongBits(next))) return;
+        }
+    }
+
+    protected final int _min, _max;
+    protected final long _targetNanos;
+    protected final AtomicInteger _inFlight = new AtomicInteger();
+    protected final LongAdder _rejected = new LongAdder();
+    /** The limit, a double held as its bits so that it can be updated without a lock. */
+    protected final AtomicLong _limit = new AtomicLong();
+
+    /** The time of the last decrease, guarded by its lock. */
+    protected final Object _decreaseLock = new Object();
+    protected long _lastDecrease = System.nanoTime() - Long.MAX_VALUE / 2;
+
+    protected static final double BACKOFF = 0.9;
+}
@@ -0,0 +1,36 @@
+package org.roguenet.simpler.util;
+
+import java.util.function.Function;
+import org.roguenet.simpler.RequestContext;
+import react.SignalView;
+
+/**
+ * A {@link RequestLocal} view of something held directly by the current {@link RequestContext},
+ * such as the request or response. This lets code written against RequestLocals keep working
+ * without the value being copied into per-call storage.
+ *
+ * A value set during a call, such as a wrapped request, overrides the context's own for the rest
+ * of that call, just as it would for any other RequestLocal. Removing it reverts to the context's.
+ */
+public class ContextLocal<T> extends RequestLocal<T> {
+    public ContextLocal (Function<RequestContext, T> getter) {
+        this(null, getter);
+    }
+
+    public ContextLocal (ThreadLocal<? extends SignalView<?>> reset,
+            Function<RequestContext, T> getter) {
+        super(reset);
+        _getter = getter;
+    }
+
+    @Override public T get () {
+        RequestContext ctx = RequestContext.current();
+        if (ctx == null) return super.get();
+        Object value = ctx.getLocal(_slot, UNSET);
+        if (value == UNSET) return _getter.apply(ctx);
+        @SuppressWarnings("unchecked") T tvalue = (T)value;
+        return tvalue;
+    }
+
+    protected final Function<RequestContext, T> _getter;
+}
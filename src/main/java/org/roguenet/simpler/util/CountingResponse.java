@@ -0,0 +1,92 @@
+package org.roguenet.simpler.util;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * A response that counts the body bytes written through it, for responses that are written
+ * straight to the client rather than serialized into a buffer first. Characters written through
+ * the writer are counted as they would be encoded in UTF-8. Nothing is buffered, so the wrapped
+ * response's writer or stream may still be used alongside this one's.
+ */
+public class CountingResponse extends HttpServletResponseWrapper {
+    public CountingResponse (HttpServletResponse rsp) {
+        super(rsp);
+    }
+
+    /** Returns the number of bytes written so far. */
+    public long count () {
+        return _count;
+    }
+
+    @Override public PrintWriter getWriter () throws IOException {
+        if (_writer == null) {
+            final PrintWriter out = super.getWriter();
+            _writer = new PrintWriter(new Writer() {
+                @Override public void write (int c) {
+                    _count += utf8Length((char)c);
+                    out.write(c);
+                }
+                @Override public void write (char[] cbuf, int off, int len) {
+                    for (int ii = off, end = off + len; ii < end; ii++) {
+                        char c = cbuf[ii];
+                        _count += utf8Length(c);
+                    }
+                    out.write(cbuf, off, len);
+                }
+                @Override public void write (String str, int off, int len) {
+                    for (int ii = off, end = off + len; ii < end; ii++) {
+                        char c = str.charAt(ii);
+                        _count += utf8Length(c);
+                    }
+                    out.write(str, off, len);
+                }
+                @Override public void flush () throws IOException {
+                    out.flush();
+                    // the wrapped writer swallows failures, so pass them on to ours
+                    if (out.checkError()) throw new IOException("Failed writing response");
+                }
+                @Override public void close () {
+                    out.close();
+                }
+            });
+        }
+        return _writer;
+    }
+
+    @Override public ServletOutputStream getOutputStream () throws IOException {
+        if (_out == null) {
+            final ServletOutputStream out = super.getOutputStream();
+            _out = new ServletOutputStream() {
+                @Override public void write (int b) throws IOException {
+                    _count++;
+                    out.write(b);
+                }
+                @Override public void write (byte[] b, int off, int len) throws IOException {
+                    _count += len;
+                    out.write(b, off, len);
+                }
+                @Override public void flush () throws IOException {
+                    out.flush();
+                }
+                @Override public void close () throws IOException {
+                    out.close();
+                }
+            };
+        }
+        return _out;
+    }
+
+    /** Returns the bytes a char takes in UTF-8, counting half of a surrogate pair's four. */
+    protected static int utf8Length (char c) {
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : Character.isSurrogate(c) ? 2 : 3;
+    }
+
+    protected long _count;
+    protected PrintWriter _writer;
+    protected ServletOutputStream _out;
+}
@@ -0,0 +1,121 @@
+package org.roguenet.simpler.util;
+
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.roguenet.simpler.RequestMethod;
+
+/**
+ * Counters and a latency histogram for a single endpoint. Everything is recorded with lock-free
+ * adders, so endpoints called from many threads at once do not contend on their metrics.
+ */
+public class EndpointMetrics {
+    /** The name of the method serving the endpoint. */
+    public final String name;
+    public final RequestMethod requestMethod;
+
+    public EndpointMetrics (String name, RequestMethod requestMethod) {
+        this.name = name;
+        this.requestMethod = requestMethod;
+    }
+
+    /** Notes that a call has started. */
+    public void started () {
+        _requests.increment();
+        _inFlight.increment();
+    }
+
+    /** Notes that a call that was {@link #started} has completed. */
+    public void completed (long latencyNanos, boolean failed, int errorCode, long requestBytes,
+            long responseBytes) {
+        _inFlight.decrement();
+        _latency.record(latencyNanos);
+        if (requestBytes > 0) _requestBytes.add(requestBytes);
+        if (responseBytes > 0) _responseBytes.add(responseBytes);
+        if (failed) {
+            LongAdder errors = _errors.get(errorCode);
+            if (errors == null) {
+                LongAdder created = new LongAdder();
+                errors = _errors.putIfAbsent(errorCode, created);
+                if (errors == null) errors = created;
+            }
+            errors.increment();
+        }
+    }
+
+    public long requests () {
+        return _requests.sum();
+    }
+
+    public long inFlight () {
+        return _inFlight.sum();
+    }
+
+    public long requestBytes () {
+        return _requestBytes.sum();
+    }
+
+    public long responseBytes () {
+        return _responseBytes.sum();
+    }
+
+    /** Returns the number of failed calls. */
+    public long errors () {
+        long errors = 0;
+        for (LongAdder count : _errors.values()) errors += count.sum();
+        return errors;
+    }
+
+    /** Returns the number of failed calls by error code. */
+    public Map<Integer, Long> errorsByCode () {
+        Map<Integer, Long> errors = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : _errors.entrySet()) {
+            errors.put(entry.getKey(), entry.getValue().sum());
+        }
+        return errors;
+    }
+
+    public LatencyHistogram latency () {
+        return _latency;
+    }
+
+    /** Returns a snapshot of these metrics, with latencies in microseconds. */
+    public JsonObject toJson () {
+        JsonObject json = new JsonObject();
+        json.addProperty("name", name);
+        json.addProperty("method", requestMethod.getHttpName());
+        json.addProperty("requests", requests());
+        json.addProperty("inFlight", inFlight());
+        json.addProperty("requestBytes", requestBytes());
+        json.addProperty("responseBytes", responseBytes());
+        JsonObject errors = new JsonObject();
+        for (Map.Entry<Integer, Long> entry : errorsByCode().entrySet()) {
+            errors.addProperty(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        json.add("errors", errors);
+        JsonObject latency = new JsonObject();
+        latency.addProperty("mean", micros((long)_latency.mean()));
+        latency.addProperty("p50", micros(_latency.percentile(0.5)));
+        latency.addProperty("p99", micros(_latency.percentile(0.99)));
+        latency.addProperty("p999", micros(_latency.percentile(0.999)));
+        latency.addProperty("max", micros(_latency.max()));
+        json.add("latencyMicros", latency);
+        return json;
+    }
+
+    protected static long micros (long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    protected final LongAdder _requests = new LongAdder();
+    protected final LongAdder _inFlight = new LongAdder();
+    protected final LongAdder _requestBytes = new LongAdder();
+    protected final LongAdder _responseBytes = new LongAdder();
+    protected final ConcurrentMap<Integer, LongAdder> _errors =
+        new ConcurrentHashMap<Integer, LongAdder>();
+    protected final LatencyHistogram _latency = new LatencyHistogram();
+}
@@ -0,0 +1,75 @@
+package org.roguenet.simpler.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which errors are worth a log line. For each error code, the first error in each
+ * interval is logged, along with a count of the errors of that code that were not logged since
+ * the last one that was; the rest are only counted. A flood of errors of one code thus costs a
+ * line per interval instead of a line per error, and does not hide errors of other codes.
+ */
+public class ErrorLog {
+    /** Creates a log that logs at most one error of each code per interval. */
+    public ErrorLog (long interval, TimeUnit unit) {
+        _intervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * Records an error of the given code. Returns -1 if it should not be logged, or else the
+     * number of errors of the code that were not logged since the last one that was.
+     */
+    public long record (int code) {
+        if (_intervalNanos <= 0) return 0;
+        Counts counts = counts(code);
+        long now = System.nanoTime(), last = counts.lastLogged.get();
+        if (now - last >= _intervalNanos && counts.lastLogged.compareAndSet(last, now)) {
+            return counts.unlogged.sumThenReset();
+        }
+        counts.unlogged.increment();
+        return -1;
+    }
+
+    /** Returns the number of errors of the given code not logged since the last one that was. */
+    public long unlogged (int code) {
+        return counts(code).unlogged.sum();
+    }
+
+    protected Counts counts (int code) {
+        if (code >= 0 && code < _byCode.length) {
+            Counts counts = _byCode[code];
+            if (counts == null) {
+                synchronized (this) {
+                    counts = _byCode[code];
+                    if (counts == null) _byCode[code] = counts = new Counts(_intervalNanos);
+                }
+            }
+            return counts;
+        }
+        Counts counts = _others.get(code);
+        if (counts == null) {
+            Counts added = new Counts(_intervalNanos);
+            counts = _others.putIfAbsent(code, added);
+            if (counts == null) counts = added;
+        }
+        return counts;
+    }
+
+    protected static class Counts {
+        public final AtomicLong lastLogged;
+        public final LongAdder unlogged = new LongAdder();
+
+        public Counts (long intervalNanos) {
+            // so that the first error of the code is logged
+            lastLogged = new AtomicLong(System.nanoTime() - intervalNanos);
+        }
+    }
+
+    protected final long _intervalNanos;
+    /** The counts of the usual codes, found without boxing. */
+    protected final Counts[] _byCode = new Counts[600];
+    protected final ConcurrentHashMap<Integer, Counts> _others =
+        new ConcurrentHashMap<Integer, Counts>();
+}
@@ -0,0 +1,233 @@
+package org.roguenet.simpler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import org.roguenet.simpler.Overflow;
+
+/**
+ * One client's connection to a stream of Server-Sent Events, held open in async mode. Events are
+ * queued by whatever thread produces them, up to the connection's capacity, and written to the
+ * client by a task on a shared executor. A connection holds a thread only while it has events to
+ * write, and a slow client never holds up the thread producing its events.
+ */
+public class EventStream implements AsyncListener {
+    /** A comment, which clients ignore, sent to open the stream and as a heartbeat. */
+    public static final byte[] COMMENT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Encodes an event with the given data, named if {@code event} is not empty. Each line of the
+     * data is sent as its own data field, as the protocol requires.
+     */
+    public static byte[] encode (String event, String data) {
+        StringBuilder buf = new StringBuilder(event.length() + data.length() + 16);
+        if (!event.isEmpty()) buf.append("event: ").append(event).append('\n');
+        int start = 0;
+        for (int nl; (nl = data.indexOf('\n', start)) >= 0; start = nl + 1) {
+            buf.append("data: ").append(data, start, nl).append('\n');
+        }
+        buf.append("data: ").append(data, start, data.length()).append("\n\n");
+        return buf.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a stream writing to the response of the given context, which should already be in
+     * async mode, holding at most {@code capacity} unsent events and writing them on the given
+     * executor.
+     */
+    public EventStream (AsyncContext ctx, int capacity, Overflow overflow, Executor executor) {
+        _ctx = ctx;
+        _capacity = Math.max(1, capacity);
+        _overflow = overflow;
+        _executor = executor;
+    }
+
+    /**
+     * Queues an encoded event to be sent. If the client's buffer is full, the event is handled
+     * according to the stream's {@link Overflow} policy. Returns false if the stream is closed,
+     * or has just been closed because it overflowed.
+     */
+    public boolean send (byte[] event) {
+        boolean schedule;
+        List<Runnable> overflowed = null;
+        synchronized (_queue) {
+            if (_closed) return false;
+            if (_queue.size() >= _capacity) {
+                _dropped++;
+                switch (_overflow) {
+                case DROP_OLDEST:
+                    _queue.poll();
+                    break;
+                case DROP_NEWEST:
+                    return true;
+                case DISCONNECT:
+                    overflowed = markClosed();
+                    break;
+                }
+            }
+            if (overflowed == null) _queue.add(event);
+            schedule = overflowed == null && !_draining;
+            if (schedule) _draining = true;
+        }
+        if (overflowed != null) {
+            // the event is being sent from inside a signal's emit, so the close actions, which
+            // complete the request, are run afterward rather than holding up the other clients
+            final List<Runnable> actions = overflowed;
+            try {
+                _executor.execute(() -> finishClose(actions));
+            } catch (RejectedExecutionException ree) {
+                finishClose(actions);
+            }
+            return false;
+        }
+        if (schedule) {
+            try {
+                _executor.execute(_drain);
+            } catch (RejectedExecutionException ree) {
+                close();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a heartbeat comment if nothing has been written to the client for at least the given
+     * time, and nothing is waiting to be.
+     */
+    public void heartbeat (long now, long idleNanos) {
+        synchronized (_queue) {
+            if (_closed || _draining || now - _lastWrite < idleNanos) return;
+        }
+        send(COMMENT);
+    }
+
+    /**
+     * Adds an action run once when the stream closes, for whatever reason. It is run immediately
+     * if the stream has already closed.
+     */
+    public void onClose (Runnable action) {
+        synchronized (_queue) {
+            if (!_closed) {
+                _onClose.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /** Closes the stream, dropping any unsent events, and completes the client's request. */
+    public void close () {
+        List<Runnable> actions;
+        synchronized (_queue) {
+            if (_closed) return;
+            actions = markClosed();
+        }
+        finishClose(actions);
+    }
+
+    public boolean isClosed () {
+        synchronized (_queue) {
+            return _closed;
+        }
+    }
+
+    /** Returns the number of events dropped because the client fell behind. */
+    public long dropped () {
+        synchronized (_queue) {
+            return _dropped;
+        }
+    }
+
+    @Override public void onComplete (AsyncEvent event) {
+        close();
+    }
+
+    @Override public void onTimeout (AsyncEvent event) {
+        close();
+    }
+
+    @Override public void onError (AsyncEvent event) {
+        close();
+    }
+
+    @Override public void onStartAsync (AsyncEvent event) {}
+
+    /** Marks the stream closed, returning its close actions. Called with the queue locked. */
+    protected List<Runnable> markClosed () {
+        _closed = true;
+        _queue.clear();
+        List<Runnable> actions = new ArrayList<Runnable>(_onClose);
+        _onClose.clear();
+        return actions;
+    }
+
+    /** Completes the client's request and runs the close actions of a stream marked closed. */
+    protected void finishClose (List<Runnable> actions) {
+        try {
+            _ctx.complete();
+        } catch (IllegalStateException ise) {
+            // the container has already completed the request
+        }
+        for (Runnable action : actions) action.run();
+    }
+
+    /**
+     * Writes queued events to the client until there are none left, flushing once the queue is
+     * empty. Only one drain runs at a time for a stream. If the client has gone away, the write
+     * fails and the stream is closed.
+     */
+    protected void drain () {
+        try {
+            OutputStream out = _ctx.getResponse().getOutputStream();
+            while (true) {
+                byte[] event;
+                synchronized (_queue) {
+                    event = _queue.poll();
+                }
+                if (event != null) {
+                    out.write(event);
+                    continue;
+                }
+                out.flush();
+                synchronized (_queue) {
+                    _lastWrite = System.nanoTime();
+                    if (_queue.isEmpty() || _closed) {
+                        _draining = false;
+                        return;
+                    }
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            synchronized (_queue) {
+                _draining = false;
+            }
+            close();
+        }
+    }
+
+    protected final AsyncContext _ctx;
+    protected final int _capacity;
+    protected final Overflow _overflow;
+    protected final Executor _executor;
+    protected final Runnable _drain = new Runnable() {
+        public void run () {
+            drain();
+        }
+    };
+
+    // all guarded by _queue
+    protected final ArrayDeque<byte[]> _queue = new ArrayDeque<byte[]>();
+    protected final List<Runnable> _onClose = new ArrayList<Runnable>();
+    protected boolean _draining, _closed;
+    protected long _dropped;
+    protected long _lastWrite = System.nanoTime();
+}
@@ -0,0 +1,139 @@
+package org.roguenet.simpler.util;
+
+import com.samskivert.util.Logger;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.roguenet.simpler.RestStream;
+import react.SignalView;
+import react.Slot;
+
+/**
+ * The open event streams of a {@link RestStream} method, grouped by the signal they listen to.
+ * Each signal is connected to once, however many clients are listening to it, and each value it
+ * emits is serialized once and queued for all of them. Heartbeats are sent to every stream by a
+ * single periodic task rather than a timer per connection.
+ *
+ * Signals are not thread-safe, so the application's emits must not race with changes to a
+ * signal's listeners. A signal is therefore connected to only the first time a client streams it,
+ * and stays connected for as long as the signal is in use: clients come and go by joining and
+ * leaving a thread-safe set of streams, never by connecting to or disconnecting from the signal.
+ * Signals are held weakly, so one that is no longer in use elsewhere is collected along with its
+ * listener.
+ */
+public class EventStreams {
+    /**
+     * Creates the streams of a method configured by the given annotation, serializing emitted
+     * values with the given function and sending heartbeats with the given scheduler.
+     */
+    public EventStreams (RestStream config, Function<Object, String> serializer,
+            ScheduledExecutorService timer) {
+        _event = config.event();
+        _serializer = serializer;
+        _timer = timer;
+        _heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.heartbeat()));
+    }
+
+    /**
+     * Starts sending the values emitted by the given signal to the given stream, until the stream
+     * closes.
+     */
+    public void add (SignalView<?> signal, final EventStream stream) {
+        final Fanout fanout;
+        synchronized (_fanouts) {
+            Fanout existing = _fanouts.get(signal);
+            if (existing == null) {
+                existing = new Fanout();
+                existing.connect(signal);
+                _fanouts.put(signal, existing);
+            }
+            fanout = existing;
+            fanout.streams.add(stream);
+            _open.add(stream);
+            if (_heartbeat == null && _heartbeatNanos > 0) {
+                // checking twice per interval keeps the longest silence to 1.5 intervals
+                _heartbeat = _timer.scheduleAtFixedRate(new Runnable() {
+                    public void run () {
+                        heartbeat();
+                    }
+                }, _heartbeatNanos / 2, _heartbeatNanos / 2, TimeUnit.NANOSECONDS);
+            }
+        }
+        stream.onClose(new Runnable() {
+            public void run () {
+                remove(fanout, stream);
+            }
+        });
+    }
+
+    /** Returns the number of open streams. */
+    public int size () {
+        return _open.size();
+    }
+
+    /** Closes every open stream, as when the servlet is destroyed. */
+    public void closeAll () {
+        for (EventStream stream : new ArrayList<EventStream>(_open)) stream.close();
+    }
+
+    /**
+     * Stops sending to a stream that has closed. Its signal stays connected, for the next client
+     * to stream it.
+     */
+    protected void remove (Fanout fanout, EventStream stream) {
+        synchronized (_fanouts) {
+            fanout.streams.remove(stream);
+            _open.remove(stream);
+            if (_open.isEmpty() && _heartbeat != null) {
+                _heartbeat.cancel(false);
+                _heartbeat = null;
+            }
+        }
+    }
+
+    protected void heartbeat () {
+        long now = System.nanoTime();
+        for (EventStream stream : _open) stream.heartbeat(now, _heartbeatNanos);
+    }
+
+    /**
+     * Listens to one signal on behalf of every stream sending its values. It holds no reference to
+     * the signal, so that the signal, which holds it, can be collected.
+     */
+    protected class Fanout extends Slot<Object> {
+        public final Set<EventStream> streams = ConcurrentHashMap.newKeySet();
+
+        @Override public void onEmit (Object value) {
+            // a signal whose clients have all gone is not worth serializing for
+            if (streams.isEmpty()) return;
+            byte[] event;
+            try {
+                event = EventStream.encode(_event, _serializer.apply(value));
+            } catch (RuntimeException re) {
+                log.warning("Failed to serialize event", "value", value, re);
+                return;
+            }
+            for (EventStream stream : streams) stream.send(event);
+        }
+
+        @SuppressWarnings("unchecked")
+        public void connect (SignalView<?> signal) {
+            ((SignalView<Object>)signal).connect(this);
+        }
+    }
+
+    protected final String _event;
+    protected final Function<Object, String> _serializer;
+    protected final ScheduledExecutorService _timer;
+    protected final long _heartbeatNanos;
+    protected final Set<EventStream> _open = ConcurrentHashMap.newKeySet();
+    /** Keyed by identity, as signals are distinct however they define equality. */
+    protected final IdentityCache<Fanout> _fanouts = new IdentityCache<Fanout>();
+    protected ScheduledFuture<?> _heartbeat;
+
+    private static final Logger log = Logger.getLogger(EventStreams.class);
+}
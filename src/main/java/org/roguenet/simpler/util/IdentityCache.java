@@ -0,0 +1,91 @@
+package org.roguenet.simpler.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches values derived from objects, keyed by the identity of those objects rather than by
+ * equality. The keys are weakly held, so an entry goes away once its key is no longer in use
+ * elsewhere. Lookups are lock-free.
+ */
+public class IdentityCache<V> {
+    /** Returns the value cached for the given object, or null. */
+    public V get (Object key) {
+        return _entries.get(new Lookup(key));
+    }
+
+    public void put (Object key, V value) {
+        expunge();
+        _entries.put(new Ref(key, _queue), value);
+    }
+
+    /** Removes and returns the value cached for the given object, if any. */
+    public V remove (Object key) {
+        return _entries.remove(new Lookup(key));
+    }
+
+    /** Removes the value cached for the given object, if it is still the given one. */
+    public boolean remove (Object key, V value) {
+        return _entries.remove(new Lookup(key), value);
+    }
+
+    public void clear () {
+        _entries.clear();
+        expunge();
+    }
+
+    /** Returns the number of entries, including any whose keys have just been collected. */
+    public int size () {
+        return _entries.size();
+    }
+
+    /** Drops the entries whose keys have been collected. */
+    protected void expunge () {
+        for (Reference<?> ref; (ref = _queue.poll()) != null; ) _entries.remove(ref);
+    }
+
+    /** Holds a key weakly, matching only the same object. */
+    protected static class Ref extends WeakReference<Object> {
+        public Ref (Object key, ReferenceQueue<Object> queue) {
+            super(key, queue);
+            _hash = System.identityHashCode(key);
+        }
+
+        @Override public int hashCode () {
+            return _hash;
+        }
+
+        @Override public boolean equals (Object other) {
+            if (other == this) return true;
+            if (other instanceof Lookup) return ((Lookup)other).key == get();
+            if (!(other instanceof Ref)) return false;
+            Object key = get();
+            return key != null && key == ((Ref)other).get();
+        }
+
+        protected final int _hash;
+    }
+
+    /** Finds the entry of a key without creating a reference to it. */
+    protected static class Lookup {
+        public final Object key;
+
+        public Lookup (Object key) {
+            this.key = key;
+        }
+
+        @Override public int hashCode () {
+            return System.identityHashCode(key);
+        }
+
+        @Override public boolean equals (Object other) {
+            return other instanceof Ref && ((Ref)other).get() == key;
+        }
+    }
+
+    protected final Map<Ref, V> _entries = new ConcurrentHashMap<Ref, V>();
+    protected final ReferenceQueue<Object> _queue = new ReferenceQueue<Object>();
+}
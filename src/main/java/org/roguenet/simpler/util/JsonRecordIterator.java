@@ -0,0 +1,96 @@
+package org.roguenet.simpler.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a request body one record at a time. The body may either be a single top-level JSON
+ * array, or a sequence of top-level JSON values such as newline delimited JSON. Only the record
+ * currently being read is held in memory.
+ *
+ * Malformed input is reported as a {@link JsonSyntaxException} from {@link #hasNext} or
+ * {@link #next}, naming the offending record.
+ */
+public class JsonRecordIterator<T> implements Iterator<T>, AutoCloseable {
+    public JsonRecordIterator (Gson gson, JsonReader reader, Type type) {
+        _gson = gson;
+        _reader = reader;
+        _type = type;
+        _reader.setLenient(true);
+    }
+
+    /** Returns the number of records read so far. */
+    public int count () {
+        return _count;
+    }
+
+    @Override public boolean hasNext () {
+        try {
+            if (!_started) {
+                _started = true;
+                try {
+                    _array = _reader.peek() == JsonToken.BEGIN_ARRAY;
+                } catch (EOFException eofe) {
+                    _ended = true; // an empty body has no records
+                }
+                if (_array) _reader.beginArray();
+            }
+            if (_ended) return false;
+            if (_array) {
+                if (_reader.hasNext()) return true;
+                _reader.endArray();
+                _ended = true;
+                return false;
+            }
+            return _reader.peek() != JsonToken.END_DOCUMENT;
+        } catch (IOException ioe) {
+            throw wrap(ioe);
+        } catch (IllegalStateException ise) {
+            throw wrap(ise);
+        }
+    }
+
+    @Override public T next () {
+        if (!hasNext()) throw new NoSuchElementException();
+        try {
+            T record = _gson.fromJson(_reader, _type);
+            _count++;
+            return record;
+        } catch (JsonSyntaxException jse) {
+            throw wrap(jse.getCause() == null ? jse : jse.getCause());
+        }
+    }
+
+    @Override public void remove () {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override public void close () throws IOException {
+        _reader.close();
+    }
+
+    protected RuntimeException wrap (Throwable cause) {
+        if (cause instanceof IOException && !(cause instanceof MalformedJsonException) &&
+            !(cause instanceof EOFException)) {
+            return new JsonIOException(cause);
+        }
+        return new JsonSyntaxException("Malformed record " + _count + ": " + cause.getMessage(),
+            cause);
+    }
+
+    protected final Gson _gson;
+    protected final JsonReader _reader;
+    protected final Type _type;
+
+    protected boolean _started, _array, _ended;
+    protected int _count;
+}
@@ -0,0 +1,88 @@
+package org.roguenet.simpler.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, bucketed in the style of HdrHistogram: each
+ * power of two is split into {@value #SUB_BUCKETS} linear buckets, so any recorded value is
+ * reported to within about three percent, in a fixed amount of memory. Recording a value is a
+ * few arithmetic operations and an atomic increment, and never allocates.
+ */
+public class LatencyHistogram {
+    public void record (long nanos) {
+        if (nanos < 0) nanos = 0;
+        AtomicLongArray counts = _counts;
+        if (counts == null) counts = allocate();
+        counts.incrementAndGet(bucket(nanos));
+        _count.increment();
+        _sum.add(nanos);
+        long max = _max.get();
+        while (nanos > max && !_max.compareAndSet(max, nanos)) max = _max.get();
+    }
+
+    public long count () {
+        return _count.sum();
+    }
+
+    public long max () {
+        return _max.get();
+    }
+
+    public double mean () {
+        long count = _count.sum();
+        return count == 0 ? 0 : (double)_sum.sum() / count;
+    }
+
+    /**
+     * Returns the value below which the given fraction of recorded values fall, for example the
+     * 99th percentile for {@code 0.99}, or 0 if nothing has been recorded.
+     */
+    public long percentile (double fraction) {
+        AtomicLongArray counts = _counts;
+        if (counts == null) return 0;
+        long total = 0;
+        for (int ii = 0; ii < BUCKETS; ii++) total += counts.get(ii);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(fraction * total)), seen = 0;
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            seen += counts.get(ii);
+            if (seen >= rank) return Math.min(upperBound(ii), _max.get());
+        }
+        return _max.get();
+    }
+
+    protected static int bucket (long value) {
+        if (value < SUB_BUCKETS) return (int)value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) return BUCKETS - 1;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int)(value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Returns the largest value that falls into the given bucket. */
+    protected static long upperBound (int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long)(bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    protected synchronized AtomicLongArray allocate () {
+        if (_counts == null) _counts = new AtomicLongArray(BUCKETS);
+        return _counts;
+    }
+
+    /** The bucket counts, allocated on first use so that idle histograms stay small. */
+    protected volatile AtomicLongArray _counts;
+    protected final LongAdder _count = new LongAdder();
+    protected final LongAdder _sum = new LongAdder();
+    protected final AtomicLong _max = new AtomicLong();
+
+    protected static final int SUB_BUCKET_BITS = 5;
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Values of 2^40 nanoseconds (about 18 minutes) or more all land in the last bucket. */
+    protected static final int MAX_MAGNITUDE = 39;
+    protected static final int BUCKETS = SUB_BUCKETS * (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2);
+}
@@ -0,0 +1,200 @@
+package org.roguenet.simpler.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import org.roguenet.simpler.Param;
+import org.roguenet.simpler.RestException;
+
+/**
+ * Creates the parameter of a method from the request's query parameters, by setting the
+ * {@link Param} fields of a new instance of its class. The fields are found, checked and resolved
+ * to method handles once, when the method is mapped, and values are parsed without boxing.
+ */
+public class ParamBinder {
+    /** Returns true if the given class, or one of its superclasses, has {@link Param} fields. */
+    public static boolean binds (Class<?> cls) {
+        for (Class<?> cc = cls; cc != null && cc != Object.class; cc = cc.getSuperclass()) {
+            for (Field field : cc.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Param.class)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates a binder for the given class.
+     *
+     * @throws IllegalArgumentException if the class has no no-argument constructor, or a
+     * {@link Param} field that is static, final or of a type that cannot be bound.
+     */
+    public ParamBinder (Class<?> cls) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            Constructor<?> ctor = cls.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            _ctor = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException nsme) {
+            throw new IllegalArgumentException(
+                cls.getName() + " needs a no-argument constructor to bind parameters");
+        } catch (IllegalAccessException iae) {
+            throw new IllegalArgumentException("Unable to access constructor of " + cls, iae);
+        }
+
+        List<Binding> bindings = new ArrayList<Binding>();
+        for (Class<?> cc = cls; cc != null && cc != Object.class; cc = cc.getSuperclass()) {
+            for (Field field : cc.getDeclaredFields()) {
+                Param param = field.getAnnotation(Param.class);
+                if (param == null) continue;
+                if (Modifier.isStatic(field.getModifiers()) ||
+                    Modifier.isFinal(field.getModifiers())) {
+                    throw new IllegalArgumentException(
+                        "@Param field must not be static or final: " + field);
+                }
+                Kind kind = Kind.of(field.getType());
+                if (kind == null) {
+                    throw new IllegalArgumentException("Unsupported @Param type: " + field);
+                }
+                field.setAccessible(true);
+                MethodHandle setter;
+                try {
+                    setter = lookup.unreflectSetter(field);
+                } catch (IllegalAccessException iae) {
+                    throw new IllegalArgumentException("Unable to access field " + field, iae);
+                }
+                String name = param.value().isEmpty() ? field.getName() : param.value();
+                bindings.add(new Binding(name, param.required(), kind, field.getType(),
+                    setter.asType(MethodType.methodType(void.class, Object.class, kind.type))));
+            }
+        }
+        _bindings = bindings.toArray(new Binding[bindings.size()]);
+    }
+
+    /**
+     * Returns a new instance of the class with its fields set from the given request.
+     *
+     * @throws RestException if a required parameter is missing, or a value cannot be parsed.
+     */
+    public Object bind (HttpServletRequest req) throws RestException {
+        Object target;
+        try {
+            target = (Object)_ctor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new UndeclaredThrowableException(t);
+        }
+        for (Binding binding : _bindings) binding.bind(target, req.getParameter(binding.name));
+        return target;
+    }
+
+    /** The kinds of field that can be bound, and the type each is set with. */
+    protected enum Kind {
+        STRING(Object.class), INT(int.class), LONG(long.class), BOOLEAN(boolean.class),
+        DOUBLE(double.class), ENUM(Object.class);
+
+        public final Class<?> type;
+
+        Kind (Class<?> type) {
+            this.type = type;
+        }
+
+        public static Kind of (Class<?> type) {
+            if (type == String.class) return STRING;
+            if (type == int.class || type == Integer.class) return INT;
+            if (type == long.class || type == Long.class) return LONG;
+            if (type == boolean.class || type == Boolean.class) return BOOLEAN;
+            if (type == double.class || type == Double.class) return DOUBLE;
+            if (type.isEnum()) return ENUM;
+            return null;
+        }
+    }
+
+    /** A field bound to a request parameter. */
+    protected static class Binding {
+        public final String name;
+        public final boolean required;
+        public final Kind kind;
+        public final Class<?> type;
+        public final MethodHandle setter;
+
+        public Binding (String name, boolean required, Kind kind, Class<?> type,
+                MethodHandle setter) {
+            this.name = name;
+            this.required = required;
+            this.kind = kind;
+            this.type = type;
+            this.setter = setter;
+        }
+
+        public void bind (Object target, String value) throws RestException {
+            if (ParamParser.isBlank(value)) {
+                RestException.throwIf(required, "Missing parameter: " + name);
+                return;
+            }
+            try {
+                switch (kind) {
+                case STRING:
+                    setter.invokeExact(target, (Object)value);
+                    return;
+                case INT: {
+                    long parsed = ParamParser.parseLong(value, Integer.MIN_VALUE,
+                        Integer.MAX_VALUE, Long.MIN_VALUE);
+                    // no int parses as Long.MIN_VALUE, so it is free to mean a bad value
+                    if (parsed == Long.MIN_VALUE) break;
+                    setter.invokeExact(target, (int)parsed);
+                    return;
+                }
+                case LONG: {
+                    long parsed = ParamParser.parseLong(value, Long.MIN_VALUE,
+                        Long.MAX_VALUE, 0);
+                    // every long is valid, so a 0 may be a bad value and is checked again
+                    if (parsed == 0 && !ParamParser.isLong(value, Long.MIN_VALUE,
+                        Long.MAX_VALUE)) break;
+                    setter.invokeExact(target, parsed);
+                    return;
+                }
+                case BOOLEAN: {
+                    int parsed = ParamParser.parseBoolean(value);
+                    if (parsed < 0) break;
+                    setter.invokeExact(target, parsed == 1);
+                    return;
+                }
+                case DOUBLE: {
+                    double parsed = ParamParser.parseDouble(value);
+                    if (Double.isNaN(parsed)) break;
+                    setter.invokeExact(target, parsed);
+                    return;
+                }
+                case ENUM: {
+                    Object parsed = parseEnum(value);
+                    if (parsed == null) break;
+                    setter.invokeExact(target, parsed);
+                    return;
+                }
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+            throw RestException.stackless(RestException.DEFAULT_CODE,
+                "Invalid value for parameter " + name + ": " + value);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected Object parseEnum (String value) {
+            return ParamParser.parseEnum((Class)type, value, true);
+        }
+    }
+
+    protected final MethodHandle _ctor;
+    protected final Binding[] _bindings;
+}
@@ -0,0 +1,116 @@
+package org.roguenet.simpler.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses request parameter values as primitives and enums without copying or boxing them.
+ * Whitespace around a value is ignored, and a value that is only whitespace counts as missing.
+ */
+public class ParamParser {
+    /** Returns true if the given value is null or only whitespace. */
+    public static boolean isBlank (String value) {
+        return value == null || start(value) == end(value);
+    }
+
+    /**
+     * Returns the decimal number in the given value, or {@code invalid} if it is not a number or
+     * is outside the given bounds.
+     */
+    public static long parseLong (String value, long min, long max, long invalid) {
+        return Router.parseLong(value, start(value), end(value), min, max, invalid);
+    }
+
+    /** Returns true if the given value is a decimal number within the given bounds. */
+    public static boolean isLong (String value, long min, long max) {
+        return Router.isLong(value, start(value), end(value), min, max);
+    }
+
+    /**
+     * Returns 1 if the given value is true, 0 if it is false, or -1 if it is neither. The words
+     * true, yes and on, and the number 1, are true; false, no, off and 0 are false, regardless of
+     * case.
+     */
+    public static int parseBoolean (String value) {
+        int start = start(value), end = end(value);
+        for (String word : TRUE) {
+            if (matches(word, value, start, end)) return 1;
+        }
+        for (String word : FALSE) {
+            if (matches(word, value, start, end)) return 0;
+        }
+        return -1;
+    }
+
+    /** Returns the number in the given value, or NaN if it is not a finite number. */
+    public static double parseDouble (String value) {
+        try {
+            double parsed = Double.parseDouble(value);
+            return Double.isInfinite(parsed) ? Double.NaN : parsed;
+        } catch (NumberFormatException nfe) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Returns the constant of the given enum named by the given value, or null if there is none.
+     * Names are matched exactly, or regardless of case if {@code ignoreCase} is set. The constants
+     * of each enum are looked up once and kept in a table.
+     */
+    public static <T extends Enum<T>> T parseEnum (Class<T> cls, String value, boolean ignoreCase) {
+        int start = start(value), end = end(value);
+        if (start == end) return null;
+        return cls.cast(TABLES.get(cls).find(value, start, end, ignoreCase));
+    }
+
+    protected static boolean matches (String word, String value, int start, int end) {
+        int length = end - start;
+        return word.length() == length && word.regionMatches(true, 0, value, start, length);
+    }
+
+    protected static int start (String value) {
+        int start = 0, length = value.length();
+        while (start < length && value.charAt(start) <= ' ') start++;
+        return start;
+    }
+
+    protected static int end (String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) <= ' ') end--;
+        return Math.max(end, start(value));
+    }
+
+    /** The constants of an enum, by name. */
+    protected static class EnumTable {
+        public EnumTable (Class<?> cls) {
+            _constants = (Enum<?>[])cls.getEnumConstants();
+            for (Enum<?> constant : _constants) _byName.put(constant.name(), constant);
+        }
+
+        public Enum<?> find (String value, int start, int end, boolean ignoreCase) {
+            if (start == 0 && end == value.length()) {
+                Enum<?> constant = _byName.get(value);
+                if (constant != null) return constant;
+            }
+            int length = end - start;
+            for (Enum<?> constant : _constants) {
+                String name = constant.name();
+                if (name.length() == length &&
+                    name.regionMatches(ignoreCase, 0, value, start, length)) return constant;
+            }
+            return null;
+        }
+
+        protected final Enum<?>[] _constants;
+        protected final Map<String, Enum<?>> _byName = new HashMap<String, Enum<?>>();
+    }
+
+    protected static final ClassValue<EnumTable> TABLES = new ClassValue<EnumTable>() {
+        @Override protected EnumTable computeValue (Class<?> cls) {
+            return new EnumTable(cls);
+        }
+    };
+
+    protected static final String[] TRUE = { "true", "yes", "on", "1" };
+    protected static final String[] FALSE = { "false", "no", "off", "0" };
+}
@@ -1,20 +1,45 @@
 package org.roguenet.simpler.util;
 
+import org.roguenet.simpler.RequestContext;
 import react.SignalView;
 import react.UnitSlot;
 
 /**
- * A ThreadLocal that receives a signal telling it to reset. The intention is for that signal to
- * be dispatched at the start of a new HTTP service call so that this ThreadLocal resets at the
- * beginning of each new request.
+ * A value that lives for the duration of a single HTTP service call.
+ *
+ * While a call is being handled, the value is stored in the call's {@link RequestContext}, so it
+ * follows the call if it moves between threads and disappears with it when the call is done.
+ * Outside of a call, this is a plain ThreadLocal. If it was created with a reset signal, it
+ * behaves as it always has, clearing itself whenever that signal is emitted on its thread. That
+ * needs a signal and a connection per thread, which pile up when every call runs on a thread of
+ * its own, so a RequestLocal used only within calls should be created without one.
  */
 public class RequestLocal<T> extends ThreadLocal<T> {
+    public RequestLocal () {
+        this(null);
+    }
+
     public RequestLocal (ThreadLocal<? extends SignalView<?>> reset) {
         _reset = reset;
+        _connected = reset == null ? null : new ThreadLocal<Boolean>() {
+            @Override protected Boolean initialValue () { return Boolean.FALSE; }
+        };
     }
 
     @Override public T get () {
-        if (!_connected.get()) {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) {
+            Object value = ctx.getLocal(_slot, UNSET);
+            if (value == UNSET) {
+                T initial = initialValue();
+                ctx.setLocal(_slot, initial);
+                return initial;
+            }
+            @SuppressWarnings("unchecked") T tvalue = (T)value;
+            return tvalue;
+        }
+
+        if (_reset != null && !_connected.get()) {
             _reset.get().connect(new UnitSlot() { @Override public void onEmit () { remove(); } });
             _connected.set(true);
         }
@@ -22,8 +47,28 @@ public class RequestLocal<T> extends ThreadLocal<T> {
         return super.get();
     }
 
+    @Override public void set (T value) {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) {
+            ctx.setLocal(_slot, value);
+        } else {
+            super.set(value);
+        }
+    }
+
+    @Override public void remove () {
+        RequestContext ctx = RequestContext.current();
+        if (ctx != null) {
+            ctx.removeLocal(_slot);
+        } else {
+            super.remove();
+        }
+    }
+
+    /** The signal that resets the value outside of a call, or null. */
     protected final ThreadLocal<? extends SignalView<?>> _reset;
-    protected final ThreadLocal<Boolean> _connected = new ThreadLocal<Boolean>() {
-        @Override protected Boolean initialValue () { return Boolean.FALSE; }
-    };
+    protected final ThreadLocal<Boolean> _connected;
+    protected final int _slot = RequestContext.allocateSlot();
+
+    protected static final Object UNSET = new Object();
 }
@@ -0,0 +1,158 @@
+package org.roguenet.simpler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A reusable buffer that a response body is serialized into, so that a small body can be sent
+ * with an exact Content-Length (and compressed in one go). Once the body grows past the buffer's
+ * limit it spills: the destination is opened, everything buffered so far is written to it, and
+ * the rest of the body streams straight through.
+ *
+ * Buffers are taken from and returned to a {@link Pool}, along with the UTF-8 writer that feeds
+ * them, so serializing a response does not allocate either one. Only buffers that were closed
+ * cleanly go back to the pool: one abandoned partway through a body may have characters still
+ * held in its writer, which would otherwise turn up in the next body written with it.
+ */
+public class ResponseBuffer extends OutputStream {
+    /** Opens the destination of a body that has outgrown its buffer. */
+    public interface Spill {
+        OutputStream open () throws IOException;
+    }
+
+    /** A bounded pool of buffers. Buffers beyond the pool's capacity are simply dropped. */
+    public static class Pool {
+        public Pool (int capacity, int initialSize) {
+            _free = new ArrayBlockingQueue<ResponseBuffer>(capacity);
+            _initialSize = initialSize;
+        }
+
+        /**
+         * Takes a buffer from the pool that holds up to {@code limit} bytes before spilling to
+         * the given destination, which may be null if the buffer should simply grow.
+         */
+        public ResponseBuffer acquire (int limit, Spill spill) {
+            ResponseBuffer buffer = _free.poll();
+            if (buffer == null) buffer = new ResponseBuffer(_initialSize);
+            buffer._limit = limit;
+            buffer._spill = spill;
+            buffer._closed = false;
+            return buffer;
+        }
+
+        /**
+         * Returns a buffer to the pool. Buffers that grew very large, or that were not closed
+         * cleanly, are left to the GC.
+         */
+        public void release (ResponseBuffer buffer) {
+            if (!buffer._closed || buffer._buf.length > MAX_RETAINED) return;
+            buffer._count = 0;
+            buffer._spilled = 0;
+            buffer._spill = null;
+            buffer._target = null;
+            _free.offer(buffer);
+        }
+
+        protected final BlockingQueue<ResponseBuffer> _free;
+        protected final int _initialSize;
+    }
+
+    /** Returns a writer that encodes into this buffer as UTF-8. */
+    public PrintWriter writer () {
+        return _writer;
+    }
+
+    /** Returns true if the body outgrew the buffer and has been streaming to its destination. */
+    public boolean spilled () {
+        return _target != null;
+    }
+
+    /** Returns the total number of bytes written, including any that spilled. */
+    public long written () {
+        _writer.flush();
+        return _spilled + _count;
+    }
+
+    /** Returns the array holding the buffered bytes, of which the first {@link #size} are used. */
+    public byte[] array () {
+        _writer.flush();
+        return _buf;
+    }
+
+    public int size () {
+        _writer.flush();
+        return _count;
+    }
+
+    /** Returns a copy of the buffered bytes. */
+    public byte[] toByteArray () {
+        return Arrays.copyOf(array(), size());
+    }
+
+    @Override public void write (int b) throws IOException {
+        if (_target != null || (_count + 1 > _limit && spill())) {
+            _target.write(b);
+            _spilled++;
+            return;
+        }
+        ensureCapacity(_count + 1);
+        _buf[_count++] = (byte)b;
+    }
+
+    @Override public void write (byte[] b, int off, int len) throws IOException {
+        if (_target != null || (_count + len > _limit && spill())) {
+            _target.write(b, off, len);
+            _spilled += len;
+            return;
+        }
+        ensureCapacity(_count + len);
+        System.arraycopy(b, off, _buf, _count, len);
+        _count += len;
+    }
+
+    /**
+     * Flushes the writer, and closes the destination if the buffer spilled. The writer swallows
+     * failures writing to the destination, so they are reported here instead.
+     */
+    @Override public void close () throws IOException {
+        boolean failed = _writer.checkError();
+        if (_target != null) _target.close();
+        if (failed) throw new IOException("Failed writing response body");
+        _closed = true;
+    }
+
+    protected ResponseBuffer (int initialSize) {
+        _buf = new byte[initialSize];
+    }
+
+    protected boolean spill () throws IOException {
+        if (_spill == null) return false;
+        _target = _spill.open();
+        _target.write(_buf, 0, _count);
+        _spilled = _count;
+        _count = 0;
+        return true;
+    }
+
+    protected void ensureCapacity (int size) {
+        if (size > _buf.length) _buf = Arrays.copyOf(_buf, Math.max(size, _buf.length * 2));
+    }
+
+    protected byte[] _buf;
+    protected int _count, _limit;
+    protected boolean _closed;
+    protected long _spilled;
+    protected Spill _spill;
+    protected OutputStream _target;
+    protected final PrintWriter _writer =
+        new PrintWriter(new OutputStreamWriter(this, StandardCharsets.UTF_8));
+
+    /** Buffers that grow past this size are not returned to their pool. */
+    protected static final int MAX_RETAINED = 256 * 1024;
+}
@@ -0,0 +1,192 @@
+package org.roguenet.simpler.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-memory cache of serialized responses. Lookups are lock-free. When the cache grows
+ * past its entry or byte limit, entries are evicted with the CLOCK algorithm: a hit marks an
+ * entry as referenced, and a hand sweeping around the table drops the first entry it finds that
+ * has not been referenced since the hand last passed it, clearing the marks it passes over.
+ */
+public class ResponseCache {
+    /** A cached response. */
+    public static class Entry {
+        public final String key;
+        public final byte[] body;
+        public final String contentType;
+        /** The ETag of the response, or null if the method does not use ETags. */
+        public final String etag;
+
+        public Entry (String key, byte[] body, String contentType, String etag, long expires) {
+            this.key = key;
+            this.body = body;
+            this.contentType = contentType;
+            this.etag = etag;
+            _expires = expires;
+            _charged = body.length;
+        }
+
+        /** Returns the body compressed with the given coding, or null if it has not been yet. */
+        public byte[] encoded (Compression.Encoding encoding) {
+            return _encoded.get(encoding.ordinal());
+        }
+
+        /** Returns the number of bytes held by this entry, including compressed bodies. */
+        public long size () {
+            long size = body.length;
+            for (int ii = 0; ii < _encoded.length(); ii++) {
+                byte[] encoded = _encoded.get(ii);
+                if (encoded != null) size += encoded.length;
+            }
+            return size;
+        }
+
+        protected final AtomicReferenceArray<byte[]> _encoded =
+            new AtomicReferenceArray<byte[]>(Compression.Encoding.values().length);
+        protected final long _expires;
+        protected volatile boolean _referenced;
+
+        /**
+         * The bytes counted against the cache for this entry, and whether it has been removed and
+         * should no longer be counted. Both are guarded by the entry's monitor.
+         */
+        protected long _charged;
+        protected boolean _dead;
+    }
+
+    public ResponseCache (long ttl, TimeUnit unit, int maxEntries, long maxBytes) {
+        _ttlNanos = unit.toNanos(ttl);
+        _maxEntries = maxEntries;
+        _maxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+    }
+
+    /** Returns the unexpired entry for the given key, or null. */
+    public Entry get (String key) {
+        Entry entry = _entries.get(key);
+        long now = System.nanoTime();
+        if (entry != null && now - entry._expires >= 0) {
+            remove(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            _misses.increment();
+            return null;
+        }
+        if (!entry._referenced) entry._referenced = true;
+        _hits.increment();
+        return entry;
+    }
+
+    public Entry put (String key, byte[] body, String contentType, String etag) {
+        Entry entry = new Entry(key, body, contentType, etag, System.nanoTime() + _ttlNanos);
+        _bytes.addAndGet(entry._charged);
+        Entry old = _entries.put(key, entry);
+        if (old != null) discharge(old);
+        trim();
+        return entry;
+    }
+
+    /**
+     * Stores a compressed copy of an entry's body, so that later hits need not compress it again.
+     */
+    public void putEncoded (Entry entry, Compression.Encoding encoding, byte[] encoded) {
+        if (!entry._encoded.compareAndSet(encoding.ordinal(), null, encoded)) return;
+        synchronized (entry) {
+            if (entry._dead) return; // already gone, and no longer counted
+            entry._charged += encoded.length;
+        }
+        _bytes.addAndGet(encoded.length);
+        trim();
+    }
+
+    protected void trim () {
+        while (_entries.size() > _maxEntries || _bytes.get() > _maxBytes) {
+            if (!evictOne()) break;
+        }
+    }
+
+    /**
+     * Removes all entries whose key starts with the given prefix, or every entry if the prefix is
+     * null or empty.
+     */
+    public void invalidate (String keyPrefix) {
+        for (Entry entry : _entries.values()) {
+            if (keyPrefix == null || entry.key.startsWith(keyPrefix)) remove(entry);
+        }
+    }
+
+    public long hits () {
+        return _hits.sum();
+    }
+
+    public long misses () {
+        return _misses.sum();
+    }
+
+    public long evictions () {
+        return _evictions.sum();
+    }
+
+    public int size () {
+        return _entries.size();
+    }
+
+    public long bytes () {
+        return _bytes.get();
+    }
+
+    protected boolean evictOne () {
+        synchronized (_handLock) {
+            // two sweeps clear every mark, so a victim turns up by then unless the table empties
+            for (int ii = 0, limit = 2 * _entries.size() + 1; ii < limit; ii++) {
+                if (_hand == null || !_hand.hasNext()) {
+                    _hand = _entries.values().iterator();
+                    if (!_hand.hasNext()) return false;
+                }
+                Entry entry = _hand.next();
+                if (entry._referenced) {
+                    entry._referenced = false;
+                    continue;
+                }
+                if (remove(entry)) _evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    protected boolean remove (Entry entry) {
+        if (!_entries.remove(entry.key, entry)) return false;
+        discharge(entry);
+        return true;
+    }
+
+    /** Stops counting a removed or replaced entry against the cache. */
+    protected void discharge (Entry entry) {
+        long charged;
+        synchronized (entry) {
+            entry._dead = true;
+            charged = entry._charged;
+        }
+        _bytes.addAndGet(-charged);
+    }
+
+    protected final long _ttlNanos;
+    protected final int _maxEntries;
+    protected final long _maxBytes;
+    protected final Map<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+    protected final AtomicLong _bytes = new AtomicLong();
+    protected final LongAdder _hits = new LongAdder();
+    protected final LongAdder _misses = new LongAdder();
+    protected final LongAdder _evictions = new LongAdder();
+
+    /** The CLOCK hand, a weakly consistent iterator over the entries, guarded by its lock. */
+    protected final Object _handLock = new Object();
+    protected Iterator<Entry> _hand;
+}
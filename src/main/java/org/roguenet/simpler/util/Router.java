@@ -0,0 +1,353 @@
+package org.roguenet.simpler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A trie of path routes, built once when a servlet is constructed. Routes are either templates
+ * such as {@code /users/{id:int}/posts/{postId}}, which must match the whole path, or prefixes,
+ * which match a literal name and pass whatever follows it along as the rest of the path.
+ *
+ * Lookups walk the path in place: segments are hashed and compared against the trie without
+ * taking substrings, and typed path variables are parsed as they are matched, so a lookup costs
+ * time proportional to the length of the path no matter how many routes there are. Literal
+ * segments take precedence over variables, and the longest matching prefix route is used when no
+ * template matches.
+ */
+public class Router<T> {
+    /** The types a path variable may be declared with, as in {@code {id:int}}. */
+    public enum VarType { STRING, INT, LONG }
+
+    /**
+     * The result of a lookup. A match is reused for a single lookup, and holds the target, the
+     * rest of the path for prefix routes, and any variables bound along the way. Variables are
+     * held as offsets into the path, in two arrays that are only allocated if some route has
+     * variables at all.
+     *
+     * Matches are not pooled: a match belongs to its call for as long as the call runs, which for
+     * an asynchronous call is beyond the container thread's return, so a match reused by thread
+     * could be overwritten while its call is still reading it.
+     */
+    public static class Match<T> {
+        /** The target of the matched route. */
+        public T target;
+
+        public Match (int maxVars) {
+            _names = maxVars == 0 ? NO_NAMES : new String[maxVars];
+            _spans = maxVars == 0 ? NO_SPANS : new int[maxVars * 2];
+        }
+
+        /** Returns the path that was matched. */
+        public String path () {
+            return _path;
+        }
+
+        /**
+         * Returns the part of the path following a prefix route, or "" for template routes. This
+         * takes a substring, so code on the request path should use {@link #restStart} and the
+         * {@link #path} instead.
+         */
+        public String rest () {
+            return _restStart < 0 || _restStart >= _path.length() ? "" :
+                _path.substring(_restStart);
+        }
+
+        /** Returns the offset of the rest of the path, or -1 if a template route was matched. */
+        public int restStart () {
+            return _restStart;
+        }
+
+        /** Returns the number of path variables bound by the match. */
+        public int vars () {
+            return _vars;
+        }
+
+        /** Returns true if a variable of the given name was bound by the match. */
+        public boolean has (String name) {
+            return indexOf(name) >= 0;
+        }
+
+        /** Returns the string value of the named variable, or null if it is not bound. */
+        public String get (String name) {
+            int idx = indexOf(name);
+            return idx < 0 ? null : _path.substring(_spans[2 * idx], _spans[2 * idx + 1]);
+        }
+
+        /**
+         * Returns the numeric value of the named variable, parsed in place. Variables declared as
+         * an int or long were checked when the path was matched. Returns the default if the
+         * variable is not bound or is not a number.
+         */
+        public long getLong (String name, long defValue) {
+            return getLong(name, Long.MIN_VALUE, Long.MAX_VALUE, defValue);
+        }
+
+        /**
+         * Returns the value of the named variable as an int, or the default if it is not bound,
+         * is not a number, or is a number too large for an int.
+         */
+        public int getInt (String name, int defValue) {
+            return (int)getLong(name, Integer.MIN_VALUE, Integer.MAX_VALUE, defValue);
+        }
+
+        protected long getLong (String name, long min, long max, long defValue) {
+            int idx = indexOf(name);
+            if (idx < 0) return defValue;
+            return parseLong(_path, _spans[2 * idx], _spans[2 * idx + 1], min, max, defValue);
+        }
+
+        protected int indexOf (String name) {
+            for (int ii = 0; ii < _vars; ii++) {
+                if (_names[ii].equals(name)) return ii;
+            }
+            return -1;
+        }
+
+        protected boolean bind (int idx, String name, VarType type, int start, int end) {
+            switch (type) {
+            case INT:
+                if (!isLong(_path, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE)) return false;
+                break;
+            case LONG:
+                if (!isLong(_path, start, end, Long.MIN_VALUE, Long.MAX_VALUE)) return false;
+                break;
+            default:
+                break;
+            }
+            _names[idx] = name;
+            _spans[2 * idx] = start;
+            _spans[2 * idx + 1] = end;
+            return true;
+        }
+
+        protected String _path = "";
+        protected int _restStart = -1;
+        protected int _vars;
+        protected final String[] _names;
+        /** The start and end of each variable in the path. */
+        protected final int[] _spans;
+
+        protected static final String[] NO_NAMES = new String[0];
+        protected static final int[] NO_SPANS = new int[0];
+    }
+
+    /**
+     * Parses the decimal number in the given region of a string without allocating, returning
+     * {@code defValue} if the region is not a number or is outside the given bounds.
+     */
+    public static long parseLong (String str, int start, int end, long min, long max,
+            long defValue) {
+        if (start >= end) return defValue;
+        boolean negative = str.charAt(start) == '-';
+        int ii = negative ? start + 1 : start;
+        if (ii == end || end - ii > 19) return defValue;
+        // accumulated as a negative number, since those reach one further than the positive ones
+        long value = 0;
+        for (; ii < end; ii++) {
+            char c = str.charAt(ii);
+            if (c < '0' || c > '9') return defValue;
+            int digit = c - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10) return defValue; // would overflow
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) return defValue;
+            value = -value;
+        }
+        return value < min || value > max ? defValue : value;
+    }
+
+    /**
+     * Returns true if the given region of a string is a decimal number within the given bounds,
+     * for callers that have no default to spare that could not also be a valid number.
+     */
+    public static boolean isLong (String str, int start, int end, long min, long max) {
+        // a region that is not a number cannot parse as both of two different defaults
+        return parseLong(str, start, end, min, max, 0) != 0 ||
+            parseLong(str, start, end, min, max, 1) == 0;
+    }
+
+    /**
+     * Adds a route that matches the given template exactly. Segments of the form {@code {name}},
+     * {@code {name:int}} or {@code {name:long}} match any value (of that type) and bind it to the
+     * named variable.
+     *
+     * @throws IllegalArgumentException if the template is malformed or already routed.
+     */
+    public void add (String template, T target) {
+        List<String> segments = split(template);
+        Node<T> node = _root;
+        int vars = 0;
+        for (String segment : segments) {
+            if (segment.startsWith("{")) {
+                if (!segment.endsWith("}") || segment.length() < 3) {
+                    throw new IllegalArgumentException("Malformed path variable: " + segment);
+                }
+                String name = segment.substring(1, segment.length() - 1);
+                VarType type = VarType.STRING;
+                int colon = name.indexOf(':');
+                if (colon >= 0) {
+                    try {
+                        type = VarType.valueOf(name.substring(colon + 1).trim().toUpperCase());
+                    } catch (IllegalArgumentException iae) {
+                        throw new IllegalArgumentException("Unknown path variable type: " +
+                            segment);
+                    }
+                    name = name.substring(0, colon).trim();
+                }
+                node = node.varChild(name, type);
+                vars++;
+            } else if (segment.indexOf('{') >= 0 || segment.indexOf('}') >= 0) {
+                throw new IllegalArgumentException("Malformed path segment: " + segment);
+            } else {
+                node = node.literalChild(segment);
+            }
+        }
+        if (node._exact != null) {
+            throw new IllegalArgumentException("Path is already routed: " + template);
+        }
+        node._exact = target;
+        _maxVars = Math.max(_maxVars, vars);
+    }
+
+    /**
+     * Adds a route that matches the given literal path and anything beneath it, with the
+     * remainder available as {@link Match#rest}. An empty path matches everything that no other
+     * route does.
+     */
+    public void addPrefix (String path, T target) {
+        Node<T> node = _root;
+        for (String segment : split(path)) node = node.literalChild(segment);
+        node._prefix = target;
+    }
+
+    /** Creates a match large enough to hold the variables of any route in this router. */
+    public Match<T> newMatch () {
+        return new Match<T>(_maxVars);
+    }
+
+    /**
+     * Looks up the route for the given path, filling in the supplied match. Returns false if no
+     * route matches.
+     */
+    public boolean route (String path, Match<T> match) {
+        if (path == null) path = "";
+        match.target = null;
+        match._path = path;
+        match._restStart = -1;
+        match._vars = 0;
+        return match(_root, path, path.startsWith("/") ? 1 : 0, match);
+    }
+
+    protected boolean match (Node<T> node, String path, int pos, Match<T> match) {
+        int len = path.length();
+        if (pos >= len) {
+            if (node._exact != null) {
+                match.target = node._exact;
+                return true;
+            }
+            if (node._prefix != null) {
+                match.target = node._prefix;
+                match._restStart = len;
+                return true;
+            }
+            return false;
+        }
+
+        int end = path.indexOf('/', pos);
+        if (end < 0) end = len;
+        int next = end < len ? end + 1 : len;
+        Node<T> child = node.findLiteral(path, pos, end);
+        if (child != null && match(child, path, next, match)) return true;
+        if (node._varChild != null && end > pos) {
+            int idx = match._vars;
+            if (match.bind(idx, node._varName, node._varType, pos, end)) {
+                match._vars = idx + 1;
+                if (match(node._varChild, path, next, match)) return true;
+                match._vars = idx;
+            }
+        }
+        if (node._prefix != null) {
+            match.target = node._prefix;
+            match._restStart = pos;
+            return true;
+        }
+        return false;
+    }
+
+    protected static List<String> split (String path) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) segments.add(segment);
+        }
+        return segments;
+    }
+
+    protected static class Node<T> {
+        public Node<T> literalChild (String segment) {
+            Node<T> child = findLiteral(segment, 0, segment.length());
+            if (child != null) return child;
+            if ((_size + 1) * 2 > _keys.length) grow();
+            int idx = segment.hashCode() & _mask;
+            while (_keys[idx] != null) idx = (idx + 1) & _mask;
+            _keys[idx] = segment;
+            _children[idx] = child = new Node<T>();
+            _size++;
+            return child;
+        }
+
+        public Node<T> varChild (String name, VarType type) {
+            if (_varChild == null) {
+                _varChild = new Node<T>();
+                _varName = name;
+                _varType = type;
+            } else if (!_varName.equals(name) || _varType != type) {
+                throw new IllegalArgumentException("Conflicting path variables {" + _varName +
+                    "} and {" + name + "}");
+            }
+            return _varChild;
+        }
+
+        public Node<T> findLiteral (String path, int start, int end) {
+            if (_size == 0) return null;
+            int hash = 0;
+            for (int ii = start; ii < end; ii++) hash = 31 * hash + path.charAt(ii);
+            int len = end - start;
+            for (int idx = hash & _mask; _keys[idx] != null; idx = (idx + 1) & _mask) {
+                String key = _keys[idx];
+                if (key.length() == len && path.regionMatches(start, key, 0, len)) {
+                    return _children[idx];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected void grow () {
+            String[] keys = new String[_keys.length * 2];
+            Node<T>[] children = new Node[keys.length];
+            for (int ii = 0; ii < _keys.length; ii++) {
+                if (_keys[ii] == null) continue;
+                int idx = _keys[ii].hashCode() & (keys.length - 1);
+                while (keys[idx] != null) idx = (idx + 1) & (keys.length - 1);
+                keys[idx] = _keys[ii];
+                children[idx] = _children[ii];
+            }
+            _keys = keys;
+            _children = children;
+            _mask = keys.length - 1;
+        }
+
+        protected T _exact, _prefix;
+        protected String[] _keys = new String[2];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected Node<T>[] _children = new Node[2];
+        protected int _size, _mask = 1;
+        protected Node<T> _varChild;
+        protected String _varName;
+        protected VarType _varType;
+    }
+
+    protected final Node<T> _root = new Node<T>();
+    protected int _maxVars;
+}
@@ -0,0 +1,25 @@
+package org.roguenet.simpler;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CodecTest {
+    @Test public void testAcceptQuality () {
+        assertEquals(1, Codec.acceptQuality("application/cbor", CBOR, true), 0);
+        assertEquals(0, Codec.acceptQuality("application/cbor;q=0", CBOR, true), 0);
+        assertEquals(0.5, Codec.acceptQuality("text/html, application/cbor; q=0.5", CBOR, true),
+            0.001);
+        assertEquals(0, Codec.acceptQuality("application/cbor-seq", CBOR, true), 0);
+        assertEquals(0, Codec.acceptQuality("*/*", CBOR, true), 0);
+        assertEquals(0.3, Codec.acceptQuality("*/*;q=0.3", JSON, false), 0.001);
+        assertEquals(0.7, Codec.acceptQuality("*/*;q=0.3, application/*;q=0.7", JSON, false),
+            0.001);
+        // the most specific range wins, even if a wildcard gives a higher quality
+        assertEquals(0, Codec.acceptQuality("application/json;q=0, */*", JSON, false), 0);
+        assertEquals(0, Codec.acceptQuality("application/cbor;q=junk", CBOR, true), 0);
+        assertEquals(0, Codec.acceptQuality("text/plain", JSON, false), 0);
+    }
+
+    protected static final String CBOR = "application/cbor";
+    protected static final String JSON = "application/json";
+}
@@ -0,0 +1,59 @@
+package org.roguenet.simpler;
+
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MethodInvokerTest {
+    public static class Target {
+        public String name () {
+            return "public";
+        }
+
+        protected int count (Integer add) {
+            return _count += add;
+        }
+
+        private String secret () {
+            return "private";
+        }
+
+        void touch () {
+            _count++;
+        }
+
+        public String fail (String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        protected int _count;
+    }
+
+    @Test public void testSpun () throws Exception {
+        Target target = new Target();
+        MethodInvoker name = invoker("name");
+        assertSame(MethodInvoker.NoArg.class, name.getClass());
+        assertEquals("public", name.invoke(target, null));
+        assertEquals("private", invoker("secret").invoke(target, null));
+        assertEquals(3, invoker("count", Integer.class).invoke(target, 3));
+    }
+
+    @Test public void testVoid () throws Exception {
+        Target target = new Target();
+        assertNull(invoker("touch").invoke(target, null));
+        assertEquals(1, target._count);
+    }
+
+    @Test public void testUnwrapped () throws Exception {
+        try {
+            invoker("fail", String.class).invoke(new Target(), "boom");
+            fail();
+        } catch (IOException ioe) {
+            assertEquals("boom", ioe.getMessage());
+        }
+    }
+
+    protected MethodInvoker invoker (String name, Class<?>... params) throws Exception {
+        return MethodInvoker.create(Target.class.getDeclaredMethod(name, params));
+    }
+}
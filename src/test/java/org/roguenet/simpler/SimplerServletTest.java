@@ -0,0 +1,272 @@
+package org.roguenet.simpler;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+import org.roguenet.simpler.util.CborCodec;
+import static org.junit.Assert.*;
+
+public class SimplerServletTest {
+    public static class LegacyServlet extends SimplerServlet {
+        @SuppressWarnings("deprecation")
+        public LegacyServlet () throws Exception {
+            super("/api", new Gson());
+            mapMethod(LegacyServlet.class.getDeclaredMethod("legacy"), _gets, null);
+        }
+
+        protected String legacy () {
+            return "mapped";
+        }
+    }
+
+    public static class CoalescingServlet extends SimplerServlet {
+        public CoalescingServlet () {
+            super("/api", new Gson());
+        }
+
+        @RestGet @Coalesce protected String shared () throws Exception {
+            // fails only once another call is waiting for this one
+            for (int ii = 0; ii < 5000 && getCoalescer("shared").joined() == 0; ii++) {
+                Thread.sleep(1);
+            }
+            throw new IllegalStateException("boom");
+        }
+    }
+
+    @Test public void testCoalescedUnexpectedFailure () throws Exception {
+        final CoalescingServlet servlet = new CoalescingServlet();
+        final Response[] leader = new Response[1];
+        Thread thread = new Thread() {
+            @Override public void run () {
+                try {
+                    leader[0] = serve(servlet, request("GET", "/shared"));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        while (servlet.getCoalescer("shared").inFlight() == 0) Thread.sleep(1);
+        Response waiter = serve(servlet, request("GET", "/shared"));
+        thread.join();
+
+        assertEquals(1, servlet.getCoalescer("shared").joined());
+        assertTrue(leader[0].body(), leader[0].body().contains("boom"));
+        assertEquals(leader[0].body(), waiter.body());
+        assertEquals(leader[0].status, waiter.status);
+        assertEquals("application/json", waiter.headers.get("Content-Type"));
+    }
+
+    public static class SerializingServlet extends SimplerServlet {
+        public SerializingServlet () {
+            super("/api", new Gson());
+            addCodec(new CborCodec());
+        }
+
+        @RestGet protected String value () {
+            return "value";
+        }
+
+        @Override protected void serializeResponse (RestMethod method, Object response,
+                PrintWriter out) {
+            out.write("\"serialized\"");
+        }
+    }
+
+    public static class EncodingServlet extends SerializingServlet {
+        @RestGet @Override protected String value () {
+            return "value";
+        }
+
+        @Override protected void encodeResponse (RestMethod method, Object response,
+                JsonWriter out) throws IOException {
+            out.value("encoded");
+        }
+    }
+
+    @Test public void testCodecNeedsEncodeResponse () throws Exception {
+        Response rsp = serve(new SerializingServlet(),
+            request("GET", "/value", "Accept", CborCodec.CONTENT_TYPE));
+        assertEquals("application/json", rsp.headers.get("Content-Type"));
+        assertEquals("\"serialized\"", rsp.body());
+
+        rsp = serve(new EncodingServlet(),
+            request("GET", "/value", "Accept", CborCodec.CONTENT_TYPE));
+        assertEquals(CborCodec.CONTENT_TYPE, rsp.headers.get("Content-Type"));
+        assertEquals("encoded", new CborCodec().read(new Gson(),
+            new ByteArrayInputStream(rsp.bytes.toByteArray()), String.class));
+    }
+
+    public static class ParamServlet extends SimplerServlet {
+        public ParamServlet () {
+            super("/api", new Gson());
+        }
+
+        @RestGet protected long longValue () {
+            return longParam("v", 7);
+        }
+
+        @RestGet protected int intValue () {
+            return intParam("v", 7);
+        }
+    }
+
+    @Test public void testNumericParams () throws Exception {
+        ParamServlet servlet = new ParamServlet();
+        assertEquals("-9223372036854775808",
+            serve(servlet, request("GET", "/longValue?v=-9223372036854775808")).body());
+        assertEquals("9223372036854775807",
+            serve(servlet, request("GET", "/longValue?v=9223372036854775807")).body());
+        assertEquals("7",
+            serve(servlet, request("GET", "/longValue?v=9223372036854775808")).body());
+        assertEquals("7", serve(servlet, request("GET", "/longValue?v=x")).body());
+        assertEquals("7", serve(servlet, request("GET", "/longValue")).body());
+        assertEquals("-2147483648",
+            serve(servlet, request("GET", "/intValue?v=-2147483648")).body());
+        assertEquals("7", serve(servlet, request("GET", "/intValue?v=2147483648")).body());
+    }
+
+    @Test public void testDeprecatedMapMethod () throws Exception {
+        Response rsp = serve(new LegacyServlet(), request("GET", "/legacy"));
+        assertEquals(200, rsp.status);
+        assertEquals("\"mapped\"", rsp.body());
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test public void testDeprecatedHooks () throws Exception {
+        LegacyServlet servlet = new LegacyServlet();
+        assertEquals(RequestMethod.POST, servlet.requestMethodOf(servlet._posts));
+        assertEquals("legacy", servlet.getMethodName(request("GET", "/legacy/12")));
+        assertEquals("", servlet.getMethodName(request("GET", null)));
+        try {
+            servlet.requestMethodOf(new HashMap<String, SimplerServlet.RestMethod>());
+            fail();
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    /** A response that records what is sent to it. */
+    protected static class Response implements InvocationHandler {
+        public int status = 200;
+        public final Map<String, String> headers =
+            new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        public final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        public final HttpServletResponse proxy = (HttpServletResponse)Proxy.newProxyInstance(
+            SimplerServletTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class },
+            this);
+
+        public String body () {
+            _writer.flush();
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+
+        public Object invoke (Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getWriter": return _writer;
+            case "getOutputStream": return _out;
+            case "setStatus": case "sendError": status = (Integer)args[0]; return null;
+            case "getStatus": return status;
+            case "setHeader": case "addHeader": headers.put((String)args[0], (String)args[1]);
+                return null;
+            case "setIntHeader": case "setDateHeader":
+                headers.put((String)args[0], String.valueOf(args[1]));
+                return null;
+            case "getHeader": return headers.get(args[0]);
+            case "containsHeader": return headers.containsKey(args[0]);
+            case "setContentType": headers.put("Content-Type", (String)args[0]); return null;
+            case "getContentType": return headers.get("Content-Type");
+            case "getCharacterEncoding": return "UTF-8";
+            case "reset": case "resetBuffer": bytes.reset(); return null;
+            default: return defaultValue(method);
+            }
+        }
+
+        protected final ServletOutputStream _out = new ServletOutputStream() {
+            @Override public void write (int b) {
+                bytes.write(b);
+            }
+        };
+        protected final PrintWriter _writer =
+            new PrintWriter(new OutputStreamWriter(_out, StandardCharsets.UTF_8));
+    }
+
+    protected static Response serve (SimplerServlet servlet, HttpServletRequest req)
+            throws Exception {
+        Response rsp = new Response();
+        servlet.service(req, rsp.proxy);
+        rsp.body();
+        return rsp;
+    }
+
+    protected static HttpServletRequest request (String method, String pathInfo,
+            String... headers) {
+        return request(method, pathInfo, new byte[0], headers);
+    }
+
+    /**
+     * Returns a request for the given path, which may end with a query string of parameters,
+     * carrying the given body and the given header names and values.
+     */
+    protected static HttpServletRequest request (final String method, String path,
+            final byte[] body, String... headers) {
+        final Map<String, String> values = new TreeMap<String, String>(
+            String.CASE_INSENSITIVE_ORDER);
+        for (int ii = 0; ii < headers.length; ii += 2) values.put(headers[ii], headers[ii + 1]);
+        final Map<String, String> params = new HashMap<String, String>();
+        int query = path == null ? -1 : path.indexOf('?');
+        if (query >= 0) {
+            for (String param : path.substring(query + 1).split("&")) {
+                int eq = param.indexOf('=');
+                params.put(param.substring(0, eq), param.substring(eq + 1));
+            }
+        }
+        final String pathInfo = query < 0 ? path : path.substring(0, query);
+        final ByteArrayInputStream in = new ByteArrayInputStream(body);
+        return (HttpServletRequest)Proxy.newProxyInstance(
+            SimplerServletTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method m, Object[] args) {
+                    switch (m.getName()) {
+                    case "getMethod": return method;
+                    case "getPathInfo": return pathInfo;
+                    case "getServletPath": return "/api";
+                    case "getRequestURI": return "/api" + (pathInfo == null ? "" : pathInfo);
+                    case "getHeader": return values.get(args[0]);
+                    case "getParameter": return params.get(args[0]);
+                    case "getProtocol": return "HTTP/1.1";
+                    case "getInputStream": return new ServletInputStream() {
+                        @Override public int read () {
+                            return in.read();
+                        }
+                    };
+                    default: return defaultValue(m);
+                    }
+                }
+            });
+    }
+
+    protected static Object defaultValue (Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package org.roguenet.simpler.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BatchLoaderTest {
+    @Before public void setUp () {
+        _timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After public void tearDown () {
+        _timer.shutdownNow();
+    }
+
+    @Test public void testWindow () throws Exception {
+        BatchLoader<Integer, String> loader = loader(10, 100);
+        CompletableFuture<String> one = loader.loadAsync(1);
+        CompletableFuture<String> two = loader.loadAsync(2);
+        CompletableFuture<String> again = loader.loadAsync(1);
+        assertSame(one, again);
+        assertEquals("1", one.get(1, TimeUnit.SECONDS));
+        assertEquals("2", two.get(1, TimeUnit.SECONDS));
+        assertEquals(1, loader.batches());
+        assertEquals(2, loader.keys());
+        assertEquals(Arrays.asList(1, 2), _fetched.get(0));
+    }
+
+    @Test public void testFullBatch () throws Exception {
+        // a long window, so the batches are fetched only because they fill up
+        BatchLoader<Integer, String> loader = loader(60000, 2);
+        assertEquals(Arrays.asList("1", "2", "3", null),
+            loader.loadAll(Arrays.asList(1, 2, 3, 4), 1, TimeUnit.SECONDS));
+        assertEquals(2, loader.batches());
+    }
+
+    @Test public void testFailedFetch () throws Exception {
+        BatchLoader<Integer, String> loader = new BatchLoader<Integer, String>(
+            new Function<List<Integer>, Map<Integer, String>>() {
+                public Map<Integer, String> apply (List<Integer> keys) {
+                    throw new IllegalStateException("down");
+                }
+            }, 1, TimeUnit.MILLISECONDS, 10, _timer, Runnable::run);
+        try {
+            loader.load(1, 1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test public void testShutDownTimer () throws Exception {
+        BatchLoader<Integer, String> loader = loader(1, 10);
+        _timer.shutdown();
+        for (int ii = 0; ii < 2; ii++) {
+            CompletableFuture<String> future = loader.loadAsync(1);
+            try {
+                future.get(1, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        assertEquals(0, loader.batches());
+    }
+
+    protected BatchLoader<Integer, String> loader (long windowMillis, int maxBatch) {
+        return new BatchLoader<Integer, String>(
+            new Function<List<Integer>, Map<Integer, String>>() {
+                public Map<Integer, String> apply (List<Integer> keys) {
+                    _fetched.add(keys);
+                    Map<Integer, String> values = new HashMap<Integer, String>();
+                    for (Integer key : keys) if (key < 4) values.put(key, String.valueOf(key));
+                    return values;
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS, maxBatch, _timer, Runnable::run);
+    }
+
+    protected ScheduledExecutorService _timer;
+    protected final List<List<Integer>> _fetched = new CopyOnWriteArrayList<List<Integer>>();
+}
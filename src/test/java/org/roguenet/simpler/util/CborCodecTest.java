@@ -0,0 +1,93 @@
+package org.roguenet.simpler.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CborCodecTest {
+    @Test public void testRoundTrip () throws IOException {
+        String json = "{\"name\":\"caf\u00e9 \ud83d\ude00\",\"count\":-300,\"big\":" +
+            "4294967296,\"ratio\":0.1,\"half\":0.5,\"ok\":true,\"none\":null," +
+            "\"list\":[1,[],{}]}";
+        JsonElement tree = new JsonParser().parse(json);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new CborCodec().newWriter(out);
+        new GsonBuilder().serializeNulls().create().toJson(tree, writer);
+        writer.flush();
+        assertEquals(tree, read(out.toByteArray()));
+    }
+
+    @Test public void testIntegers () throws IOException {
+        // integers parsed from JSON are integers, not floats
+        assertArrayEquals(bytes(0x18, 0x2a), encode(new JsonParser().parse("42")));
+        assertArrayEquals(bytes(0x38, 0x63), encode(new JsonParser().parse("-100")));
+        assertArrayEquals(bytes(0x1b, 0, 0, 0, 1, 0, 0, 0, 0),
+            encode(new JsonParser().parse("4294967296")));
+        assertArrayEquals(bytes(0x18, 0x2a), encode(new BigDecimal("42")));
+        assertArrayEquals(bytes(0x18, 0x2a), encode(BigInteger.valueOf(42)));
+        assertArrayEquals(bytes(0x18, 0x2a), encode(42));
+    }
+
+    @Test public void testFractions () throws IOException {
+        assertArrayEquals(bytes(0xfa, 0x3f, 0xc0, 0, 0), encode(new JsonParser().parse("1.5")));
+        assertArrayEquals(bytes(0xfa, 0x3f, 0xc0, 0, 0), encode(1.5));
+        // a double is sent as one even if it holds an integer
+        assertArrayEquals(bytes(0xfa, 0x3f, 0x80, 0, 0), encode(1.0));
+        assertEquals(0.1, read(encode(new JsonParser().parse("0.1"))).getAsDouble(), 0);
+        // arbitrary precision numbers that do not fit are sent as text
+        assertEquals("123456789012345678901234567890",
+            read(encode(new BigInteger("123456789012345678901234567890"))).getAsString());
+        assertEquals("0.1000000000000000000001",
+            read(encode(new BigDecimal("0.1000000000000000000001"))).getAsString());
+    }
+
+    @Test public void testRecords () throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new CborWriter(out);
+        writer.beginArray().value(1).value(2).value(3).endArray().flush();
+        List<Object> records = new ArrayList<Object>();
+        Iterator<Object> iter = new CborCodec().readRecords(
+            new Gson(), new ByteArrayInputStream(out.toByteArray()), Integer.class);
+        while (iter.hasNext()) records.add(iter.next());
+        assertEquals(3, records.size());
+        assertEquals(3, records.get(2));
+    }
+
+    protected static byte[] encode (JsonElement value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(out);
+        new Gson().toJson(value, writer);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    protected static byte[] encode (Number value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CborWriter writer = new CborWriter(out);
+        writer.value(value);
+        writer.flush();
+        return out.toByteArray();
+    }
+
+    protected static JsonElement read (byte[] cbor) throws IOException {
+        return new CborReader(new ByteArrayInputStream(cbor)).read();
+    }
+
+    protected static byte[] bytes (int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int ii = 0; ii < values.length; ii++) bytes[ii] = (byte)values[ii];
+        return bytes;
+    }
+}
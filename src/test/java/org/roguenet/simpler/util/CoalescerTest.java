@@ -0,0 +1,77 @@
+package org.roguenet.simpler.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CoalescerTest {
+    @Test public void testJoinAndLand () throws Exception {
+        Coalescer coalescer = new Coalescer();
+        Coalescer.Flight leader = coalescer.join("a");
+        Coalescer.Flight follower = coalescer.join("a");
+        Coalescer.Flight other = coalescer.join("b");
+        assertTrue(leader.leader());
+        assertFalse(follower.leader());
+        assertTrue(other.leader());
+        assertEquals(2, coalescer.inFlight());
+
+        Coalescer.Result result = result(200);
+        coalescer.land(leader, result);
+        Coalescer.Result shared = coalescer.await(follower, 1, TimeUnit.SECONDS);
+        assertSame(result.body, shared.body);
+        assertEquals(1, coalescer.inFlight());
+
+        // a call after landing starts a new flight
+        assertTrue(coalescer.join("a").leader());
+        assertEquals(3, coalescer.led());
+        assertEquals(1, coalescer.joined());
+    }
+
+    @Test public void testSharedHeaders () throws Exception {
+        Coalescer coalescer = new Coalescer();
+        Coalescer.Flight leader = coalescer.join("a");
+        Coalescer.Flight follower = coalescer.join("a");
+        coalescer.land(leader, result(200));
+        Map<String, String> headers = coalescer.await(follower, 1, TimeUnit.SECONDS).headers;
+        assertEquals("application/json", headers.get("Content-Type"));
+        assertEquals("\"v1\"", headers.get("ETag"));
+        assertEquals("max-age=5", headers.get("Cache-Control"));
+        assertFalse(headers.containsKey("Set-Cookie"));
+        assertFalse(headers.containsKey("X-Request-Id"));
+        assertEquals(3, headers.size());
+    }
+
+    @Test public void testFailedLeader () throws Exception {
+        Coalescer coalescer = new Coalescer();
+        Coalescer.Flight leader = coalescer.join("a");
+        Coalescer.Flight follower = coalescer.join("a");
+        coalescer.land(leader, null);
+        assertNull(coalescer.await(follower, 1, TimeUnit.SECONDS));
+    }
+
+    @Test public void testTimeout () throws Exception {
+        Coalescer coalescer = new Coalescer();
+        coalescer.join("a");
+        Coalescer.Flight follower = coalescer.join("a");
+        try {
+            coalescer.await(follower, 1, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException te) {
+            assertEquals(1, coalescer.timeouts());
+        }
+    }
+
+    protected Coalescer.Result result (int status) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Set-Cookie", "session=leader");
+        headers.put("ETag", "\"v1\"");
+        headers.put("X-Request-Id", "leader");
+        headers.put("Cache-Control", "max-age=5");
+        return new Coalescer.Result(new byte[] { '{', '}' }, "application/json", status, headers,
+            true, 0);
+    }
+}
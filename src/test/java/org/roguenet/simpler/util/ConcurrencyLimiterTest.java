@@ -0,0 +1,93 @@
+package org.roguenet.simpler.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+    @Test public void testFixed () {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(2);
+        assertTrue(limiter.tryAcquire(1));
+        assertTrue(limiter.tryAcquire(1));
+        assertFalse(limiter.tryAcquire(1));
+        assertEquals(1, limiter.rejected());
+        limiter.release(MS, false);
+        assertEquals(1, limiter.inFlight());
+        assertTrue(limiter.tryAcquire(1));
+        assertEquals(2, limiter.limit());
+    }
+
+    @Test public void testShare () {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(10);
+        for (int ii = 0; ii < 5; ii++) assertTrue(limiter.tryAcquire(0.5));
+        assertFalse(limiter.tryAcquire(0.5));
+        assertTrue(limiter.tryAcquire(1));
+    }
+
+    @Test public void testAdditiveIncrease () {
+        ConcurrencyLimiter limiter = adaptive(4, 1, 6);
+        // each fast call adds 1/limit, so a bit more than a limit's worth raise it by one
+        for (int ii = 0; ii < 4; ii++) release(limiter, MS);
+        assertEquals(4, limiter.limit());
+        release(limiter, MS);
+        assertEquals(5, limiter.limit());
+        for (int ii = 0; ii < 100; ii++) release(limiter, MS);
+        assertEquals(6, limiter.limit());
+    }
+
+    @Test public void testMultiplicativeDecrease () {
+        ConcurrencyLimiter limiter = adaptive(20, 10, 40);
+        release(limiter, 200 * MS);
+        assertEquals(18, limiter.limit());
+        // a burst of slow calls within one target latency cuts the limit only once
+        release(limiter, 200 * MS);
+        release(limiter, 0, true);
+        assertEquals(18, limiter.limit());
+        // calls that never ran leave the limit alone
+        release(limiter, -1);
+        assertEquals(18, limiter.limit());
+    }
+
+    @Test public void testConcurrentIncrease () throws Exception {
+        final ConcurrencyLimiter limiter = adaptive(1, 1, 1000);
+        final AtomicInteger released = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int ii = 0; ii < threads.length; ii++) {
+            threads[ii] = new Thread() {
+                @Override public void run () {
+                    for (int jj = 0; jj < 5000; jj++) {
+                        if (!limiter.tryAcquire(1)) continue;
+                        limiter.release(MS, false);
+                        released.incrementAndGet();
+                    }
+                }
+            };
+            threads[ii].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(0, limiter.inFlight());
+
+        // no increase may be lost to a race, so the limit is where the same calls made one after
+        // another would have put it
+        double expected = 1;
+        for (int ii = 0, count = released.get(); ii < count; ii++) expected += 1 / expected;
+        assertEquals((int)expected, limiter.limit());
+    }
+
+    protected static ConcurrencyLimiter adaptive (int initial, int min, int max) {
+        return ConcurrencyLimiter.adaptive(initial, min, max, 100, TimeUnit.MILLISECONDS);
+    }
+
+    protected static void release (ConcurrencyLimiter limiter, long latencyNanos) {
+        release(limiter, latencyNanos, false);
+    }
+
+    protected static void release (ConcurrencyLimiter limiter, long latencyNanos,
+            boolean timedOut) {
+        assertTrue(limiter.tryAcquire(1));
+        limiter.release(latencyNanos, timedOut);
+    }
+
+    protected static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+}
@@ -0,0 +1,69 @@
+package org.roguenet.simpler.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+import org.roguenet.simpler.RequestContext;
+import org.roguenet.simpler.RequestMethod;
+import static org.junit.Assert.*;
+
+public class ContextLocalTest {
+    @Test public void testContextValue () {
+        final HttpServletRequest req = request();
+        final ContextLocal<HttpServletRequest> local =
+            new ContextLocal<HttpServletRequest>(RequestContext::request);
+        RequestContext.run(context(req), new RequestContext.Body<RuntimeException>() {
+            public void run () {
+                assertSame(req, local.get());
+            }
+        });
+        assertNull(local.get());
+    }
+
+    @Test public void testOverride () {
+        final HttpServletRequest req = request(), wrapped = request();
+        final ContextLocal<HttpServletRequest> local =
+            new ContextLocal<HttpServletRequest>(RequestContext::request);
+        RequestContext.run(context(req), new RequestContext.Body<RuntimeException>() {
+            public void run () {
+                local.set(wrapped);
+                assertSame(wrapped, local.get());
+                local.set(null);
+                assertNull(local.get());
+                local.remove();
+                assertSame(req, local.get());
+            }
+        });
+        // the override went with the call
+        RequestContext.run(context(req), new RequestContext.Body<RuntimeException>() {
+            public void run () {
+                assertSame(req, local.get());
+            }
+        });
+    }
+
+    @Test public void testOutsideCall () {
+        ContextLocal<HttpServletRequest> local =
+            new ContextLocal<HttpServletRequest>(RequestContext::request);
+        HttpServletRequest req = request();
+        local.set(req);
+        assertSame(req, local.get());
+        local.remove();
+        assertNull(local.get());
+    }
+
+    protected static RequestContext context (HttpServletRequest req) {
+        return new RequestContext(req, null, null, RequestMethod.GET);
+    }
+
+    protected static HttpServletRequest request () {
+        return (HttpServletRequest)Proxy.newProxyInstance(ContextLocalTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+}
@@ -0,0 +1,207 @@
+package org.roguenet.simpler.util;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.roguenet.simpler.Overflow;
+import org.roguenet.simpler.RestStream;
+import react.Signal;
+import static org.junit.Assert.*;
+
+public class EventStreamsTest {
+    @RestStream(event="score", heartbeat=0) public void scores () {}
+
+    @Before public void setUp () {
+        _timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After public void tearDown () {
+        _timer.shutdownNow();
+    }
+
+    @Test public void testEncode () {
+        assertEquals("data: 1\n\n", text(EventStream.encode("", "1")));
+        assertEquals("event: score\ndata: a\ndata: b\n\n",
+            text(EventStream.encode("score", "a\nb")));
+    }
+
+    @Test public void testFanout () throws Exception {
+        final AtomicInteger serialized = new AtomicInteger();
+        EventStreams streams = new EventStreams(config(), new Function<Object, String>() {
+            public String apply (Object value) {
+                serialized.incrementAndGet();
+                return String.valueOf(value);
+            }
+        }, _timer);
+        Signal<Integer> signal = Signal.create();
+        Client one = new Client(), two = new Client();
+        EventStream first = one.open(8, Overflow.DROP_OLDEST, DIRECT);
+        EventStream second = two.open(8, Overflow.DROP_OLDEST, DIRECT);
+        streams.add(signal, first);
+        streams.add(signal, second);
+        assertEquals(2, streams.size());
+
+        signal.emit(42);
+        assertEquals("event: score\ndata: 42\n\n", one.text());
+        assertEquals(one.text(), two.text());
+        // each value is serialized once, however many clients receive it
+        assertEquals(1, serialized.get());
+
+        first.close();
+        assertTrue(one.completed);
+        second.close();
+        assertEquals(0, streams.size());
+
+        // the signal stays connected, but nothing is serialized with no one listening
+        assertTrue(signal.hasConnections());
+        signal.emit(43);
+        assertEquals(1, serialized.get());
+
+        // and the next client reuses the connection rather than adding another
+        Client three = new Client();
+        streams.add(signal, three.open(8, Overflow.DROP_OLDEST, DIRECT));
+        signal.emit(44);
+        assertEquals("event: score\ndata: 44\n\n", three.text());
+        assertEquals(2, serialized.get());
+    }
+
+    @Test public void testConcurrentClients () throws Exception {
+        final EventStreams streams = new EventStreams(config(), String::valueOf, _timer);
+        final Signal<Integer> signal = Signal.create();
+        Client steady = new Client();
+        streams.add(signal, steady.open(1024, Overflow.DROP_OLDEST, DIRECT));
+        // clients come and go on another thread while the signal is emitted on this one
+        Thread churn = new Thread() {
+            @Override public void run () {
+                for (int ii = 0; ii < 1000; ii++) {
+                    EventStream stream = new Client().open(8, Overflow.DROP_OLDEST, DIRECT);
+                    streams.add(signal, stream);
+                    stream.close();
+                }
+            }
+        };
+        churn.start();
+        StringBuilder expected = new StringBuilder();
+        for (int ii = 0; ii < 500; ii++) {
+            signal.emit(ii);
+            expected.append("event: score\ndata: ").append(ii).append("\n\n");
+        }
+        churn.join();
+        assertEquals(expected.toString(), steady.text());
+        assertEquals(1, streams.size());
+    }
+
+    @Test public void testOverflow () {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        Client oldest = new Client();
+        EventStream stream = oldest.open(2, Overflow.DROP_OLDEST, tasks::add);
+        for (int ii = 1; ii <= 3; ii++) assertTrue(stream.send(event(ii)));
+        assertEquals(1, stream.dropped());
+        // only one drain is queued, however many events are waiting
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals("data: 2\n\ndata: 3\n\n", oldest.text());
+
+        Client newest = new Client();
+        stream = newest.open(2, Overflow.DROP_NEWEST, queueOn(tasks));
+        for (int ii = 1; ii <= 3; ii++) assertTrue(stream.send(event(ii)));
+        runAll(tasks);
+        assertEquals("data: 1\n\ndata: 2\n\n", newest.text());
+
+        Client slow = new Client();
+        stream = slow.open(2, Overflow.DISCONNECT, queueOn(tasks));
+        assertTrue(stream.send(event(1)));
+        assertTrue(stream.send(event(2)));
+        assertFalse(stream.send(event(3)));
+        assertTrue(stream.isClosed());
+        runAll(tasks);
+        assertTrue(slow.completed);
+        assertEquals("", slow.text());
+    }
+
+    protected RestStream config () {
+        try {
+            return getClass().getMethod("scores").getAnnotation(RestStream.class);
+        } catch (NoSuchMethodException nsme) {
+            throw new AssertionError(nsme);
+        }
+    }
+
+    /** Empties the given list and returns an executor that queues tasks on it, to run later. */
+    protected static Executor queueOn (final List<Runnable> tasks) {
+        tasks.clear();
+        return tasks::add;
+    }
+
+    protected static void runAll (List<Runnable> tasks) {
+        while (!tasks.isEmpty()) tasks.remove(0).run();
+    }
+
+    protected static byte[] event (int value) {
+        return EventStream.encode("", String.valueOf(value));
+    }
+
+    protected static String text (byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** A client's async response, recording what is written to it. */
+    protected static class Client {
+        public final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        public boolean completed;
+
+        public EventStream open (int capacity, Overflow overflow, Executor executor) {
+            final ServletOutputStream out = new ServletOutputStream() {
+                @Override public void write (int b) {
+                    written.write(b);
+                }
+            };
+            final ServletResponse rsp = (ServletResponse)proxy(ServletResponse.class,
+                new InvocationHandler() {
+                    public Object invoke (Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getOutputStream")) return out;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+            AsyncContext ctx = (AsyncContext)proxy(AsyncContext.class, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getResponse")) return rsp;
+                    if (method.getName().equals("complete")) {
+                        completed = true;
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+            return new EventStream(ctx, capacity, overflow, executor);
+        }
+
+        public String text () {
+            return new String(written.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    protected static Object proxy (Class<?> iface, InvocationHandler handler) {
+        return Proxy.newProxyInstance(EventStreamsTest.class.getClassLoader(),
+            new Class<?>[] { iface }, handler);
+    }
+
+    protected ScheduledExecutorService _timer;
+
+    protected static final Executor DIRECT = Runnable::run;
+}
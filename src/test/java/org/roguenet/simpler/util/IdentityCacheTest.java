@@ -0,0 +1,50 @@
+package org.roguenet.simpler.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IdentityCacheTest {
+    @Test public void testIdentityKeys () {
+        IdentityCache<String> cache = new IdentityCache<String>();
+        String key = new String("a"), equal = new String("a");
+        cache.put(key, "one");
+        assertEquals("one", cache.get(key));
+        assertNull(cache.get(equal));
+        cache.put(equal, "two");
+        assertEquals("one", cache.get(key));
+        assertEquals("two", cache.get(equal));
+        assertEquals(2, cache.size());
+    }
+
+    @Test public void testReplaceAndRemove () {
+        IdentityCache<String> cache = new IdentityCache<String>();
+        Object key = new Object();
+        cache.put(key, "one");
+        cache.put(key, "two");
+        assertEquals(1, cache.size());
+        assertEquals("two", cache.get(key));
+        assertEquals("two", cache.remove(key));
+        assertNull(cache.get(key));
+        assertNull(cache.remove(key));
+    }
+
+    @Test public void testConditionalRemove () {
+        IdentityCache<String> cache = new IdentityCache<String>();
+        Object key = new Object();
+        cache.put(key, "one");
+        assertFalse(cache.remove(key, "two"));
+        assertEquals("one", cache.get(key));
+        assertTrue(cache.remove(key, "one"));
+        assertNull(cache.get(key));
+    }
+
+    @Test public void testClear () {
+        IdentityCache<String> cache = new IdentityCache<String>();
+        Object key = new Object();
+        cache.put(key, "one");
+        cache.put(new Object(), "two");
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(key));
+    }
+}
@@ -0,0 +1,121 @@
+package org.roguenet.simpler.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.junit.Test;
+import org.roguenet.simpler.Param;
+import org.roguenet.simpler.RestException;
+import static org.junit.Assert.*;
+
+public class ParamBinderTest {
+    public enum Order { NEWEST, OLDEST }
+
+    public static class Search {
+        @Param public String q;
+        @Param public int limit = 20;
+        @Param public Long since;
+        @Param public boolean exact;
+        @Param public double boost = 1;
+        @Param("order") public Order sortOrder = Order.NEWEST;
+    }
+
+    public static class Required {
+        @Param(required=true) public String id;
+    }
+
+    public static class NoDefaultConstructor {
+        @Param public String q;
+        public NoDefaultConstructor (String q) {
+            this.q = q;
+        }
+    }
+
+    public static class FinalField {
+        @Param public final String q = null;
+    }
+
+    public static class BadType {
+        @Param public Object q;
+    }
+
+    @Test public void testBinds () {
+        assertTrue(ParamBinder.binds(Search.class));
+        assertFalse(ParamBinder.binds(String.class));
+    }
+
+    @Test public void testBind () throws RestException {
+        Search search = (Search)new ParamBinder(Search.class).bind(request(
+            "q", "cats", "limit", "-5", "since", "1234567890123", "exact", "Yes", "boost", "2.5",
+            "order", "oldest"));
+        assertEquals("cats", search.q);
+        assertEquals(-5, search.limit);
+        assertEquals(Long.valueOf(1234567890123L), search.since);
+        assertTrue(search.exact);
+        assertEquals(2.5, search.boost, 0);
+        assertEquals(Order.OLDEST, search.sortOrder);
+    }
+
+    @Test public void testDefaults () throws RestException {
+        Search search = (Search)new ParamBinder(Search.class).bind(request("limit", ""));
+        assertNull(search.q);
+        assertEquals(20, search.limit);
+        assertNull(search.since);
+        assertEquals(Order.NEWEST, search.sortOrder);
+    }
+
+    @Test public void testLongRange () throws RestException {
+        ParamBinder binder = new ParamBinder(Search.class);
+        assertEquals(Long.valueOf(Long.MIN_VALUE),
+            ((Search)binder.bind(request("since", "-9223372036854775808"))).since);
+        assertEquals(Long.valueOf(0), ((Search)binder.bind(request("since", " 0 "))).since);
+    }
+
+    @Test public void testInvalid () {
+        ParamBinder binder = new ParamBinder(Search.class);
+        for (String[] param : new String[][] {
+                { "limit", "ten" }, { "limit", "2147483648" }, { "since", "1.5" },
+                { "since", "9223372036854775808" }, { "since", "-" },
+                { "exact", "maybe" }, { "boost", "lots" }, { "order", "random" } }) {
+            try {
+                binder.bind(request(param));
+                fail("Bound " + param[0] + "=" + param[1]);
+            } catch (RestException re) {
+                assertTrue(re.getMessage().contains(param[0]));
+            }
+        }
+    }
+
+    @Test(expected=RestException.class)
+    public void testRequired () throws RestException {
+        new ParamBinder(Required.class).bind(request());
+    }
+
+    @Test public void testInvalidClasses () {
+        for (Class<?> cls : new Class<?>[] {
+                NoDefaultConstructor.class, FinalField.class, BadType.class }) {
+            try {
+                new ParamBinder(cls);
+                fail("Created a binder for " + cls);
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+    }
+
+    /** Returns a request with the given names and values as its parameters. */
+    protected static HttpServletRequest request (String... params) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (int ii = 0; ii < params.length; ii += 2) values.put(params[ii], params[ii + 1]);
+        return (HttpServletRequest)Proxy.newProxyInstance(ParamBinderTest.class.getClassLoader(),
+            new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("getParameter")) return values.get(args[0]);
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+}
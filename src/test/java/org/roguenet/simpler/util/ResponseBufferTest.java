@@ -0,0 +1,71 @@
+package org.roguenet.simpler.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResponseBufferTest {
+    @Test public void testReuse () throws IOException {
+        ResponseBuffer.Pool pool = new ResponseBuffer.Pool(4, 16);
+        ResponseBuffer buffer = pool.acquire(1024, null);
+        buffer.writer().print("hello");
+        buffer.close();
+        assertEquals("hello", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        pool.release(buffer);
+
+        ResponseBuffer again = pool.acquire(1024, null);
+        assertSame(buffer, again);
+        assertEquals(0, again.size());
+    }
+
+    @Test public void testAbandonedNotReused () throws IOException {
+        ResponseBuffer.Pool pool = new ResponseBuffer.Pool(4, 16);
+        ResponseBuffer buffer = pool.acquire(1024, null);
+        // characters left in the writer by a failed call must not reach the next one
+        buffer.writer().print("partial");
+        pool.release(buffer);
+
+        ResponseBuffer next = pool.acquire(1024, null);
+        assertNotSame(buffer, next);
+        next.writer().print("ok");
+        next.close();
+        assertEquals("ok", new String(next.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test public void testSpill () throws IOException {
+        final ByteArrayOutputStream dest = new ByteArrayOutputStream();
+        ResponseBuffer.Pool pool = new ResponseBuffer.Pool(4, 4);
+        ResponseBuffer buffer = pool.acquire(8, new ResponseBuffer.Spill() {
+            public OutputStream open () {
+                return dest;
+            }
+        });
+        buffer.writer().print("0123");
+        assertEquals(4, buffer.size());
+        assertFalse(buffer.spilled());
+        buffer.writer().print("456789abcdef");
+        buffer.close();
+        assertTrue(buffer.spilled());
+        assertEquals(16, buffer.written());
+        assertEquals("0123456789abcdef", new String(dest.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected=IOException.class)
+    public void testSpillFailure () throws IOException {
+        ResponseBuffer.Pool pool = new ResponseBuffer.Pool(4, 4);
+        ResponseBuffer buffer = pool.acquire(2, new ResponseBuffer.Spill() {
+            public OutputStream open () {
+                return new OutputStream() {
+                    @Override public void write (int b) throws IOException {
+                        throw new IOException("gone");
+                    }
+                };
+            }
+        });
+        buffer.writer().print("too long to buffer");
+        buffer.close();
+    }
+}
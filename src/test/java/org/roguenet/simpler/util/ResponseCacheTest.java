@@ -0,0 +1,111 @@
+package org.roguenet.simpler.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+    @Test public void testGetPut () {
+        ResponseCache cache = new ResponseCache(1, TimeUnit.HOURS, 10, 0);
+        assertNull(cache.get("a"));
+        cache.put("a", new byte[3], "text/plain", "\"x\"");
+        ResponseCache.Entry entry = cache.get("a");
+        assertNotNull(entry);
+        assertEquals("\"x\"", entry.etag);
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test public void testExpiry () {
+        ResponseCache cache = new ResponseCache(0, TimeUnit.MILLISECONDS, 10, 0);
+        cache.put("a", new byte[3], "text/plain", null);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+    }
+
+    @Test public void testByteAccounting () {
+        ResponseCache cache = new ResponseCache(1, TimeUnit.HOURS, 10, 0);
+        ResponseCache.Entry first = cache.put("a", new byte[10], "text/plain", null);
+        cache.putEncoded(first, Compression.Encoding.values()[0], new byte[4]);
+        assertEquals(14, cache.bytes());
+
+        // replacing an entry stops counting the old one, and late encodings of it are not counted
+        cache.put("a", new byte[5], "text/plain", null);
+        assertEquals(5, cache.bytes());
+        cache.putEncoded(first, Compression.Encoding.values()[1], new byte[4]);
+        assertEquals(5, cache.bytes());
+
+        cache.put("b", new byte[7], "text/plain", null);
+        cache.invalidate("a");
+        assertEquals(7, cache.bytes());
+        cache.invalidate(null);
+        assertEquals(0, cache.bytes());
+        assertEquals(0, cache.size());
+    }
+
+    @Test public void testEvictsUnreferenced () {
+        ResponseCache cache = new ResponseCache(1, TimeUnit.HOURS, 4, 0);
+        for (int ii = 0; ii < 4; ii++) cache.put("k" + ii, new byte[1], "text/plain", null);
+        // reference all but one, which should be the one to go
+        for (int ii = 0; ii < 4; ii++) {
+            if (ii != 2) assertNotNull(cache.get("k" + ii));
+        }
+        cache.put("k4", new byte[1], "text/plain", null);
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.evictions());
+        assertNull(cache.get("k2"));
+        assertNotNull(cache.get("k4"));
+    }
+
+    @Test public void testByteLimit () {
+        ResponseCache cache = new ResponseCache(1, TimeUnit.HOURS, 100, 100);
+        for (int ii = 0; ii < 20; ii++) cache.put("k" + ii, new byte[30], "text/plain", null);
+        assertTrue(cache.bytes() <= 100);
+        assertEquals(cache.size() * 30, cache.bytes());
+    }
+
+    @Test public void testConcurrentAccounting () throws Exception {
+        final ResponseCache cache = new ResponseCache(1, TimeUnit.HOURS, 50, 0);
+        final Compression.Encoding[] encodings = Compression.Encoding.values();
+        Thread[] threads = new Thread[8];
+        for (int tt = 0; tt < threads.length; tt++) {
+            final long seed = tt;
+            threads[tt] = new Thread() {
+                @Override public void run () {
+                    Random rando = new Random(seed);
+                    for (int ii = 0; ii < 20000; ii++) {
+                        String key = "k" + rando.nextInt(80);
+                        switch (rando.nextInt(4)) {
+                        case 0:
+                            cache.put(key, new byte[1 + rando.nextInt(50)], "text/plain", null);
+                            break;
+                        case 1:
+                            ResponseCache.Entry entry = cache.get(key);
+                            if (entry != null) cache.putEncoded(entry,
+                                encodings[rando.nextInt(encodings.length)], new byte[10]);
+                            break;
+                        case 2:
+                            cache.invalidate(key);
+                            break;
+                        default:
+                            cache.get(key);
+                            break;
+                        }
+                    }
+                }
+            };
+            threads[tt].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        long total = 0;
+        for (int ii = 0; ii < 80; ii++) {
+            ResponseCache.Entry entry = cache._entries.get("k" + ii);
+            if (entry != null) total += entry.size();
+        }
+        assertEquals(total, cache.bytes());
+        assertTrue(cache.size() <= 50);
+    }
+}
@@ -0,0 +1,130 @@
+package org.roguenet.simpler.util;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RouterTest {
+    @Test public void testTemplates () {
+        Router<String> router = new Router<String>();
+        router.add("/users/{id:int}", "user");
+        router.add("/users/{id:int}/posts/{postId}", "post");
+        router.add("/users/me", "me");
+        Router.Match<String> match = router.newMatch();
+
+        assertTrue(router.route("/users/12", match));
+        assertEquals("user", match.target);
+        assertEquals(12, match.getInt("id", -1));
+        assertEquals(-1, match.restStart());
+        assertEquals("", match.rest());
+
+        assertTrue(router.route("/users/12/posts/abc", match));
+        assertEquals("post", match.target);
+        assertEquals(2, match.vars());
+        assertEquals("abc", match.get("postId"));
+        assertEquals(-1, match.getLong("postId", -1));
+        assertFalse(match.has("missing"));
+
+        // literals take precedence over variables
+        assertTrue(router.route("/users/me", match));
+        assertEquals("me", match.target);
+        assertEquals(0, match.vars());
+
+        assertFalse(router.route("/users/me/posts", match));
+        assertFalse(router.route("/users/twelve", match));
+    }
+
+    @Test public void testIntRange () {
+        Router<String> router = new Router<String>();
+        router.add("/items/{id:int}", "int");
+        router.add("/things/{id:long}", "long");
+        router.add("/stuff/{id}", "string");
+        Router.Match<String> match = router.newMatch();
+
+        assertFalse(router.route("/items/2147483648", match));
+        assertTrue(router.route("/items/-2147483648", match));
+        assertEquals(Integer.MIN_VALUE, match.getInt("id", 0));
+
+        assertTrue(router.route("/things/-9223372036854775808", match));
+        assertEquals(Long.MIN_VALUE, match.getLong("id", 0));
+        assertFalse(router.route("/things/9223372036854775808", match));
+        assertTrue(router.route("/things/4294967297", match));
+        assertEquals(4294967297L, match.getLong("id", 0));
+        assertEquals(-1, match.getInt("id", -1));
+
+        assertTrue(router.route("/stuff/99999999999999999999", match));
+        assertEquals(-1, match.getLong("id", -1));
+        assertTrue(router.route("/stuff/7", match));
+        assertEquals(7, match.getInt("id", -1));
+    }
+
+    @Test public void testPrefixes () {
+        Router<String> router = new Router<String>();
+        router.addPrefix("", "root");
+        router.addPrefix("/files", "files");
+        router.add("/files/{name}/meta", "meta");
+        Router.Match<String> match = router.newMatch();
+
+        assertTrue(router.route("/files/a/b/c", match));
+        assertEquals("files", match.target);
+        assertEquals("a/b/c", match.rest());
+        assertEquals(7, match.restStart());
+
+        assertTrue(router.route("/files/a/meta", match));
+        assertEquals("meta", match.target);
+        assertEquals("a", match.get("name"));
+
+        assertTrue(router.route("/other", match));
+        assertEquals("root", match.target);
+        assertEquals("other", match.rest());
+
+        assertTrue(router.route("/files", match));
+        assertEquals("files", match.target);
+        assertEquals("", match.rest());
+    }
+
+    @Test public void testNoVariables () {
+        Router<String> router = new Router<String>();
+        router.add("/a/b", "ab");
+        Router.Match<String> match = router.newMatch();
+        assertTrue(router.route("/a/b", match));
+        assertNull(match.get("x"));
+        assertEquals(5, match.getLong("x", 5));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testDuplicate () {
+        Router<String> router = new Router<String>();
+        router.add("/a/{x}", "one");
+        router.add("/a/{x}", "two");
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testConflictingVariables () {
+        Router<String> router = new Router<String>();
+        router.add("/a/{x}", "one");
+        router.add("/a/{y:int}/b", "two");
+    }
+
+    @Test public void testParseLong () {
+        assertEquals(123, Router.parseLong("x123y", 1, 4, 0, 1000, -1));
+        assertEquals(-1, Router.parseLong("x123y", 1, 4, 0, 100, -1));
+        assertEquals(-1, Router.parseLong("-", 0, 1, Long.MIN_VALUE, Long.MAX_VALUE, -1));
+        assertEquals(-1, Router.parseLong("9223372036854775808", 0, 19, Long.MIN_VALUE,
+            Long.MAX_VALUE, -1));
+        assertEquals(Long.MAX_VALUE, Router.parseLong("9223372036854775807", 0, 19,
+            Long.MIN_VALUE, Long.MAX_VALUE, -1));
+        assertEquals(Long.MIN_VALUE, Router.parseLong("-9223372036854775808", 0, 20,
+            Long.MIN_VALUE, Long.MAX_VALUE, -1));
+        assertEquals(-1, Router.parseLong("-9223372036854775809", 0, 20, Long.MIN_VALUE,
+            Long.MAX_VALUE, -1));
+    }
+
+    @Test public void testIsLong () {
+        assertTrue(Router.isLong("0", 0, 1, 0, 10));
+        assertTrue(Router.isLong("1", 0, 1, 0, 10));
+        assertTrue(Router.isLong("-9223372036854775808", 0, 20, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertFalse(Router.isLong("", 0, 0, 0, 10));
+        assertFalse(Router.isLong("x", 0, 1, 0, 10));
+        assertFalse(Router.isLong("11", 0, 2, 0, 10));
+    }
+}